@@ -0,0 +1,55 @@
+package ee402;
+
+// Estimates the offset of the server's clock from ours, NTP style. Each
+// TIME_REQUEST/TIME_RESPONSE exchange gives four times: t0 we sent, t1 the
+// server received, t2 it replied, t3 we received. Then
+//
+//   offset = ((t1 - t0) + (t2 - t3)) / 2
+//   round trip = (t3 - t0) - (t2 - t1)
+//
+// and the offset is off by at most half the round trip, so of the last
+// WINDOW samples the one with the shortest round trip is trusted (the NTP
+// clock filter). Samples come from the ack reader, now() from the sampler.
+class ClockSync {
+    private static final int WINDOW = 8;
+
+    private final long[] offsets = new long[WINDOW];
+    private final long[] roundTrips = new long[WINDOW];
+    private int samples;
+    private volatile long offset;
+    private volatile long roundTrip = -1;
+
+    synchronized void sample(long t0, long t1, long t2, long t3) {
+        int slot = samples++ % WINDOW;
+        offsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+        roundTrips[slot] = Math.max(0, (t3 - t0) - (t2 - t1));
+        int best = 0;
+        for (int i = 1; i < Math.min(samples, WINDOW); i++) {
+            if (roundTrips[i] < roundTrips[best]) {
+                best = i;
+            }
+        }
+        offset = offsets[best];
+        roundTrip = roundTrips[best];
+    }
+
+    // On a new connection, perhaps to another node: old samples no longer
+    // apply, though the offset is kept until the first new one replaces it
+    synchronized void reset() {
+        samples = 0;
+    }
+
+    // The server's clock, as far as we can tell; ours until the first sample
+    long now() {
+        return System.currentTimeMillis() + offset;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    // Of the sample the offset came from, or -1 before the first
+    long getRoundTrip() {
+        return roundTrip;
+    }
+}
@@ -0,0 +1,291 @@
+package ee402;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator for capacity planning: opens many simulated
+// devices against one server, each on its own connection, and pushes SBP
+// readings at a fixed aggregate rate. Scheduling is open loop: every device
+// has a timetable of intended send times and latency is measured from the
+// intended time to the server's ack, so a stalled server shows up as
+// latency instead of quietly lowering the offered load.
+//
+// Usage: java ee402.LoadGenerator [host] [devices] [readings/s] [seconds]
+// (-Dee402.port selects the server port, default 5050)
+public class LoadGenerator {
+    private static final int PORT = Integer.getInteger("ee402.port", 5050);
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Platform-thread fallback: two threads per device, so keep stacks small
+    private static final long PLATFORM_STACK = 256 * 1024;
+
+    private final String host;
+    private final int devices;
+    private final double rate;
+    private final long durationNanos;
+    private final ThreadFactory threads;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final CountDownLatch connected;
+    private final CountDownLatch go = new CountDownLatch(1);
+    private volatile long startNanos;
+    private volatile long stopNanos;
+    private volatile boolean draining;
+
+    LoadGenerator(String host, int devices, double rate, long durationNanos, ThreadFactory threads) {
+        this.host = host;
+        this.devices = devices;
+        this.rate = rate;
+        this.durationNanos = durationNanos;
+        this.threads = threads;
+        this.connected = new CountDownLatch(devices);
+    }
+
+    public static void main(String args[]) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 10000;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 30;
+
+        System.out.println("**. Sensor Load Generator - EE402 OOP Module, DCU");
+        ThreadFactory threads = virtualThreads();
+        System.out.println("00. " + devices + " devices -> " + host + ":" + PORT + ", " + rate
+                + " readings/s for " + seconds + " s on " + (threads == null ? "platform" : "virtual") + " threads");
+        if (threads == null) {
+            threads = r -> new Thread(null, r, "device", PLATFORM_STACK);
+        }
+        new LoadGenerator(host, devices, rate, TimeUnit.SECONDS.toNanos(seconds), threads).run();
+        System.out.println("**. End of Application.");
+    }
+
+    void run() throws InterruptedException {
+        List<SimulatedDevice> all = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            SimulatedDevice device = new SimulatedDevice(i);
+            all.add(device);
+            Thread writer = threads.newThread(device::write);
+            writers.add(writer);
+            writer.start();
+        }
+        connected.await();
+        System.out.println("00. " + (devices - failures.get()) + " devices connected, "
+                + failures.get() + " failed");
+
+        startNanos = System.nanoTime();
+        stopNanos = startNanos + durationNanos;
+        go.countDown();
+        long lastSent = 0;
+        long lastAcked = 0;
+        for (long next = startNanos + TimeUnit.SECONDS.toNanos(1); next <= stopNanos; next += TimeUnit.SECONDS.toNanos(1)) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            long s = sent.get();
+            long a = acked.get();
+            System.out.println("    -> " + TimeUnit.NANOSECONDS.toSeconds(next - startNanos) + " s: sent "
+                    + (s - lastSent) + "/s, acked " + (a - lastAcked) + "/s, p99 "
+                    + millis(latency.percentile(0.99)) + " ms");
+            lastSent = s;
+            lastAcked = a;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        // Give the server a moment to ack what is still in flight
+        long drainUntil = System.nanoTime() + DRAIN_NANOS;
+        while (acked.get() < sent.get() && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        draining = true;
+        report(System.nanoTime() - startNanos);
+        for (SimulatedDevice device : all) {
+            device.close();
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("00. Sent " + sent.get() + " readings, " + acked.get() + " acked, "
+                + failures.get() + " device failures");
+        System.out.println("    -> offered " + String.format("%.0f", rate) + "/s, achieved "
+                + String.format("%.0f", acked.get() / seconds) + "/s");
+        System.out.println("    -> latency ms p50 " + millis(latency.percentile(0.50))
+                + ", p90 " + millis(latency.percentile(0.90))
+                + ", p99 " + millis(latency.percentile(0.99))
+                + ", p99.9 " + millis(latency.percentile(0.999))
+                + ", max " + millis(latency.getMax()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
+    // Thread.ofVirtual() is looked up reflectively so the tool still builds
+    // and runs on JDKs without virtual threads; null means use platform threads
+    private static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // One device connection: the writer follows the timetable while a reader
+    // thread turns cumulative acks into latencies. Intended send times wait in
+    // a ring until acked; a full ring stalls the writer, which is then charged
+    // to latency like any other server-side delay. A writer still stalled at
+    // the end of the run, or whose ack reader has gone, gives up as failed.
+    private class SimulatedDevice {
+        private static final int IN_FLIGHT = 256;
+
+        private final int index;
+        private final String name;
+        private final SensorSimulator sensor;
+        private final long[] intended = new long[IN_FLIGHT];
+        private final byte[] frame = new byte[SensorFrame.READING_SIZE];
+        private final ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+        private volatile long written;
+        private volatile long received;
+        private volatile boolean acksEnded;
+        private Socket socket;
+        private ObjectOutputStream os;
+        private ObjectInputStream is;
+
+        SimulatedDevice(int index) {
+            this.index = index;
+            this.name = "load-" + index;
+            this.sensor = new SensorSimulator(new Random(index));
+        }
+
+        void write() {
+            if (!connect()) {
+                failures.incrementAndGet();
+                connected.countDown();
+                return;
+            }
+            connected.countDown();
+            try {
+                go.await();
+                threads.newThread(this::readAcks).start();
+                // Spread the devices evenly over one send interval
+                long interval = (long) (1e9 * devices / rate);
+                long next = startNanos + interval * index / devices;
+                while (next < stopNanos) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    while (written - received >= IN_FLIGHT) {
+                        if (System.nanoTime() >= stopNanos || acksEnded || socket.isClosed()) {
+                            // The server stopped acking, or its socket is gone
+                            failures.incrementAndGet();
+                            return;
+                        }
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    }
+                    // Counted before the write: the ack can come back before
+                    // write() returns, and must find its send time in the ring
+                    intended[(int) (written % IN_FLIGHT)] = next;
+                    written++;
+                    sent.incrementAndGet();
+                    sensor.step();
+                    frameBuffer.clear();
+                    SensorFrame.encodeReading(frameBuffer, name, System.currentTimeMillis(),
+                            sensor.methane, sensor.co2, sensor.temperature);
+                    os.write(frame);
+                    os.flush();
+                    next += interval;
+                }
+            } catch (IOException | InterruptedException e) {
+                failures.incrementAndGet();
+                close();
+            }
+        }
+
+        // Follows one redirect, so a cluster spreads the devices over its nodes
+        private boolean connect() {
+            try {
+                String target = host + ":" + PORT;
+                for (int hops = 0; hops < 2; hops++) {
+                    int colon = target.lastIndexOf(':');
+                    socket = new Socket(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+                    socket.setTcpNoDelay(true);
+                    os = new ObjectOutputStream(socket.getOutputStream());
+                    is = new ObjectInputStream(socket.getInputStream());
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                    is.readObject(); // welcome message
+                    os.writeObject(SensorFrame.HELLO + SensorFrame.ACK_OPTION + SensorFrame.DEVICE_OPTION + name);
+                    os.flush();
+                    Object reply = is.readObject();
+                    if (reply instanceof String && ((String) reply).startsWith(SensorFrame.REDIRECT)) {
+                        close();
+                        target = ((String) reply).substring(SensorFrame.REDIRECT.length());
+                        continue;
+                    }
+                    if (!SensorFrame.HELLO_ACK.equals(reply)) {
+                        System.out.println("XX. " + name + ": server does not speak SBP");
+                        close();
+                        return false;
+                    }
+                    socket.setSoTimeout(0);
+                    return true;
+                }
+                System.out.println("XX. " + name + ": redirected more than once");
+            } catch (SocketTimeoutException e) {
+                System.out.println("XX. " + name + ": no SBP handshake from server");
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("XX. " + name + ": failed to connect: " + e);
+            }
+            close();
+            return false;
+        }
+
+        private void readAcks() {
+            byte[] scratch = new byte[SensorFrame.MAX_FRAME_SIZE];
+            try {
+                while (!draining) {
+                    long count = SensorFrame.readAck(is, scratch);
+                    if (count < 0) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    long limit = Math.min(count, written);
+                    for (long i = received; i < limit; i++) {
+                        latency.record((now - intended[(int) (i % IN_FLIGHT)]) / 1000);
+                    }
+                    if (limit > received) {
+                        acked.addAndGet(limit - received);
+                        received = limit;
+                    }
+                }
+            } catch (IOException e) {
+                // Socket closed at the end of the run or by the server
+            } finally {
+                acksEnded = true;
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package ee402;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+// Bounded local buffer of readings for upload. A reading stays in the ring
+// until the server acks it: [head, sent) are in flight and [sent, tail) wait
+// for the next batch, so after a reconnect everything not yet acked is
+// simply sent again. When the ring is full the oldest reading is dropped, so
+// sampling never blocks on the network.
+//
+// The ring can be memory-mapped from a spool file, so readings taken while
+// the server is unreachable also outlive the client process. The file is
+//
+//   u32 magic | u32 capacity | i64 head | i64 tail | i64 dropped | pad
+//   | capacity x (i64 timestamp | f64 methane | f64 co2 | f64 temperature)
+//
+// and head/tail are rewritten in place as readings are added and acked. The
+// file stays locked while the buffer is open, so a second client cannot map
+// the same spool.
+//
+// The timestamps are the caller's (server-aligned) clock and only go on the
+// wire. Batching lingers by a local System.nanoTime() kept beside the ring,
+// so an offset between the two clocks never delays or rushes a batch.
+class ReadingBuffer {
+    private static final int MAGIC = 0x45455350; // "EESP"
+    private static final int HEADER_SIZE = 32;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int DROPPED_OFFSET = 24;
+    private static final int RECORD_SIZE = 8 + 3 * 8;
+
+    private final int capacity;
+    private final ByteBuffer ring;
+    private final long[] queuedAt; // System.nanoTime() each reading was added
+    private FileChannel spoolFile; // holds the lock; null in memory
+    private long head;
+    private long sent;
+    private long tail;
+    private long dropped;
+    private long ackDebt; // in-flight readings dropped before their ack arrived
+    private long spooledTail; // readings before it were left by a previous run and are due at once
+    private boolean closed;
+
+    ReadingBuffer(int capacity) {
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocate(HEADER_SIZE + capacity * RECORD_SIZE);
+        this.queuedAt = new long[capacity];
+        writeHeader();
+    }
+
+    // Maps spool, picking up the readings a previous run left unacked. A
+    // spool written with another capacity has them copied into the new ring,
+    // the newest capacity of them if they no longer fit.
+    ReadingBuffer(Path spool, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.queuedAt = new long[capacity];
+        FileChannel file = FileChannel.open(spool, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer carried;
+        try {
+            if (file.tryLock() == null) {
+                throw new IOException("spool is in use by another client");
+            }
+            carried = carryOver(file, spool);
+            if (carried != null) {
+                file.truncate(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            }
+            this.ring = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        } catch (OverlappingFileLockException e) {
+            file.close();
+            throw new IOException("spool is already open", e);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        spoolFile = file;
+        long savedHead = ring.getLong(HEAD_OFFSET);
+        long savedTail = ring.getLong(TAIL_OFFSET);
+        if (ring.getInt(0) == MAGIC && ring.getInt(4) == capacity
+                && savedHead >= 0 && savedTail >= savedHead && savedTail - savedHead <= capacity) {
+            head = savedHead;
+            sent = savedHead;
+            tail = savedTail;
+            dropped = ring.getLong(DROPPED_OFFSET);
+            spooledTail = savedTail;
+        } else if (carried != null) {
+            ByteBuffer records = ring.duplicate();
+            records.position(HEADER_SIZE);
+            records.put(carried);
+            tail = carried.limit() / RECORD_SIZE;
+            spooledTail = tail;
+        }
+        writeHeader();
+    }
+
+    // The unacked records, oldest first, of a spool left with a capacity
+    // other than ours, or null; sets dropped to what the spool had dropped
+    // plus any readings that do not fit the new ring
+    private ByteBuffer carryOver(FileChannel file, Path spool) throws IOException {
+        if (file.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(file, header, 0);
+        int oldCapacity = header.getInt(4);
+        long savedHead = header.getLong(HEAD_OFFSET);
+        long savedTail = header.getLong(TAIL_OFFSET);
+        if (header.getInt(0) != MAGIC || oldCapacity == capacity || oldCapacity <= 0
+                || savedHead < 0 || savedTail < savedHead || savedTail - savedHead > oldCapacity
+                || file.size() < HEADER_SIZE + (long) oldCapacity * RECORD_SIZE) {
+            return null;
+        }
+        long first = Math.max(savedHead, savedTail - capacity);
+        dropped = header.getLong(DROPPED_OFFSET) + first - savedHead;
+        ByteBuffer records = ByteBuffer.allocate((int) (savedTail - first) * RECORD_SIZE);
+        for (long i = first; i < savedTail; i++) {
+            records.limit(records.position() + RECORD_SIZE);
+            readFully(file, records, HEADER_SIZE + (i % oldCapacity) * RECORD_SIZE);
+        }
+        records.flip();
+        System.out.println("00. -> " + spool + " was written for " + oldCapacity + " readings, carried "
+                + (savedTail - first) + " unsent readings over"
+                + (first > savedHead ? ", discarded the oldest " + (first - savedHead) : ""));
+        return records;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer into, long position) throws IOException {
+        while (into.hasRemaining()) {
+            int read = file.read(into, position);
+            if (read < 0) {
+                throw new IOException("spool ends early");
+            }
+            position += read;
+        }
+    }
+
+    private void writeHeader() {
+        ring.putInt(0, MAGIC);
+        ring.putInt(4, capacity);
+        ring.putLong(HEAD_OFFSET, head);
+        ring.putLong(TAIL_OFFSET, tail);
+        ring.putLong(DROPPED_OFFSET, dropped);
+    }
+
+    private int offset(long index) {
+        return HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+    }
+
+    synchronized void add(long timestamp, double methaneValue, double co2Value, double temperatureValue) {
+        if (tail - head == capacity) {
+            if (head < sent) {
+                ackDebt++;
+            } else {
+                sent++;
+            }
+            head++;
+            dropped++;
+            ring.putLong(HEAD_OFFSET, head);
+            ring.putLong(DROPPED_OFFSET, dropped);
+        }
+        int i = offset(tail);
+        ring.putLong(i, timestamp);
+        ring.putDouble(i + 8, methaneValue);
+        ring.putDouble(i + 16, co2Value);
+        ring.putDouble(i + 24, temperatureValue);
+        queuedAt[(int) (tail % capacity)] = System.nanoTime();
+        tail++;
+        ring.putLong(TAIL_OFFSET, tail);
+        notifyAll();
+    }
+
+    // Blocks until a batch is due: batchSize readings are waiting, or the
+    // oldest waiting reading is lingerMillis old. At most maxInFlight readings
+    // are left unacked. Returns the batch size, or 0 once closed.
+    synchronized int awaitBatch(int batchSize, long lingerMillis, int maxInFlight) throws InterruptedException {
+        while (!closed) {
+            long pending = tail - sent;
+            long room = maxInFlight - (sent - head);
+            long wait = 0;
+            if (pending > 0 && room > 0) {
+                int count = (int) Math.min(Math.min(pending, batchSize), room);
+                long due = sent < spooledTail ? 0 : queuedAt[(int) (sent % capacity)]
+                        + TimeUnit.MILLISECONDS.toNanos(lingerMillis) - System.nanoTime();
+                wait = due <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(due) + 1;
+                if (count == batchSize || wait <= 0) {
+                    return count;
+                }
+            }
+            if (wait > 0) {
+                wait(wait);
+            } else {
+                wait(); // until a reading or an ack arrives
+            }
+        }
+        return 0;
+    }
+
+    // Encodes the next count waiting readings as one BATCH frame
+    synchronized void encodeBatch(ByteBuffer buf, String deviceName, int count) {
+        SensorFrame.encodeBatchHeader(buf, deviceName, count);
+        for (int n = 0; n < count; n++) {
+            int i = offset(sent);
+            SensorFrame.putBatchEntry(buf, ring.getLong(i), ring.getDouble(i + 8), ring.getDouble(i + 16),
+                                      ring.getDouble(i + 24));
+            sent++;
+        }
+    }
+
+    // The next waiting reading as a legacy update string; servers without
+    // SBP never ack, so the caller acknowledges it once it is written
+    synchronized String takeUpdate() {
+        int i = offset(sent);
+        sent++;
+        return "Sensor Update: Methane - " + ring.getDouble(i + 8) + ", CO2 - " + ring.getDouble(i + 16)
+                + ", Temperature - " + ring.getDouble(i + 24);
+    }
+
+    // The server received another readings readings, in order
+    synchronized void acknowledge(long readings) {
+        long covered = Math.min(readings, ackDebt);
+        ackDebt -= covered;
+        head = Math.min(sent, head + readings - covered);
+        ring.putLong(HEAD_OFFSET, head);
+        notifyAll();
+    }
+
+    // The connection was lost: whatever was in flight goes out again
+    synchronized void rewind() {
+        sent = head;
+        ackDebt = 0;
+    }
+
+    // Wakes the uploader for good; a spool file is forced to disk so the
+    // next run finds every reading not yet acked
+    synchronized void close() {
+        closed = true;
+        if (ring instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) ring).force();
+        }
+        if (spoolFile != null) {
+            try {
+                spoolFile.close(); // releases the lock
+            } catch (IOException e) {
+                // The mapping is forced already
+            }
+            spoolFile = null;
+        }
+        notifyAll();
+    }
+
+    synchronized long size() {
+        return tail - head;
+    }
+
+    synchronized long inFlight() {
+        return sent - head;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+}
@@ -1,181 +1,581 @@
-package ee402;
-
-import java.net.*;
-import java.io.*;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.util.Random;
-
-public class SensingDeviceClient {
-    private static int portNumber = 5050;
-    private Socket socket = null;
-    private ObjectOutputStream os = null;
-    private ObjectInputStream is = null;
-    
-    private String deviceName = "Default Device";
-    private JTextField deviceNameField;
-    private JLabel sensorLabel;
-    private JButton updateButton;
-    private Timer updateTimer;
-
-    // Other sensor-related variables
-    private double methaneValue;
-    private double co2Value;
-    private double temperatureValue;
-    private Random random = new Random();
-    
-    public SensingDeviceClient(String serverIP) {
-        if (!connectToServer(serverIP)) {
-            System.out.println("XX. Failed to open socket connection to: " + serverIP);
-            return;
-        }
-
-        // Initialize GUI
-        initializeGUI();
-
-        // Start the timer for sending updates every 10 seconds
-        startUpdateTimer();
-    }
-
-    private boolean connectToServer(String serverIP) {
-        try {
-            this.socket = new Socket(serverIP, portNumber);
-            this.os = new ObjectOutputStream(this.socket.getOutputStream());
-            this.is = new ObjectInputStream(this.socket.getInputStream());
-            System.out.println("00. -> Connected to Server:" + this.socket.getInetAddress()
-                    + " on port: " + this.socket.getPort());
-            System.out.println("    -> from local address: " + this.socket.getLocalAddress()
-                    + " and port: " + this.socket.getLocalPort());
-        } catch (Exception e) {
-            System.out.println("XX. Failed to Connect to the Server at port: " + portNumber);
-            System.out.println("    Exception: " + e.toString());
-            return false;
-        }
-        return true;
-    }
-
-    private void initializeGUI() {
-        // Create and set up the GUI components
-        JFrame frame = new JFrame("Sensing Device Client");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setLayout(new GridLayout(4, 1));
-
-        // Add a text field to change the device name
-        deviceNameField = new JTextField(deviceName);
-        frame.add(deviceNameField);
-
-        // Add a label to display sensor readings
-        sensorLabel = new JLabel("Sensor Readings: Methane - " + methaneValue +
-                                 ", CO2 - " + co2Value + ", Temperature - " + temperatureValue);
-        frame.add(sensorLabel);
-
-        // Add a button to manually trigger sensor updates
-        updateButton = new JButton("Update Sensor Readings");
-        updateButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                sendSensorUpdate();
-            }
-        });
-        frame.add(updateButton);
-
-        // Add an X button to disconnect from the server and close the application
-        JButton disconnectButton = new JButton("X");
-        disconnectButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                disconnectAndClose();
-            }
-        });
-        frame.add(disconnectButton);
-
-        // Display the frame
-        frame.pack();
-        frame.setVisible(true);
-    }
-
-    private void startUpdateTimer() {
-        // Use a Timer to send updates every 10 seconds
-        updateTimer = new Timer(10000, new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                sendSensorUpdate();
-            }
-        });
-        updateTimer.start();
-    }
-
-    private void sendSensorUpdate() {
-        // Update sensor values with configurable random noise
-        methaneValue = generateSensorValue(methaneValue);
-        co2Value = generateSensorValue(co2Value);
-        temperatureValue = generateSensorValue(temperatureValue);
-
-        // Construct a message with sensor readings
-        String updateMessage = "Sensor Update: Methane - " + methaneValue +
-                               ", CO2 - " + co2Value + ", Temperature - " + temperatureValue;
-
-        // Send the message to the server
-        send(updateMessage);
-
-        // Update the GUI with the new sensor readings
-        updateSensorLabel();
-    }
-
-    private double generateSensorValue(double currentValue) {
-        // Add random noise to simulate sensor readings
-        double noise = (random.nextDouble() - 0.5) * 2.0; // Random value between -1 and 1
-        return currentValue + noise;
-    }
-
-    private void updateSensorLabel() {
-        // Update the GUI label with the latest sensor readings
-        sensorLabel.setText("Sensor Readings: Methane - " + methaneValue +
-                            ", CO2 - " + co2Value + ", Temperature - " + temperatureValue);
-    }
-
-    private void send(Object o) {
-        try {
-            System.out.println("02. -> Sending (" + o + ") to the server.");
-            this.os.writeObject(o);
-            this.os.flush();
-        } catch (Exception e) {
-            System.out.println("XX." + e.getStackTrace());
-        }
-    }
-
-    private void disconnectAndClose() {
-        // Stop the update timer
-        updateTimer.stop();
-
-        // Close the socket and the application
-        closeSocket();
-        System.exit(0);
-    }
-
-    private void closeSocket() {
-        // Gracefully close the socket connection
-        try {
-            this.os.close();
-            this.is.close();
-            this.socket.close();
-        } catch (Exception e) {
-            System.out.println("XX. " + e.getStackTrace());
-        }
-    }
-
-    public static void main(String args[]) {
-    	String ip = "192.168.137.1";
-        System.out.println("**. Java Sensing Device Client Application - EE402 OOP Module, DCU");
-        if (ip != "") {
-            SensingDeviceClient sensingDevice = new SensingDeviceClient(ip);
-        } else {
-            System.out.println("Error: you must provide the address of the server");
-            System.out.println("Usage is:  java SensingDeviceClient x.x.x.x  (e.g., java SensingDeviceClient 192.168.7.2)");
-            System.out.println("      or:  java SensingDeviceClient hostname (e.g., java SensingDeviceClient localhost)");
-        }
-        System.out.println("**. End of Application.");
-    }
-}
+package ee402;
+
+import java.net.*;
+import java.io.*;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class SensingDeviceClient {
+    private static int portNumber = 5050;
+    private static final int HANDSHAKE_TIMEOUT = 2000;
+    private static final int MAX_REDIRECTS = 3;
+    // Until an SBP server sends a RATE directive the device samples every
+    // SAMPLE_MILLIS and reports every reading; after one it samples as told
+    // and skips readings that stay within the deadbands of the last one it
+    // reported, until the heartbeat is due. The deadbands are wide enough
+    // that a steady random walk (steps of up to 1) sampled every 10 s almost
+    // only sends heartbeats: 120 reports an hour against 131 at 5/5/1.
+    private static final int SAMPLE_MILLIS = Integer.getInteger("ee402.sampleMillis", 10000);
+    private static final double DEADBAND_METHANE = Double.parseDouble(System.getProperty("ee402.deadbandMethane", "10"));
+    private static final double DEADBAND_CO2 = Double.parseDouble(System.getProperty("ee402.deadbandCo2", "10"));
+    private static final double DEADBAND_TEMPERATURE =
+            Double.parseDouble(System.getProperty("ee402.deadbandTemperature", "3"));
+    // Batched upload (needs SBP): readings are buffered locally and shipped
+    // once BATCH_SIZE are waiting or the oldest is BATCH_LINGER ms old;
+    // a batch size of 1 sends every reading as it is taken
+    private static final int BATCH_SIZE = Math.min(Integer.getInteger("ee402.batchSize", 1),
+                                                   SensorFrame.MAX_BATCH_READINGS);
+    private static final long BATCH_LINGER = Long.getLong("ee402.batchLingerMillis", 1000);
+    private static final int BUFFER_READINGS = Integer.getInteger("ee402.bufferReadings", 10000);
+    private static final int MAX_IN_FLIGHT = 8 * BATCH_SIZE;
+    // Every reading is spooled until the server has it, by default in a file
+    // named after the device; "" keeps the spool in memory only
+    private static final String SPOOL_FILE = System.getProperty("ee402.spoolFile");
+    // Failed connects back off exponentially, with jitter, between these
+    private static final long RECONNECT_MIN = Long.getLong("ee402.reconnectMinMillis", 500);
+    private static final long RECONNECT_MAX = Long.getLong("ee402.reconnectMaxMillis", 30000);
+    // Readings per second a backlog is uploaded at after a reconnect (0: no limit)
+    private static final int DRAIN_RATE = Integer.getInteger("ee402.drainRate", 100);
+    // Clock sync with SBP servers: a burst of requests on connecting, then
+    // one every TIME_SYNC_MILLIS
+    private static final int TIME_SYNC_BURST = 4;
+    private static final long TIME_SYNC_MILLIS = Long.getLong("ee402.timeSyncMillis", 60000);
+    // Echo every string sent to the server on stdout, for debugging
+    private static final boolean VERBOSE = Boolean.getBoolean("ee402.verbose");
+    private Socket socket = null;
+    private ObjectOutputStream os = null;
+    private ObjectInputStream is = null;
+    private volatile boolean binaryProtocol = false;
+    private final String serverIP;
+    private String targetHost; // node that owns this device, uploader thread only
+    private int targetPort;
+    private final ReadingBuffer buffer;
+    private volatile boolean connected;
+    private volatile long reconnectAt; // next connect attempt, or when a server going away said to
+    private int reconnectAttempts;     // uploader thread only, like the rate limiter below
+    private double drainTokens;
+    private long lastRefill = System.nanoTime();
+    private final byte[] batchFrame = new byte[SensorFrame.MAX_FRAME_SIZE];
+    private final ByteBuffer batchBuffer = ByteBuffer.wrap(batchFrame);
+    private final ByteBuffer timeRequest = ByteBuffer.allocate(SensorFrame.TIME_REQUEST_SIZE);
+    private final ClockSync clock = new ClockSync();
+    private long nextTimeSync; // uploader thread only
+    private volatile int sampleMillis = SAMPLE_MILLIS;
+    private volatile long heartbeatMillis; // 0: report every reading
+    // Last reading reported and how many were skipped since; EDT only
+    private long reportedAt;
+    private double reportedMethane;
+    private double reportedCo2;
+    private double reportedTemperature;
+    private long suppressed;
+    private volatile long batchesSent;
+    private volatile long readingsBatched;
+    private volatile int largestBatch;
+    
+    private String deviceName = System.getProperty("ee402.deviceName", "Default Device");
+    private JTextField deviceNameField;
+    private JLabel sensorLabel;
+    private JLabel statsLabel;
+    private JButton updateButton;
+    private Timer updateTimer;
+
+    // Other sensor-related variables
+    private final SensorSimulator sensor = new SensorSimulator();
+    
+    // Readings are sampled into the spool whether or not the server is up; the
+    // uploader thread owns the connection and keeps (re)opening it
+    public SensingDeviceClient(String serverIP) {
+        this.serverIP = serverIP;
+        this.targetHost = serverIP;
+        this.targetPort = portNumber;
+        this.buffer = openSpool();
+        if (connectToServer()) {
+            connectionUp();
+        } else {
+            System.out.println("XX. Failed to open socket connection to: " + serverIP + ", retrying in the background");
+            reconnectAt = System.currentTimeMillis() + nextReconnectDelay();
+        }
+        startUploader();
+
+        // Initialize GUI
+        initializeGUI();
+
+        // Start the timer for sending updates every SAMPLE_MILLIS (10 seconds by default)
+        startUpdateTimer();
+    }
+
+    // Two clients on one spool would send each other's readings, so the
+    // default file is per device and the file is locked while in use
+    private ReadingBuffer openSpool() {
+        String spoolFile = SPOOL_FILE != null ? SPOOL_FILE
+                : "sensor-spool-" + deviceName.replaceAll("[^A-Za-z0-9._-]", "_") + ".dat";
+        if (!spoolFile.isEmpty()) {
+            try {
+                ReadingBuffer spool = new ReadingBuffer(Paths.get(spoolFile), BUFFER_READINGS);
+                if (spool.size() > 0) {
+                    System.out.println("00. -> " + spool.size() + " unsent readings in " + spoolFile);
+                }
+                return spool;
+            } catch (IOException e) {
+                System.out.println("XX. Unable to open spool file " + spoolFile + ", buffering in memory: " + e);
+            }
+        }
+        return new ReadingBuffer(BUFFER_READINGS);
+    }
+
+    // Connects to the node last known to own this device (at first the
+    // configured server) and follows up to MAX_REDIRECTS handshake redirects
+    // from a cluster; if the owner cannot be reached the next attempt starts
+    // over from the configured server
+    private boolean connectToServer() {
+        String host = this.targetHost;
+        int port = this.targetPort;
+        for (int hops = 0; ; hops++) {
+            this.os = null;
+            this.is = null;
+            try {
+                this.socket = new Socket();
+                this.socket.connect(new InetSocketAddress(host, port), HANDSHAKE_TIMEOUT);
+                this.socket.setSoTimeout(HANDSHAKE_TIMEOUT); // for the stream header
+                // Every write is a whole flushed frame; Nagle would only hold
+                // back time requests and skew the round trip
+                this.socket.setTcpNoDelay(true);
+                this.os = new ObjectOutputStream(this.socket.getOutputStream());
+                this.is = new ObjectInputStream(this.socket.getInputStream());
+                System.out.println("00. -> Connected to Server:" + this.socket.getInetAddress()
+                        + " on port: " + this.socket.getPort());
+                System.out.println("    -> from local address: " + this.socket.getLocalAddress()
+                        + " and port: " + this.socket.getLocalPort());
+                String reply = negotiateProtocol();
+                if (reply != null && reply.startsWith(SensorFrame.REDIRECT)) {
+                    if (hops == MAX_REDIRECTS) {
+                        throw new IOException("too many redirects");
+                    }
+                    String owner = reply.substring(SensorFrame.REDIRECT.length());
+                    System.out.println("    -> redirected to " + owner);
+                    closeSocket();
+                    host = owner.substring(0, owner.lastIndexOf(':'));
+                    port = Integer.parseInt(owner.substring(owner.lastIndexOf(':') + 1));
+                    continue;
+                }
+                this.binaryProtocol = SensorFrame.HELLO_ACK.equals(reply);
+                System.out.println("    -> using " + (this.binaryProtocol ? "binary SBP frames" : "string readings"));
+                this.targetHost = host;
+                this.targetPort = port;
+                return true;
+            } catch (Exception e) {
+                System.out.println("XX. Failed to Connect to the Server " + host + " at port: " + port);
+                System.out.println("    Exception: " + e.toString());
+                closeSocket();
+                this.targetHost = serverIP;
+                this.targetPort = portNumber;
+                return false;
+            }
+        }
+    }
+
+    // Offer the binary protocol; servers that don't understand it ignore
+    // the HELLO, so a missing answer within the timeout means legacy strings.
+    // Returns the server's answer, or null for no answer.
+    private String negotiateProtocol() throws IOException, ClassNotFoundException {
+        try {
+            this.socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            this.is.readObject(); // welcome message
+            // The spool relies on acks to know what the server has received
+            send(SensorFrame.HELLO + SensorFrame.ACK_OPTION + SensorFrame.DEVICE_OPTION + deviceName);
+            Object reply = this.is.readObject();
+            return reply instanceof String ? (String) reply : null;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            this.socket.setSoTimeout(0);
+        }
+    }
+
+    private void initializeGUI() {
+        // Create and set up the GUI components
+        JFrame frame = new JFrame("Sensing Device Client");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLayout(new GridLayout(5, 1));
+
+        // Add a text field to change the device name
+        deviceNameField = new JTextField(deviceName);
+        frame.add(deviceNameField);
+
+        // Add a label to display sensor readings
+        sensorLabel = new JLabel("Sensor Readings: Methane - " + sensor.methane +
+                                 ", CO2 - " + sensor.co2 + ", Temperature - " + sensor.temperature);
+        frame.add(sensorLabel);
+
+        // Add a label for the upload buffer and batch statistics
+        statsLabel = new JLabel(describeUpload());
+        frame.add(statsLabel);
+
+        // Add a button to manually trigger sensor updates
+        updateButton = new JButton("Update Sensor Readings");
+        updateButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                sendSensorUpdate(true);
+            }
+        });
+        frame.add(updateButton);
+
+        // Add an X button to disconnect from the server and close the application
+        JButton disconnectButton = new JButton("X");
+        disconnectButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                disconnectAndClose();
+            }
+        });
+        frame.add(disconnectButton);
+
+        // Display the frame
+        frame.pack();
+        frame.setVisible(true);
+    }
+
+    private void startUpdateTimer() {
+        // Use a Timer to send updates every SAMPLE_MILLIS, or as the server directs
+        updateTimer = new Timer(sampleMillis, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                sendSensorUpdate(false);
+            }
+        });
+        updateTimer.start();
+    }
+
+    private void sendSensorUpdate(boolean forced) {
+        // Update sensor values with configurable random noise
+        sensor.step();
+
+        // Stamped on the server's clock; the uploader thread ships it once
+        // the server can take it, lingering by the local clock
+        long now = clock.now();
+        if (forced || movedPastDeadband() || now - reportedAt >= heartbeatMillis) {
+            buffer.add(now, sensor.methane, sensor.co2, sensor.temperature);
+            reportedAt = now;
+            reportedMethane = sensor.methane;
+            reportedCo2 = sensor.co2;
+            reportedTemperature = sensor.temperature;
+        } else {
+            suppressed++;
+        }
+
+        // Update the GUI with the new sensor readings
+        updateSensorLabel();
+        retime();
+    }
+
+    private boolean movedPastDeadband() {
+        return Math.abs(sensor.methane - reportedMethane) > DEADBAND_METHANE
+                || Math.abs(sensor.co2 - reportedCo2) > DEADBAND_CO2
+                || Math.abs(sensor.temperature - reportedTemperature) > DEADBAND_TEMPERATURE;
+    }
+
+    // From the ack reader: the sampling the server asks for
+    private void applyRate(int millis, long heartbeat) {
+        heartbeatMillis = heartbeat;
+        sampleMillis = millis;
+        SwingUtilities.invokeLater(this::retime);
+    }
+
+    // On the EDT: moves the timer to the directed interval, restarting it
+    // when that is shorter so the faster sampling starts now rather than
+    // after the tick already scheduled
+    private void retime() {
+        Timer timer = updateTimer;
+        int millis = sampleMillis;
+        if (timer == null || timer.getDelay() == millis) {
+            return;
+        }
+        boolean sooner = millis < timer.getDelay();
+        timer.setDelay(millis);
+        timer.setInitialDelay(millis);
+        if (sooner) {
+            timer.restart();
+        }
+    }
+
+    private void updateSensorLabel() {
+        // Update the GUI label with the latest sensor readings
+        sensorLabel.setText("Sensor Readings: Methane - " + sensor.methane +
+                            ", CO2 - " + sensor.co2 + ", Temperature - " + sensor.temperature);
+        statsLabel.setText(describeUpload());
+    }
+
+    private String describeUpload() {
+        long batches = batchesSent;
+        return "Buffered: " + buffer.size() + " (" + buffer.inFlight() + " in flight), batches: " + batches
+                + ", avg/max batch: " + (batches == 0 ? 0 : readingsBatched / batches) + "/" + largestBatch
+                + ", dropped: " + buffer.dropped() + ", sampling every " + sampleMillis + " ms, skipped: "
+                + suppressed + describeClock() + (connected ? "" : " - reconnecting");
+    }
+
+    private String describeClock() {
+        long roundTrip = clock.getRoundTrip();
+        return roundTrip < 0 ? "" : ", clock offset: " + clock.getOffset() + " ms (rtt " + roundTrip + " ms)";
+    }
+
+    private void startUploader() {
+        Thread uploader = new Thread(this::uploadBatches, "batch-uploader");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    // Batches are pipelined: up to MAX_IN_FLIGHT readings are sent before the
+    // first ack comes back (servers without SBP get one string at a time and
+    // never ack). While the server is unreachable the spool keeps sampling and
+    // the uploader retries with backoff, or first waits out the delay a
+    // server going away asked for.
+    private void uploadBatches() {
+        try {
+            while (true) {
+                if (!connected) {
+                    long wait = reconnectAt - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                        continue;
+                    }
+                    if (!reconnect()) {
+                        long delay = nextReconnectDelay();
+                        System.out.println("    -> retrying in " + delay + " ms, " + buffer.size() + " readings spooled");
+                        reconnectAt = System.currentTimeMillis() + delay;
+                        continue;
+                    }
+                }
+                boolean binary = binaryProtocol;
+                if (binary && System.currentTimeMillis() >= nextTimeSync) {
+                    syncClock(nextTimeSync == 0 ? TIME_SYNC_BURST : 1);
+                    continue;
+                }
+                int count = buffer.awaitBatch(binary ? BATCH_SIZE : 1, BATCH_LINGER, binary ? MAX_IN_FLIGHT : 1);
+                if (count == 0) {
+                    return;
+                }
+                pace(count);
+                ObjectInputStream stream = this.is;
+                try {
+                    sendBatch(stream, binary, count);
+                } catch (IOException e) {
+                    connectionLost(stream);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Client closing
+        }
+    }
+
+    // Sends the next count readings unless the connection has gone away
+    // meanwhile, in which case they stay waiting for the next one. Holding
+    // the lock serverGoingAway() takes means a batch is either on the wire
+    // before a GOAWAY is handled, and so counted in flight, or not sent on
+    // that connection at all. The write cannot block for long: at most
+    // MAX_IN_FLIGHT readings are ever unacked.
+    private synchronized void sendBatch(ObjectInputStream stream, boolean binary, int count) throws IOException {
+        if (!connected || stream != this.is) {
+            return;
+        }
+        if (binary) {
+            batchBuffer.clear();
+            buffer.encodeBatch(batchBuffer, deviceName, count);
+            this.os.write(batchFrame, 0, batchBuffer.position());
+            this.os.flush();
+        } else {
+            send(buffer.takeUpdate());
+            buffer.acknowledge(1);
+        }
+        batchesSent++;
+        readingsBatched += count;
+        largestBatch = Math.max(largestBatch, count);
+    }
+
+    // Requests go out back to back; the ack reader takes in the responses and
+    // the clock filter keeps the one least delayed
+    private void syncClock(int requests) {
+        ObjectInputStream stream = this.is;
+        try {
+            for (int i = 0; i < requests; i++) {
+                timeRequest.clear();
+                SensorFrame.encodeTimeRequest(timeRequest, System.currentTimeMillis());
+                this.os.write(timeRequest.array());
+                this.os.flush();
+            }
+        } catch (IOException e) {
+            connectionLost(stream);
+        }
+        nextTimeSync = System.currentTimeMillis() + TIME_SYNC_MILLIS;
+    }
+
+    private boolean reconnect() {
+        if (!connectToServer()) {
+            return false;
+        }
+        connectionUp();
+        return true;
+    }
+
+    private void connectionUp() {
+        buffer.rewind();
+        reconnectAttempts = 0;
+        nextTimeSync = 0;
+        clock.reset();
+        connected = true;
+        if (binaryProtocol) {
+            startAckReader();
+        }
+    }
+
+    // Exponential backoff with equal jitter: attempt n waits between half and
+    // all of min(RECONNECT_MAX, RECONNECT_MIN * 2^n), so devices that lost the
+    // server together do not retry in lockstep
+    private long nextReconnectDelay() {
+        long ceiling = Math.min(RECONNECT_MAX, RECONNECT_MIN << Math.min(reconnectAttempts++, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    // Token bucket over readings, holding at most one batch: live sampling
+    // never waits, but a backlog spooled during an outage goes out at
+    // DRAIN_RATE rather than all at once when the whole fleet reconnects
+    private void pace(int readings) throws InterruptedException {
+        if (DRAIN_RATE <= 0) {
+            return;
+        }
+        refillTokens();
+        if (drainTokens < readings) {
+            TimeUnit.NANOSECONDS.sleep((long) ((readings - drainTokens) * 1e9 / DRAIN_RATE));
+            refillTokens();
+        }
+        drainTokens -= readings;
+    }
+
+    private void refillTokens() {
+        long now = System.nanoTime();
+        drainTokens = Math.min(BATCH_SIZE, drainTokens + (now - lastRefill) * (double) DRAIN_RATE / 1e9);
+        lastRefill = now;
+    }
+
+    private void startAckReader() {
+        ObjectInputStream stream = this.is;
+        Socket connection = this.socket;
+        Thread reader = new Thread(() -> readAcks(stream, connection), "ack-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Acks carry the cumulative count of readings the server has received on
+    // this connection; each one retires that many readings from the buffer.
+    // After a GOAWAY no new batches go out (see sendBatch), and the
+    // connection is closed once the ones in flight are acked, so none has to
+    // be sent twice. The server acks everything it has received just ahead
+    // of the GOAWAY, so that usually happens at once.
+    private void readAcks(ObjectInputStream stream, Socket connection) {
+        byte[] scratch = new byte[SensorFrame.MAX_FRAME_SIZE];
+        long acked = 0;
+        boolean goingAway = false;
+        try {
+            while (true) {
+                int type = SensorFrame.readFrame(stream, scratch);
+                if (type == SensorFrame.TYPE_ACK) {
+                    long count = SensorFrame.readU32(scratch);
+                    if (count > acked) {
+                        buffer.acknowledge(count - acked);
+                        acked = count;
+                    }
+                } else if (type == SensorFrame.TYPE_RATE) {
+                    applyRate((int) SensorFrame.readU32(scratch, 0), SensorFrame.readU32(scratch, 1));
+                } else if (type == SensorFrame.TYPE_TIME_RESPONSE) {
+                    clock.sample(SensorFrame.readLong(scratch, 0), SensorFrame.readLong(scratch, 1),
+                            SensorFrame.readLong(scratch, 2), System.currentTimeMillis());
+                } else if (type == SensorFrame.TYPE_GOAWAY) {
+                    goingAway = true;
+                    serverGoingAway(stream, SensorFrame.readU32(scratch));
+                }
+                if (goingAway && buffer.inFlight() == 0) {
+                    connection.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(stream);
+        }
+    }
+
+    private synchronized void serverGoingAway(ObjectInputStream stream, long reconnectAfter) {
+        if (!connected || stream != this.is) {
+            return;
+        }
+        reconnectAt = System.currentTimeMillis() + reconnectAfter;
+        connected = false;
+        System.out.println("00. Server shutting down, reconnecting in " + reconnectAfter + " ms");
+    }
+
+    // Called by the uploader and the ack reader; only the first report for
+    // the current connection counts
+    private synchronized void connectionLost(ObjectInputStream stream) {
+        if (!connected || stream != this.is) {
+            return;
+        }
+        connected = false;
+        System.out.println("XX. Lost connection to the server, spooling readings");
+        closeSocket();
+    }
+
+    // Failures reach the caller, which treats them as a lost connection
+    private void send(Object o) throws IOException {
+        if (VERBOSE) {
+            System.out.println("02. -> Sending (" + o + ") to the server.");
+        }
+        this.os.writeObject(o);
+        this.os.flush();
+    }
+
+    private void disconnectAndClose() {
+        // Stop the update timer
+        updateTimer.stop();
+        buffer.close();
+
+        // Close the socket and the application
+        closeSocket();
+        System.exit(0);
+    }
+
+    private void closeSocket() {
+        if (this.socket == null) {
+            return;
+        }
+        // Gracefully close the socket connection
+        try {
+            if (this.os != null) {
+                this.os.close();
+            }
+            if (this.is != null) {
+                this.is.close();
+            }
+            this.socket.close();
+        } catch (Exception e) {
+            System.out.println("XX. Exception Occurred on Closing: " + e);
+        }
+    }
+
+    public static void main(String args[]) {
+    	String ip = "192.168.137.1";
+        System.out.println("**. Java Sensing Device Client Application - EE402 OOP Module, DCU");
+        if (ip != "") {
+            SensingDeviceClient sensingDevice = new SensingDeviceClient(ip);
+        } else {
+            System.out.println("Error: you must provide the address of the server");
+            System.out.println("Usage is:  java SensingDeviceClient x.x.x.x  (e.g., java SensingDeviceClient 192.168.7.2)");
+            System.out.println("      or:  java SensingDeviceClient hostname (e.g., java SensingDeviceClient localhost)");
+        }
+        System.out.println("**. End of Application.");
+    }
+}
@@ -0,0 +1,136 @@
+package ee402;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Client side of the compact binary sensor protocol (SBP). Once the server
+// acknowledges HELLO, readings are written as fixed-width frames
+//
+//   u8 version | u8 type | u16 payload length | payload
+//
+// with a READING payload of a 16-byte device id (ASCII, zero padded),
+// an i64 timestamp (ms since epoch) and the methane, CO2 and temperature
+// values as f64. Servers that do not answer HELLO get the legacy strings.
+// A BATCH frame carries up to MAX_BATCH_READINGS readings of one device:
+// the device id, a u16 count, then per reading the timestamp and the three
+// values. Saying HELLO + ACK_OPTION asks the server for cumulative ACK frames, whose
+// payload is the u32 count of readings it has received on the connection.
+// Adding DEVICE_OPTION and the device id lets a cluster node answer
+// REDIRECT + "host:port" instead when another node owns the device.
+// A server about to shut down sends GOAWAY, whose payload is the u32 number
+// of ms to wait before reconnecting.
+// TIME_REQUEST carries the i64 time the device sent it, t0; the server's
+// TIME_RESPONSE echoes t0 and adds its i64 receive and transmit times t1, t2.
+// RATE sets the u32 sample interval and u32 heartbeat, both in ms.
+class SensorFrame {
+    static final String HELLO = "Hello: SBP/1";
+    static final String HELLO_ACK = "Protocol: SBP/1";
+    static final String ACK_OPTION = "; ack";
+    static final String DEVICE_OPTION = "; device=";
+    static final String REDIRECT = "Redirect: ";
+
+    static final byte VERSION = 1;
+    static final byte TYPE_READING = 1;
+    static final byte TYPE_ACK = 2;
+    static final byte TYPE_BATCH = 3;
+    static final byte TYPE_GOAWAY = 5;
+    static final byte TYPE_TIME_REQUEST = 6;
+    static final byte TYPE_TIME_RESPONSE = 7;
+    static final byte TYPE_RATE = 8;
+    static final int HEADER_SIZE = 4;
+    static final int DEVICE_ID_SIZE = 16;
+    static final int READING_PAYLOAD_SIZE = DEVICE_ID_SIZE + 8 + 3 * 8;
+    static final int READING_SIZE = HEADER_SIZE + READING_PAYLOAD_SIZE;
+    static final int TIME_REQUEST_SIZE = HEADER_SIZE + 8;
+    static final int MAX_FRAME_SIZE = 4096;
+    static final int BATCH_HEADER_SIZE = DEVICE_ID_SIZE + 2;
+    static final int BATCH_ENTRY_SIZE = 8 + 3 * 8;
+    static final int MAX_BATCH_READINGS = (MAX_FRAME_SIZE - HEADER_SIZE - BATCH_HEADER_SIZE) / BATCH_ENTRY_SIZE;
+
+    private SensorFrame() {
+    }
+
+    static void encodeReading(ByteBuffer buf, String deviceName, long timestamp,
+                              double methane, double co2, double temperature) {
+        buf.put(VERSION);
+        buf.put(TYPE_READING);
+        buf.putShort((short) READING_PAYLOAD_SIZE);
+        putDeviceId(buf, deviceName);
+        buf.putLong(timestamp);
+        buf.putDouble(methane);
+        buf.putDouble(co2);
+        buf.putDouble(temperature);
+    }
+
+    // Followed by count putBatchEntry() calls
+    static void encodeBatchHeader(ByteBuffer buf, String deviceName, int count) {
+        buf.put(VERSION);
+        buf.put(TYPE_BATCH);
+        buf.putShort((short) (BATCH_HEADER_SIZE + count * BATCH_ENTRY_SIZE));
+        putDeviceId(buf, deviceName);
+        buf.putShort((short) count);
+    }
+
+    static void putBatchEntry(ByteBuffer buf, long timestamp, double methane, double co2, double temperature) {
+        buf.putLong(timestamp);
+        buf.putDouble(methane);
+        buf.putDouble(co2);
+        buf.putDouble(temperature);
+    }
+
+    static void encodeTimeRequest(ByteBuffer buf, long originate) {
+        buf.put(VERSION);
+        buf.put(TYPE_TIME_REQUEST);
+        buf.putShort((short) (TIME_REQUEST_SIZE - HEADER_SIZE));
+        buf.putLong(originate);
+    }
+
+    // Reads the next frame from the server into scratch (MAX_FRAME_SIZE bytes)
+    // and returns its type; the u32 an ACK or GOAWAY carries is then readU32(),
+    // the two of a RATE readU32(scratch, 0..1), the times of a TIME_RESPONSE
+    // readLong(scratch, 0..2)
+    static int readFrame(DataInput in, byte[] scratch) throws IOException {
+        in.readFully(scratch, 0, HEADER_SIZE);
+        int length = ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+        if (scratch[0] != VERSION || HEADER_SIZE + length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("bad frame header: version " + scratch[0] + ", length " + length);
+        }
+        in.readFully(scratch, HEADER_SIZE, length);
+        if ((scratch[1] == TYPE_ACK || scratch[1] == TYPE_GOAWAY) && length < 4
+                || scratch[1] == TYPE_RATE && length < 8
+                || scratch[1] == TYPE_TIME_RESPONSE && length < 3 * 8) {
+            throw new StreamCorruptedException("short frame: type " + scratch[1] + ", length " + length);
+        }
+        return scratch[1];
+    }
+
+    static long readU32(byte[] scratch) {
+        return readU32(scratch, 0);
+    }
+
+    // The index-th u32 of the payload
+    static long readU32(byte[] scratch, int index) {
+        return ByteBuffer.wrap(scratch, HEADER_SIZE + 4 * index, 4).getInt() & 0xffffffffL;
+    }
+
+    static long readLong(byte[] scratch, int index) {
+        return ByteBuffer.wrap(scratch, HEADER_SIZE + 8 * index, 8).getLong();
+    }
+
+    // Returns the received count if the next frame is an ACK, or -1 for any other type
+    static long readAck(DataInput in, byte[] scratch) throws IOException {
+        return readFrame(in, scratch) == TYPE_ACK ? readU32(scratch) : -1;
+    }
+
+    static void putDeviceId(ByteBuffer buf, String deviceName) {
+        byte[] name = deviceName.getBytes(StandardCharsets.US_ASCII);
+        int length = Math.min(name.length, DEVICE_ID_SIZE);
+        buf.put(name, 0, length);
+        for (int i = length; i < DEVICE_ID_SIZE; i++) {
+            buf.put((byte) 0);
+        }
+    }
+}
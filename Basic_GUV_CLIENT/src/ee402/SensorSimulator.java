@@ -0,0 +1,33 @@
+package ee402;
+
+import java.util.Random;
+
+// Random-walk sensor readings, shared by the GUI client and the load
+// generator: every step adds noise between -1 and 1 to each channel.
+class SensorSimulator {
+    private final Random random;
+
+    double methane;
+    double co2;
+    double temperature;
+
+    SensorSimulator() {
+        this(new Random());
+    }
+
+    SensorSimulator(Random random) {
+        this.random = random;
+    }
+
+    void step() {
+        methane = next(methane);
+        co2 = next(co2);
+        temperature = next(temperature);
+    }
+
+    private double next(double currentValue) {
+        // Add random noise to simulate sensor readings
+        double noise = (random.nextDouble() - 0.5) * 2.0; // Random value between -1 and 1
+        return currentValue + noise;
+    }
+}
@@ -0,0 +1,789 @@
+package ee402;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Throughput and allocation benchmarks for the server's hot paths: parsing
+// readings, encoding them on the client, aggregating them for the gauges and
+// pushing them end to end through a loopback socket.
+//
+// This is not JMH. The tree has no build system to run JMH from, so it is a
+// small harness that borrows JMH's method: each benchmark runs in a fresh
+// JVM fork, warmup iterations are discarded, the score is the mean of the
+// measurement iterations with a 99.9% Student-t confidence error, results
+// are fed to a Blackhole so the JIT cannot drop the work, and allocation is
+// measured from per-thread allocation counters, the same source as JMH's gc
+// profiler. The JSON report has its own schema (below), for diffing runs of
+// this harness against each other, not for JMH tooling.
+//
+//   javac -d out src/ee402/*.java bench/ee402/*.java
+//   java -cp out [-Dee402.ingest=nio] [-Dee402.handlerThreads=virtual] \
+//       [-Dbench.forks=1] [-Dbench.warmupIterations=3] [-Dbench.iterations=5] \
+//       [-Dbench.only=name] ee402.SensorBenchmarks [results.json] [devices] [connections]
+//
+// bench.forks=0 runs everything in this JVM, which is quicker but lets one
+// benchmark's JIT profile and heap leak into the next.
+//
+// The connections benchmark holds many mostly idle devices open against the
+// threaded engine to compare handler thread modes; 10k connections needs
+// "ulimit -n" above 20000 since both ends run in this process.
+public class SensorBenchmarks {
+    private static final int FORKS = Integer.getInteger("bench.forks", 1);
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmupIterations", 3);
+    private static final int MEASUREMENT_ITERATIONS = Math.max(2, Integer.getInteger("bench.iterations", 5));
+    private static final String ONLY = System.getProperty("bench.only");
+    private static final boolean FORKED = Boolean.getBoolean("bench.forked"); // set on the forks themselves
+    private static final double CONFIDENCE = 0.999;
+    private static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 1000);
+    private static final int CONNECTION_RATE = Integer.getInteger("bench.connectionRate", 1); // readings/s each
+    private static final String READING = "Sensor Update: Methane - 1.2345678901234567, "
+            + "CO2 - 2.3456789012345678, Temperature - 21.456789012345678";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final Blackhole BLACKHOLE = new Blackhole();
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    interface Counter {
+        long count();
+    }
+
+    interface Benchmark {
+        Result run() throws Exception;
+    }
+
+    // Sinks values the way JMH's Blackhole does: the JIT has to compute each
+    // value to compare it with two volatile fields that never both match it
+    static final class Blackhole {
+        private volatile double d1 = 1;
+        private volatile double d2 = 2;
+        private double leaked;
+
+        void consume(double value) {
+            if (value == d1 & value == d2) {
+                leaked = value; // unreachable, since d1 != d2
+            }
+        }
+    }
+
+    static class Result {
+        final String name;
+        double[] opsPerSecond = new double[MEASUREMENT_ITERATIONS];
+        double allocBytesPerOp;
+        double allocMBPerSecond;
+
+        final List<Metric> extraMetrics = new ArrayList<>();
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double v : opsPerSecond) {
+                sum += v;
+            }
+            return sum / opsPerSecond.length;
+        }
+
+        // Half-width of the CONFIDENCE interval around the mean
+        double error() {
+            int n = opsPerSecond.length;
+            double mean = mean();
+            double squares = 0;
+            for (double v : opsPerSecond) {
+                squares += (v - mean) * (v - mean);
+            }
+            return studentT(1 - (1 - CONFIDENCE) / 2, n - 1) * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+    }
+
+    static class Metric {
+        final String name;
+        final double score;
+        final String unit;
+
+        Metric(String name, double score, String unit) {
+            this.name = name;
+            this.score = score;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String output = args.length > 0 ? args[0] : "bench-results.json";
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        Map<String, Benchmark> benchmarks = benchmarks(devices, connections);
+        if (ONLY != null && !benchmarks.containsKey(ONLY)) {
+            System.out.println("XX. No benchmark named " + ONLY + "; there are " + benchmarks.keySet());
+            System.exit(1);
+        }
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Benchmark> benchmark : benchmarks.entrySet()) {
+            if (ONLY != null && !ONLY.equals(benchmark.getKey())) {
+                continue;
+            }
+            if (FORKS > 0 && !FORKED) {
+                results.add(fork(benchmark.getKey(), args));
+            } else {
+                results.add(benchmark.getValue().run());
+            }
+        }
+        if (core != null) {
+            core.shutDown();
+        }
+
+        if (FORKED) {
+            // Hand the result back to the parent
+            writeRaw(output, results);
+            System.exit(0);
+        }
+        writeJson(output, results);
+        for (Result result : results) {
+            System.out.printf(Locale.ROOT, "%-40s %14.1f +- %10.1f ops/s %10.1f B/op %8.1f MB/s%n", result.name,
+                    result.mean(), result.error(), result.allocBytesPerOp, result.allocMBPerSecond);
+            for (Metric metric : result.extraMetrics) {
+                System.out.printf(Locale.ROOT, "    %-36s %14.1f %s%n", metric.name, metric.score, metric.unit);
+            }
+        }
+        System.out.println("**. Results written to " + output);
+        System.exit(0);
+    }
+
+    // Every benchmark by name, in the order they run
+    private static Map<String, Benchmark> benchmarks(int devices, int connections) {
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        Random random = new Random(42);
+
+        // SensorDevice.run(): the legacy string parse and the SBP frame decode
+        benchmarks.put("parse.legacyString", () -> {
+            CommandRegistry.Session session = benchSession();
+            return measure("parse.legacyString", () -> core().getCommands().dispatch(session, READING));
+        });
+        benchmarks.put("parse.sbpFrame", () -> {
+            DeviceState device = benchSession().getDevice();
+            ByteBuffer frames = ByteBuffer.allocate(SensorFrame.READING_SIZE);
+            SensorFrame.encodeReading(frames, "bench", 0L, 1.23, 2.34, 21.45);
+            SensorFrame frame = new SensorFrame();
+            return measure("parse.sbpFrame", () -> {
+                frames.clear();
+                BLACKHOLE.consume(core().updateSensorReadings(device, frame, frame.decode(frames)));
+            });
+        });
+
+        // SensingDeviceClient.send(): ObjectOutputStream encoding of a reading
+        benchmarks.put("encode.objectStreamString", () -> {
+            ObjectOutputStream objects = new ObjectOutputStream(OutputStream.nullOutputStream());
+            return measure("encode.objectStreamString", () -> {
+                objects.writeObject("Sensor Update: Methane - " + random.nextDouble() + ", CO2 - "
+                        + random.nextDouble() + ", Temperature - " + random.nextDouble());
+                objects.flush();
+                objects.reset(); // otherwise the handle table keeps every string for the whole run
+            });
+        });
+        benchmarks.put("encode.sbpFrame", () -> {
+            ObjectOutputStream objects = new ObjectOutputStream(OutputStream.nullOutputStream());
+            byte[] encoded = new byte[SensorFrame.READING_SIZE];
+            ByteBuffer encodeBuffer = ByteBuffer.wrap(encoded);
+            return measure("encode.sbpFrame", () -> {
+                encodeBuffer.clear();
+                SensorFrame.encodeReading(encodeBuffer, "bench", System.currentTimeMillis(),
+                        random.nextDouble(), random.nextDouble(), random.nextDouble());
+                objects.write(encoded);
+                objects.flush();
+            });
+        });
+
+        // Gauge aggregation: the original boxed-list streams against WindowedStats
+        benchmarks.put("aggregate.listStreams", () -> {
+            List<Double> readings = new ArrayList<>();
+            return measure("aggregate.listStreams", () -> {
+                readings.add(random.nextDouble());
+                if (readings.size() > SensorServer.ANALYSIS_WINDOW) {
+                    readings.remove(0);
+                }
+                BLACKHOLE.consume(readings.stream().mapToDouble(Double::doubleValue).average().orElse(0.0));
+                BLACKHOLE.consume(readings.stream().mapToDouble(Double::doubleValue).min().orElse(0.0));
+                BLACKHOLE.consume(readings.stream().mapToDouble(Double::doubleValue).max().orElse(0.0));
+            });
+        });
+        benchmarks.put("aggregate.windowedStats", () -> {
+            WindowedStats stats = WindowedStats.ofCount(SensorServer.ANALYSIS_WINDOW);
+            WindowedStats.Summary summary = new WindowedStats.Summary();
+            return measure("aggregate.windowedStats", () -> {
+                stats.add(random.nextDouble());
+                stats.read(summary);
+                BLACKHOLE.consume(summary.getMean());
+                BLACKHOLE.consume(summary.min);
+                BLACKHOLE.consume(summary.max);
+            });
+        });
+
+        // Alert stage: every rule kind evaluated on a steady reading, where no
+        // rule changes state and nothing should be allocated
+        benchmarks.put("alerts.evaluate", () -> {
+            AlertEngine alerts = new AlertEngine(AlertRule.parseAll("methane > 5000; methane rate > 100; "
+                    + "methane z > 6; co2 > 5000; co2 < 1; co2 rate > 100; temperature z > 6"), 0.1, 20);
+            long[] alertClock = {0};
+            return measure("alerts.evaluate", () -> {
+                alertClock[0] += 1000;
+                alerts.onReading("bench", alertClock[0], 100 + random.nextDouble(), 400 + random.nextDouble(),
+                        21 + random.nextDouble());
+            });
+        });
+
+        // Rollups: one bucket update per resolution, a new second every 16 readings
+        benchmarks.put("rollup.add", () -> {
+            RollupStore rollups = new RollupStore(900, 1440, 744, 1);
+            long[] rollupClock = {System.currentTimeMillis()};
+            return measure("rollup.add", () -> {
+                rollupClock[0] += 64;
+                rollups.onReading("bench", rollupClock[0], random.nextDouble(), random.nextDouble(),
+                        random.nextDouble());
+            });
+        });
+
+        // Write-ahead log cost per durability level
+        benchmarks.put("wal.none.1writers", () -> measureLog("none", 1));
+        benchmarks.put("wal.batch.1writers", () -> measureLog("batch", 1));
+        benchmarks.put("wal.per-reading.1writers", () -> measureLog("per-reading", 1));
+        benchmarks.put("wal.per-reading.8writers", () -> measureLog("per-reading", 8));
+
+        // End to end: readings per second through a loopback socket
+        String mode = ServerConfig.isNioIngest() ? "nio" : "threads";
+        benchmarks.put("loopback." + mode + ".string." + devices + "devices", () -> measureLoopback(devices, false));
+        benchmarks.put("loopback." + mode + ".sbp." + devices + "devices", () -> measureLoopback(devices, true));
+        if (!ServerConfig.isNioIngest() && connections > 0) {
+            benchmarks.put("connections." + connections, () -> measureConnections(connections));
+        }
+        return benchmarks;
+    }
+
+    // The server the parse benchmarks feed, created by the first that needs it
+    private static SensorServer core;
+    private static CommandRegistry.Session session;
+
+    private static SensorServer core() {
+        if (core == null) {
+            core = new SensorServer();
+        }
+        return core;
+    }
+
+    private static CommandRegistry.Session benchSession() {
+        if (session == null) {
+            DeviceState device = core().connectDevice("bench");
+            session = new CommandRegistry.Session() {
+                @Override
+                public DeviceState getDevice() {
+                    return device;
+                }
+
+                @Override
+                public void reply(String message) {
+                }
+            };
+        }
+        return session;
+    }
+
+    // Runs one benchmark in FORKS fresh JVMs, with this JVM's options and
+    // class path, and pools their measurement iterations
+    private static Result fork(String name, String[] args) throws Exception {
+        Result pooled = null;
+        for (int f = 0; f < FORKS; f++) {
+            Path raw = Files.createTempFile("ee402-bench", ".tsv");
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!option.startsWith("-Dbench.only=") && !option.startsWith("-Dbench.forked=")) {
+                    command.add(option);
+                }
+            }
+            command.add("-Dbench.only=" + name);
+            command.add("-Dbench.forked=true");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SensorBenchmarks.class.getName());
+            command.add(raw.toString());
+            for (int i = 1; i < args.length; i++) {
+                command.add(args[i]);
+            }
+            System.out.println("**. " + name + ", fork " + (f + 1) + " of " + FORKS);
+            int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+            List<Result> results = readRaw(raw);
+            Files.delete(raw);
+            if (status != 0 || results.size() != 1) {
+                throw new IOException("fork for " + name + " failed with status " + status);
+            }
+            Result result = results.get(0);
+            if (pooled == null) {
+                pooled = result;
+            } else {
+                double[] all = Arrays.copyOf(pooled.opsPerSecond, pooled.opsPerSecond.length
+                        + result.opsPerSecond.length);
+                System.arraycopy(result.opsPerSecond, 0, all, pooled.opsPerSecond.length,
+                        result.opsPerSecond.length);
+                // Allocation and extra metrics: the mean over the forks
+                pooled.allocBytesPerOp = (pooled.allocBytesPerOp * f + result.allocBytesPerOp) / (f + 1);
+                pooled.allocMBPerSecond = (pooled.allocMBPerSecond * f + result.allocMBPerSecond) / (f + 1);
+                pooled.opsPerSecond = all;
+            }
+        }
+        return pooled;
+    }
+
+    // Quantile p of Student's t distribution with df degrees of freedom, by
+    // bisection on its CDF, 1 - I(df / (df + t^2); df/2, 1/2) / 2 for t > 0
+    static double studentT(double p, int df) {
+        double low = 0;
+        double high = 1;
+        while (1 - 0.5 * incompleteBeta(df / (df + high * high), df / 2.0, 0.5) < p) {
+            high *= 2;
+        }
+        for (int i = 0; i < 100; i++) {
+            double t = (low + high) / 2;
+            if (1 - 0.5 * incompleteBeta(df / (df + t * t), df / 2.0, 0.5) < p) {
+                low = t;
+            } else {
+                high = t;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    // Regularized incomplete beta function I_x(a, b), from its continued
+    // fraction (modified Lentz), using the symmetry for x past the mean
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0 || x >= 1) {
+            return x <= 0 ? 0 : 1;
+        }
+        if (x > (a + 1) / (a + b + 2)) {
+            return 1 - incompleteBeta(1 - x, b, a);
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x)
+                + b * Math.log(1 - x)) / a;
+        double tiny = 1e-300;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double f = d;
+        for (int m = 1; m <= 300; m++) {
+            for (int odd = 0; odd < 2; odd++) {
+                double numerator = odd == 0
+                        ? m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m))
+                        : -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+                d = 1 + numerator * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + numerator / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                f *= c * d;
+            }
+            if (Math.abs(c * d - 1) < 1e-15) {
+                break;
+            }
+        }
+        return front * f;
+    }
+
+    // Lanczos approximation (g = 7, n = 9)
+    private static double logGamma(double x) {
+        double[] coefficients = {0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+            771.32342877765313, -176.61502916214059, 12.507343278686905, -0.13857109526572012,
+            9.9843695780195716e-6, 1.5056327351493116e-7};
+        if (x < 0.5) {
+            return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+        }
+        x -= 1;
+        double sum = coefficients[0];
+        for (int i = 1; i < coefficients.length; i++) {
+            sum += coefficients[i] / (x + i);
+        }
+        double t = x + 7.5;
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+    }
+
+    // Runs op back to back on the calling thread for each iteration
+    static Result measure(String name, Operation op) throws Exception {
+        Result result = new Result(name);
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+        for (int i = -WARMUP_ITERATIONS; i < MEASUREMENT_ITERATIONS; i++) {
+            long bytes = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long deadline = start + ITERATION_MILLIS * 1000000;
+            long ops = 0;
+            long now;
+            do {
+                for (int j = 0; j < 256; j++) {
+                    op.run();
+                }
+                ops += 256;
+                now = System.nanoTime();
+            } while (now < deadline);
+            bytes = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+            if (i >= 0) {
+                result.opsPerSecond[i] = ops * 1e9 / (now - start);
+                totalOps += ops;
+                totalBytes += bytes;
+                totalNanos += now - start;
+            }
+        }
+        result.allocBytesPerOp = (double) totalBytes / totalOps;
+        result.allocMBPerSecond = totalBytes * 1e3 / totalNanos;
+        return result;
+    }
+
+    // Writers append and commit() one reading at a time, as an ingest thread
+    // does; with several per-reading writers one fsync covers them all
+    static Result measureLog(String level, int writers) throws Exception {
+        Path dir = Files.createTempDirectory("ee402-wal");
+        WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.parseDurability(level), 64L * 1024 * 1024, 2, 10);
+        wal.start();
+        LongAdder appended = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            String device = "bench-" + i;
+            Thread writer = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    while (running.get()) {
+                        wal.append(device, System.currentTimeMillis(), random.nextDouble(), random.nextDouble(),
+                                random.nextDouble());
+                        wal.commit();
+                        appended.increment();
+                    }
+                } catch (IOException e) {
+                    System.out.println("XX. " + e);
+                }
+            });
+            threads.add(writer);
+            writer.start();
+        }
+        Result result = measureCounter("wal." + level + "." + writers + "writers", appended::sum);
+        running.set(false);
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        wal.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+        return result;
+    }
+
+    // Devices stream readings as fast as their sockets allow while a sink
+    // counts what the server delivered; allocation covers every live thread
+    static Result measureLoopback(int devices, boolean binary) throws Exception {
+        SensorServer server = new SensorServer();
+        LongAdder delivered = new LongAdder();
+        server.addSink((deviceName, timestamp, methane, co2, temperature) -> delivered.increment());
+        server.start();
+        Thread.sleep(200);
+
+        List<Thread> senders = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            Socket socket = new Socket("localhost", ServerConfig.PORT);
+            sockets.add(socket);
+            String name = "bench-" + d;
+            Thread sender = new Thread(() -> simulateDevice(socket, name, binary), name);
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+
+        String mode = ServerConfig.isNioIngest() ? "nio" : "threads";
+        Result result = measureCounter("loopback." + mode + "." + (binary ? "sbp" : "string") + "." + devices + "devices",
+                delivered::sum);
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (Thread sender : senders) {
+            sender.join(1000);
+        }
+        server.shutDown();
+        Thread.sleep(200);
+        return result;
+    }
+
+    // Many connections each sending CONNECTION_RATE readings a second from a
+    // single pacer thread, so that the server's threads dominate; reports
+    // heap, resident memory and platform threads per connection and the
+    // carrier threads' CPU utilization alongside the delivered rate
+    static Result measureConnections(int connections) throws Exception {
+        SensorServer server = new SensorServer();
+        LongAdder delivered = new LongAdder();
+        LongAdder connected = new LongAdder();
+        server.addSink(new ReadingSink() {
+            @Override
+            public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+                delivered.increment();
+            }
+
+            @Override
+            public void onDeviceConnected(String deviceName) {
+                connected.increment();
+            }
+        });
+        server.start();
+        Thread.sleep(200);
+        long heapBefore = usedHeapAfterGc();
+        long rssBefore = residentBytes();
+        int threadsBefore = THREADS.getThreadCount();
+
+        // Raw bytes: stream header and HELLO, then each reading as one block
+        ByteBuffer hello = ByteBuffer.allocate(64);
+        ObjectStreamCodec.writeHeader(hello);
+        ObjectStreamCodec.writeString(hello, SensorFrame.HELLO);
+        ByteBuffer frame = ByteBuffer.allocate(SensorFrame.READING_SIZE);
+        SensorFrame.encodeReading(frame, "bench", 0L, 1.23, 2.34, 21.45);
+        frame.flip();
+        ByteBuffer block = ByteBuffer.allocate(SensorFrame.READING_SIZE + 2);
+        ObjectStreamCodec.writeBlockData(block, frame);
+
+        List<Socket> sockets = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            Socket socket = new Socket("localhost", ServerConfig.PORT);
+            socket.getOutputStream().write(hello.array(), 0, hello.position());
+            sockets.add(socket);
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (connected.sum() < connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(500);
+        long heapPerConnection = (usedHeapAfterGc() - heapBefore) / connections;
+        long rssPerConnection = rssBefore < 0 ? -1 : (residentBytes() - rssBefore) / connections;
+        double threadsPerConnection = (double) (THREADS.getThreadCount() - threadsBefore) / connections;
+
+        Thread pacer = new Thread(() -> {
+            long interval = 1000000000L / CONNECTION_RATE / connections;
+            long next = System.nanoTime();
+            try {
+                while (true) {
+                    for (Socket socket : sockets) {
+                        next += interval;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        socket.getOutputStream().write(block.array(), 0, block.position());
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Sockets closed at the end of the benchmark
+            }
+        }, "bench-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+
+        HandlerPool handlers = server.getHandlers();
+        handlers.getCarrierUtilization(); // start the sampling interval
+        String mode = handlers.isVirtual() ? "virtual" : "platform";
+        Result result = measureCounter("connections." + mode + "." + connections, delivered::sum);
+        result.extraMetrics.add(new Metric("carrier.utilization", handlers.getCarrierUtilization() * 100, "%"));
+        result.extraMetrics.add(new Metric("carrier.threads", handlers.getCarrierCount(), "threads"));
+        result.extraMetrics.add(new Metric("threads.perConnection", threadsPerConnection, "threads"));
+        result.extraMetrics.add(new Metric("heap.perConnection", heapPerConnection, "B"));
+        result.extraMetrics.add(new Metric("rss.perConnection", rssPerConnection, "B"));
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        pacer.join(1000);
+        server.shutDown();
+        Thread.sleep(200);
+        return result;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // VmRSS from /proc, which includes platform thread stacks; -1 elsewhere
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    static Result measureCounter(String name, Counter counter) throws InterruptedException {
+        Result result = new Result(name);
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+        for (int i = -WARMUP_ITERATIONS; i < MEASUREMENT_ITERATIONS; i++) {
+            long[] ids = THREADS.getAllThreadIds();
+            long[] before = THREADS.getThreadAllocatedBytes(ids);
+            long ops = counter.count();
+            long start = System.nanoTime();
+            Thread.sleep(ITERATION_MILLIS);
+            long nanos = System.nanoTime() - start;
+            ops = counter.count() - ops;
+            long[] after = THREADS.getThreadAllocatedBytes(ids);
+            long bytes = 0;
+            for (int t = 0; t < ids.length; t++) {
+                if (before[t] >= 0 && after[t] >= 0) {
+                    bytes += after[t] - before[t];
+                }
+            }
+            if (i >= 0) {
+                result.opsPerSecond[i] = ops * 1e9 / nanos;
+                totalOps += ops;
+                totalBytes += bytes;
+                totalNanos += nanos;
+            }
+        }
+        result.allocBytesPerOp = totalOps == 0 ? 0 : (double) totalBytes / totalOps;
+        result.allocMBPerSecond = totalBytes * 1e3 / totalNanos;
+        return result;
+    }
+
+    private static void simulateDevice(Socket socket, String name, boolean binary) {
+        try {
+            ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream is = new ObjectInputStream(socket.getInputStream());
+            is.readObject(); // welcome
+            if (binary) {
+                os.writeObject(SensorFrame.HELLO);
+                os.flush();
+                is.readObject();
+            }
+            byte[] frame = new byte[SensorFrame.READING_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(frame);
+            double value = 0;
+            while (true) {
+                value += 0.001;
+                if (binary) {
+                    buf.clear();
+                    SensorFrame.encodeReading(buf, name, System.currentTimeMillis(), value, value, value);
+                    os.write(frame);
+                } else {
+                    os.writeObject("Sensor Update: Methane - " + value + ", CO2 - " + value
+                            + ", Temperature - " + value);
+                    os.reset(); // keep the client's handle table from growing for the whole run
+                }
+                os.flush();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // Socket closed at the end of the benchmark
+        }
+    }
+
+    // One line per result for the parent of a fork: name, B/op, MB/s, the
+    // iterations' ops/s, then name=score=unit for each extra metric
+    private static void writeRaw(String path, List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            for (Result result : results) {
+                StringBuilder line = new StringBuilder(result.name).append('\t').append(result.allocBytesPerOp)
+                        .append('\t').append(result.allocMBPerSecond).append('\t');
+                for (int i = 0; i < result.opsPerSecond.length; i++) {
+                    line.append(i == 0 ? "" : ",").append(result.opsPerSecond[i]);
+                }
+                for (Metric metric : result.extraMetrics) {
+                    line.append('\t').append(metric.name).append('=').append(metric.score).append('=')
+                            .append(metric.unit);
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    private static List<Result> readRaw(Path path) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.split("\t");
+            Result result = new Result(fields[0]);
+            result.allocBytesPerOp = Double.parseDouble(fields[1]);
+            result.allocMBPerSecond = Double.parseDouble(fields[2]);
+            result.opsPerSecond = Arrays.stream(fields[3].split(",")).mapToDouble(Double::parseDouble).toArray();
+            for (int i = 4; i < fields.length; i++) {
+                String[] metric = fields[i].split("=", 3);
+                result.extraMetrics.add(new Metric(metric[0], Double.parseDouble(metric[1]), metric[2]));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    // The harness's own report format: settings, then per benchmark the
+    // throughput score and error, every measured iteration and the
+    // allocation figures
+    private static void writeJson(String path, List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            out.printf(Locale.ROOT, "{%n  \"harness\": \"ee402.SensorBenchmarks\",%n  \"jvm\": \"%s\",%n"
+                    + "  \"forks\": %d,%n  \"warmupIterations\": %d,%n  \"iterations\": %d,%n"
+                    + "  \"iterationMillis\": %d,%n  \"confidence\": %.3f,%n  \"results\": [%n",
+                    System.getProperty("java.vm.version"), FORKS, WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS,
+                    ITERATION_MILLIS, CONFIDENCE);
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                StringBuilder raw = new StringBuilder();
+                for (int i = 0; i < result.opsPerSecond.length; i++) {
+                    raw.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.3f", result.opsPerSecond[i]));
+                }
+                StringBuilder extra = new StringBuilder();
+                for (Metric metric : result.extraMetrics) {
+                    extra.append(String.format(Locale.ROOT, "%s%n        \"%s\": {\"value\": %.3f, \"unit\": \"%s\"}",
+                            extra.length() == 0 ? "" : ",", metric.name, metric.score, metric.unit));
+                }
+                out.printf(Locale.ROOT, "    {%n"
+                        + "      \"name\": \"%s\",%n"
+                        + "      \"opsPerSecond\": %.3f,%n"
+                        + "      \"error\": %.3f,%n"
+                        + "      \"iterations\": [%s],%n"
+                        + "      \"allocBytesPerOp\": %.3f,%n"
+                        + "      \"allocMBPerSecond\": %.3f,%n"
+                        + "      \"extra\": {%s%n      }%n"
+                        + "    }%s%n",
+                        result.name, result.mean(), result.error(), raw, result.allocBytesPerOp,
+                        result.allocMBPerSecond, extra, r < results.size() - 1 ? "," : "");
+            }
+            out.printf("  ]%n}%n");
+        }
+    }
+}
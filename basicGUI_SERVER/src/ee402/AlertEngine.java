@@ -0,0 +1,326 @@
+package ee402;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streaming alert stage. The core calls it as a ReadingSink on the device's
+// ingest thread, as each reading is decoded and before it is queued for the
+// other sinks, so an alert never waits behind the ingest queue. The rules
+// are compiled into one array per channel and every device keeps its own
+// primitive state (previous value, EWMA mean and variance, which rules are
+// raised), so evaluating a reading does not allocate; only a rule changing
+// state creates an Alert for the listeners.
+//
+// Alerts latch: a rule is raised once when it starts to hold and cleared
+// once when it stops, rather than firing for every reading past the limit.
+// Silence is the one rule that needs a clock, so a checker thread scans the
+// devices' last-seen times once a second.
+class AlertEngine implements ReadingSink {
+    private static final int CHANNELS = SensorChannel.values().length;
+    private static final long SILENCE_CHECK_MILLIS = 1000;
+
+    interface Listener {
+        void onAlert(Alert alert);
+    }
+
+    static final class Alert {
+        final String deviceName;
+        final AlertRule rule;
+        final boolean raised;  // false when the rule cleared
+        final double value;    // the reading, rate, z-score or silent seconds that tripped it
+        final long timestamp;
+
+        Alert(String deviceName, AlertRule rule, boolean raised, double value, long timestamp) {
+            this.deviceName = deviceName;
+            this.rule = rule;
+            this.raised = raised;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return (raised ? "ALERT " : "cleared ") + deviceName + ": " + rule + " (" + value + ")";
+        }
+    }
+
+    private final Bound[][] rulesByChannel = new Bound[CHANNELS][];
+    private final AlertRule silence;
+    private final int ruleCount;
+    private final double alpha;
+    private final int warmup;
+    private final ConcurrentHashMap<String, DeviceAlerts> devices = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder evaluationNanos = new LongAdder();
+    private final LongAdder raisedCount = new LongAdder();
+    private ScheduledExecutorService silenceChecker;
+
+    // A rule and its position in the engine's list, which indexes the
+    // devices' raised flags; kept here rather than in the caller's rules
+    private static final class Bound {
+        final AlertRule rule;
+        final int index;
+
+        Bound(AlertRule rule, int index) {
+            this.rule = rule;
+            this.index = index;
+        }
+    }
+
+    // Per-device state; written by the device's ingest thread, except the
+    // silence flag, which the checker may also set. Both flags change under
+    // the object's monitor, so the checker cannot raise silence on a device
+    // that clearAll() has already let go of.
+    private final class DeviceAlerts {
+        final String name;
+        final double[] last = new double[CHANNELS];
+        final double[] mean = new double[CHANNELS];
+        final double[] variance = new double[CHANNELS];
+        final boolean[] raised = new boolean[ruleCount];
+        long lastTimestamp;
+        long readings;
+        volatile long lastSeen;
+        volatile boolean silent;
+        boolean removed;
+
+        DeviceAlerts(String name) {
+            this.name = name;
+        }
+    }
+
+    AlertEngine(List<AlertRule> rules, double alpha, int warmup) {
+        this.alpha = alpha;
+        this.warmup = warmup;
+        this.ruleCount = rules.size();
+        AlertRule silenceRule = null;
+        List<Bound> bound = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            AlertRule rule = rules.get(i);
+            if (rule.kind == AlertRule.SILENCE) {
+                if (silenceRule != null) {
+                    throw new IllegalArgumentException("more than one silence rule: " + silenceRule + ", " + rule);
+                }
+                silenceRule = rule;
+            }
+            bound.add(new Bound(rule, i));
+        }
+        for (SensorChannel channel : SensorChannel.values()) {
+            rulesByChannel[channel.ordinal()] = bound.stream()
+                    .filter(b -> b.rule.channel == channel).toArray(Bound[]::new);
+        }
+        this.silence = silenceRule;
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void start() {
+        if (silence == null) {
+            return;
+        }
+        silenceChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "alert-silence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        silenceChecker.scheduleAtFixedRate(this::checkSilence, SILENCE_CHECK_MILLIS, SILENCE_CHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (silenceChecker != null) {
+            silenceChecker.shutdownNow();
+        }
+    }
+
+    // How long a device may go quiet before it is reported silent, or
+    // Long.MAX_VALUE without a silence rule
+    long getSilenceMillis() {
+        return silence == null ? Long.MAX_VALUE : (long) silence.limit;
+    }
+
+    // Whether any reading rule (so not silence) is raised for the device;
+    // racy from other threads, exact on the device's ingest thread
+    boolean hasRaised(String deviceName) {
+        DeviceAlerts device = devices.get(deviceName);
+        if (device == null) {
+            return false;
+        }
+        for (boolean raised : device.raised) {
+            if (raised) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getActiveCount() {
+        return active.get();
+    }
+
+    long getRaisedCount() {
+        return raisedCount.sum();
+    }
+
+    // Mean time spent evaluating one reading against every rule
+    double getMeanEvaluationNanos() {
+        long count = evaluations.sum();
+        return count == 0 ? 0 : (double) evaluationNanos.sum() / count;
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        long started = System.nanoTime();
+        DeviceAlerts device = devices.get(deviceName);
+        if (device == null) {
+            device = devices.computeIfAbsent(deviceName, DeviceAlerts::new);
+        }
+        device.lastSeen = System.currentTimeMillis();
+        if (device.silent) {
+            clearSilence(device);
+        }
+        double seconds = device.readings == 0 ? 0 : (timestamp - device.lastTimestamp) / 1000.0;
+        evaluate(device, SensorChannel.METHANE.ordinal(), methane, seconds, timestamp);
+        evaluate(device, SensorChannel.CO2.ordinal(), co2, seconds, timestamp);
+        evaluate(device, SensorChannel.TEMPERATURE.ordinal(), temperature, seconds, timestamp);
+        device.lastTimestamp = timestamp;
+        device.readings++;
+        evaluations.increment();
+        evaluationNanos.add(System.nanoTime() - started);
+    }
+
+    private void evaluate(DeviceAlerts device, int channel, double value, double seconds, long timestamp) {
+        double previous = device.last[channel];
+        double deviation = value - device.mean[channel];
+        double stdDev = Math.sqrt(device.variance[channel]);
+        for (Bound bound : rulesByChannel[channel]) {
+            AlertRule rule = bound.rule;
+            double measured;
+            boolean holds;
+            switch (rule.kind) {
+                case AlertRule.ABOVE:
+                    measured = value;
+                    holds = value > rule.limit;
+                    break;
+                case AlertRule.BELOW:
+                    measured = value;
+                    holds = value < rule.limit;
+                    break;
+                case AlertRule.RATE:
+                    measured = seconds > 0 ? Math.abs(value - previous) / seconds : 0;
+                    holds = measured > rule.limit;
+                    break;
+                default: // ZSCORE, once the EWMA has seen enough readings
+                    measured = stdDev > 0 ? Math.abs(deviation) / stdDev : 0;
+                    holds = device.readings >= warmup && measured > rule.limit;
+                    break;
+            }
+            if (holds != device.raised[bound.index]) {
+                device.raised[bound.index] = holds;
+                fire(new Alert(device.name, rule, holds, measured, timestamp));
+            }
+        }
+        // Exponentially weighted mean and variance (West's incremental form)
+        double increment = alpha * deviation;
+        device.mean[channel] = device.readings == 0 ? value : device.mean[channel] + increment;
+        device.variance[channel] = device.readings == 0 ? 0 : (1 - alpha) * (device.variance[channel] + deviation * increment);
+        device.last[channel] = value;
+    }
+
+    // Tracked from connection, so a device that never reports still goes silent
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        devices.computeIfAbsent(deviceName, DeviceAlerts::new).lastSeen = System.currentTimeMillis();
+    }
+
+    // A rename is a new identity: the old name's alerts clear and the new
+    // name's baseline starts over
+    @Override
+    public void onDeviceRenamed(String oldName, String newName) {
+        DeviceAlerts device = devices.remove(oldName);
+        if (device != null) {
+            clearAll(device);
+        }
+        onDeviceConnected(newName);
+    }
+
+    @Override
+    public void onDeviceDisconnected(String deviceName) {
+        DeviceAlerts device = devices.remove(deviceName);
+        if (device != null) {
+            clearAll(device);
+        }
+    }
+
+    private void clearAll(DeviceAlerts device) {
+        long now = System.currentTimeMillis();
+        for (SensorChannel channel : SensorChannel.values()) {
+            for (Bound bound : rulesByChannel[channel.ordinal()]) {
+                if (device.raised[bound.index]) {
+                    device.raised[bound.index] = false;
+                    fire(new Alert(device.name, bound.rule, false, 0, now));
+                }
+            }
+        }
+        boolean wasSilent;
+        synchronized (device) {
+            device.removed = true;
+            wasSilent = device.silent;
+            device.silent = false;
+        }
+        if (wasSilent) {
+            fire(new Alert(device.name, silence, false, 0, now));
+        }
+    }
+
+    private void checkSilence() {
+        long now = System.currentTimeMillis();
+        for (DeviceAlerts device : devices.values()) {
+            if (!device.silent && now - device.lastSeen > silence.limit) {
+                synchronized (device) {
+                    if (device.silent || device.removed) {
+                        continue;
+                    }
+                    device.silent = true;
+                }
+                fire(new Alert(device.name, silence, true, (now - device.lastSeen) / 1000.0, now));
+            }
+        }
+    }
+
+    private void clearSilence(DeviceAlerts device) {
+        synchronized (device) {
+            if (!device.silent) {
+                return;
+            }
+            device.silent = false;
+        }
+        fire(new Alert(device.name, silence, false, 0, System.currentTimeMillis()));
+    }
+
+    private void fire(Alert alert) {
+        if (alert.raised) {
+            active.incrementAndGet();
+            raisedCount.increment();
+        } else {
+            active.decrementAndGet();
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onAlert(alert);
+            } catch (RuntimeException e) {
+                System.out.println("XX. Alert listener failed: " + e);
+            }
+        }
+    }
+}
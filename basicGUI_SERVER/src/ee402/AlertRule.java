@@ -0,0 +1,109 @@
+package ee402;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// One alerting rule, parsed from the ee402.alertRules setting: rules are
+// separated by ';' and each is one of
+//
+//   <channel> > <limit>        absolute threshold (also <)
+//   <channel> rate > <limit>   |change| per second between two readings
+//   <channel> z > <limit>      deviation from the device's EWMA, in std devs
+//   silence <seconds>          no reading from a device for that long
+//
+// with <channel> one of methane, co2 or temperature.
+final class AlertRule {
+    static final int ABOVE = 0;
+    static final int BELOW = 1;
+    static final int RATE = 2;
+    static final int ZSCORE = 3;
+    static final int SILENCE = 4;
+
+    final int kind;
+    final SensorChannel channel; // null for SILENCE
+    final double limit;          // milliseconds for SILENCE
+    final String text;
+
+    private AlertRule(int kind, SensorChannel channel, double limit, String text) {
+        this.kind = kind;
+        this.channel = channel;
+        this.limit = limit;
+        this.text = text;
+    }
+
+    // Unparseable rules are reported and skipped so one typo does not
+    // silence every other alert; so is any silence rule after the first,
+    // since a device can only have one silence limit
+    static List<AlertRule> parseAll(String rules) {
+        List<AlertRule> parsed = new ArrayList<>();
+        if (rules == null) {
+            return parsed;
+        }
+        for (String rule : rules.split(";")) {
+            if (rule.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                AlertRule next = parse(rule);
+                if (next.kind == SILENCE && parsed.stream().anyMatch(r -> r.kind == SILENCE)) {
+                    throw new IllegalArgumentException("only one silence rule is allowed");
+                }
+                parsed.add(next);
+            } catch (IllegalArgumentException e) {
+                System.out.println("XX. Ignoring alert rule \"" + rule.trim() + "\": " + e.getMessage());
+            }
+        }
+        return parsed;
+    }
+
+    static AlertRule parse(String rule) {
+        String text = rule.trim();
+        String[] words = text.toLowerCase(Locale.ROOT).split("\\s+");
+        if (words[0].equals("silence")) {
+            if (words.length != 2) {
+                throw new IllegalArgumentException("expected: silence <seconds>");
+            }
+            return new AlertRule(SILENCE, null, number(words[1]) * 1000, text);
+        }
+        SensorChannel channel = channel(words[0]);
+        if (words.length == 3) {
+            if (words[1].equals(">")) {
+                return new AlertRule(ABOVE, channel, number(words[2]), text);
+            }
+            if (words[1].equals("<")) {
+                return new AlertRule(BELOW, channel, number(words[2]), text);
+            }
+        } else if (words.length == 4 && words[2].equals(">")) {
+            if (words[1].equals("rate")) {
+                return new AlertRule(RATE, channel, number(words[3]), text);
+            }
+            if (words[1].equals("z")) {
+                return new AlertRule(ZSCORE, channel, number(words[3]), text);
+            }
+        }
+        throw new IllegalArgumentException("expected: <channel> [rate|z] > <limit>, <channel> < <limit>"
+                + " or silence <seconds>");
+    }
+
+    private static SensorChannel channel(String word) {
+        SensorChannel channel = SensorChannel.forLabel(word);
+        if (channel == null) {
+            throw new IllegalArgumentException("unknown channel " + word);
+        }
+        return channel;
+    }
+
+    private static double number(String word) {
+        try {
+            return Double.parseDouble(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + word);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
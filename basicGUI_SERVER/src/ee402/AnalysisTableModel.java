@@ -0,0 +1,80 @@
+package ee402;
+
+import javax.swing.table.AbstractTableModel;
+
+// One row per sensor channel with the server-wide window statistics. Like
+// DeviceTableModel it is refreshed on the EDT and only fires updates for
+// channels whose figures actually changed.
+class AnalysisTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Channel", "Average", "Min", "Max", "Window"};
+    private static final int CHANNELS = SensorChannel.values().length;
+
+    private final SensorServer server;
+    private final WindowedStats.Summary summary = new WindowedStats.Summary();
+    private final double[] mean = new double[CHANNELS];
+    private final double[] min = new double[CHANNELS];
+    private final double[] max = new double[CHANNELS];
+    private final long[] count = new long[CHANNELS];
+
+    AnalysisTableModel(SensorServer server) {
+        this.server = server;
+    }
+
+    // EDT only
+    void refresh() {
+        for (SensorChannel channel : SensorChannel.values()) {
+            int i = channel.ordinal();
+            server.getStats(channel).read(summary);
+            double newMean = summary.getMean();
+            if (summary.count != count[i] || Double.compare(newMean, mean[i]) != 0
+                    || Double.compare(summary.min, min[i]) != 0 || Double.compare(summary.max, max[i]) != 0) {
+                mean[i] = newMean;
+                min[i] = summary.min;
+                max[i] = summary.max;
+                count[i] = summary.count;
+                fireTableRowsUpdated(i, i);
+            }
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return CHANNELS;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        if (column == 0) {
+            return String.class;
+        }
+        return column == 4 ? Long.class : Double.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        switch (column) {
+            case 0:
+                return SensorChannel.of(row).getLabel();
+            case 1:
+                return mean[row];
+            case 2:
+                return min[row];
+            case 3:
+                return max[row];
+            default:
+                return count[row];
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package ee402;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// One server node of a cluster, configured by a member list every node
+// shares (see ServerConfig.CLUSTER). Devices belong to nodes by consistent
+// hashing of their id (ClusterRing); a node that is asked to take a device
+// it does not own answers the handshake with a redirect to the owner.
+//
+// As a ReadingSink it keeps per-device aggregates (count and per-channel
+// sum/min/max) of the readings it ingests, and every gossipMillis sends them
+// to the other nodes over UDP, so any node can answer a fleet-wide query by
+// folding its own aggregates with everyone else's. A round only carries the
+// devices that changed, with a full snapshot every FULL_EVERY rounds to
+// repair lost datagrams; a round with nothing to say is still sent as a
+// heartbeat. A node not heard from for MISSED_ROUNDS rounds is taken off
+// the ring, so its devices are taken by the nodes that are left.
+//
+// An aggregate follows its device through renames. Once the device
+// disconnects, its aggregate is dropped after idleMillis without readings,
+// and the other nodes drop their copy once MISSED_ROUNDS full snapshots have
+// gone by without it, so device churn cannot grow memory or the full rounds
+// without bound. Datagrams are
+//
+//   u32 magic | u8 node id length | node id | i64 node start time
+//   | entries: u16 name length | name (UTF-8) | i64 count
+//              | per channel (f64 sum | f64 min | f64 max)
+class ClusterNode implements ReadingSink {
+    private static final int CHANNELS = SensorChannel.values().length;
+    private static final int MAGIC = 0x45450201;
+    private static final int MAX_DATAGRAM = 1400; // fits an Ethernet MTU unfragmented
+    private static final int MAX_NAME = 512;
+    private static final int ENTRY_FIXED = 2 + 8 + CHANNELS * 3 * 8;
+    private static final int MISSED_ROUNDS = 3;
+    private static final int FULL_EVERY = 10;
+
+    static final class Member {
+        final String id;
+        final String host;
+        final int port;
+        final InetSocketAddress gossip;
+        // Written by the receiver; stale entries are dropped by the gossip thread
+        final ConcurrentHashMap<String, Aggregate> devices = new ConcurrentHashMap<>();
+        volatile long lastHeard;
+        long started;
+
+        Member(String id, String host, int port, int gossipPort) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.gossip = new InetSocketAddress(host, gossipPort);
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    // Readings of one device on one node since that node started
+    static final class Aggregate {
+        final byte[] name;
+        long count;
+        final double[] sums = new double[CHANNELS];
+        final double[] mins = new double[CHANNELS];
+        final double[] maxs = new double[CHANNELS];
+        volatile boolean dirty;
+        // Last local reading or received update, for expiry
+        volatile long touched = System.currentTimeMillis();
+
+        Aggregate(String name) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        synchronized void add(double methane, double co2, double temperature) {
+            put(SensorChannel.METHANE.ordinal(), methane);
+            put(SensorChannel.CO2.ordinal(), co2);
+            put(SensorChannel.TEMPERATURE.ordinal(), temperature);
+            count++;
+            dirty = true;
+            touched = System.currentTimeMillis();
+        }
+
+        // The same totals under another device name
+        synchronized Aggregate copyAs(String newName) {
+            Aggregate copy = new Aggregate(newName);
+            copy.absorb(count, sums, mins, maxs);
+            return copy;
+        }
+
+        void absorb(Aggregate other) {
+            synchronized (other) {
+                absorb(other.count, other.sums.clone(), other.mins.clone(), other.maxs.clone());
+            }
+        }
+
+        private synchronized void absorb(long otherCount, double[] otherSums, double[] otherMins, double[] otherMaxs) {
+            if (otherCount == 0) {
+                return;
+            }
+            for (int c = 0; c < CHANNELS; c++) {
+                sums[c] += otherSums[c];
+                mins[c] = count == 0 ? otherMins[c] : Math.min(mins[c], otherMins[c]);
+                maxs[c] = count == 0 ? otherMaxs[c] : Math.max(maxs[c], otherMaxs[c]);
+            }
+            count += otherCount;
+            dirty = true;
+        }
+
+        private void put(int channel, double value) {
+            sums[channel] += value;
+            mins[channel] = count == 0 ? value : Math.min(mins[channel], value);
+            maxs[channel] = count == 0 ? value : Math.max(maxs[channel], value);
+        }
+
+        synchronized void write(ByteBuffer out) {
+            out.putShort((short) name.length);
+            out.put(name);
+            out.putLong(count);
+            for (int c = 0; c < CHANNELS; c++) {
+                out.putDouble(sums[c]);
+                out.putDouble(mins[c]);
+                out.putDouble(maxs[c]);
+            }
+            dirty = false;
+        }
+
+        synchronized void read(ByteBuffer in) {
+            count = in.getLong();
+            for (int c = 0; c < CHANNELS; c++) {
+                sums[c] = in.getDouble();
+                mins[c] = in.getDouble();
+                maxs[c] = in.getDouble();
+            }
+            touched = System.currentTimeMillis();
+        }
+
+        synchronized void fold(int channel, WindowedStats.Summary summary) {
+            if (count == 0) {
+                return;
+            }
+            summary.min = summary.count == 0 ? mins[channel] : Math.min(summary.min, mins[channel]);
+            summary.max = summary.count == 0 ? maxs[channel] : Math.max(summary.max, maxs[channel]);
+            summary.count += count;
+            summary.sum += sums[channel];
+        }
+    }
+
+    private final Member self;
+    private final List<Member> members;
+    private final long gossipMillis;
+    private final long idleMillis;
+    private final long started = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, Aggregate> local = new ConcurrentHashMap<>();
+    // Names of the connected devices
+    private final Set<String> live = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM); // gossip thread only
+    private volatile ClusterRing ring;
+    private boolean[] up;
+    private long round;
+    private DatagramChannel channel;
+    private ScheduledExecutorService gossip;
+
+    ClusterNode(String selfId, List<Member> members, long gossipMillis, long idleMillis) {
+        Member found = null;
+        for (Member member : members) {
+            if (member.id.equals(selfId)) {
+                found = member;
+            }
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("node id " + selfId + " is not in the member list");
+        }
+        this.self = found;
+        this.members = members;
+        this.gossipMillis = gossipMillis;
+        this.idleMillis = idleMillis;
+        // Nodes started together agree at once; one that never answers
+        // drops off the ring after MISSED_ROUNDS
+        long now = System.currentTimeMillis();
+        for (Member member : members) {
+            member.lastHeard = now;
+        }
+        up = new boolean[members.size()];
+        updateMembership(now);
+    }
+
+    // "id=host:port:gossipPort,..." as in ee402.cluster
+    static List<Member> parseMembers(String spec) {
+        List<Member> members = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] idAddress = entry.trim().split("=");
+            String[] parts = idAddress.length == 2 ? idAddress[1].split(":") : new String[0];
+            if (parts.length != 3 || idAddress[0].isEmpty() || idAddress[0].length() > 255) {
+                throw new IllegalArgumentException("expected id=host:port:gossipPort, got \"" + entry.trim() + "\"");
+            }
+            try {
+                members.add(new Member(idAddress[0], parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad port in \"" + entry.trim() + "\"");
+            }
+        }
+        return members;
+    }
+
+    void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(self.gossip.getPort()));
+        Thread receiver = new Thread(this::receiveLoop, "cluster-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        gossip = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        gossip.scheduleAtFixedRate(this::gossip, 0, gossipMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (gossip != null) {
+            gossip.shutdownNow();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    Member getSelf() {
+        return self;
+    }
+
+    // "host:port" of the node that owns deviceId, or null when that is this
+    // node (or the id is unknown)
+    String redirectFor(String deviceId) {
+        if (deviceId == null) {
+            return null;
+        }
+        Member owner = ring.owner(deviceId);
+        return owner == null || owner == self ? null : owner.host + ":" + owner.port;
+    }
+
+    synchronized int getNodesUp() {
+        int count = 0;
+        for (boolean node : up) {
+            count += node ? 1 : 0;
+        }
+        return count;
+    }
+
+    // Count, sum, min and max of channel over every reading of every device,
+    // on this node and on every node that has reported in
+    WindowedStats.Summary fleetSummary(SensorChannel channel, WindowedStats.Summary summary) {
+        summary.count = 0;
+        summary.sum = 0;
+        summary.min = 0;
+        summary.max = 0;
+        fold(local.values(), channel, summary);
+        for (Member member : members) {
+            if (member != self) {
+                fold(member.devices.values(), channel, summary);
+            }
+        }
+        return summary;
+    }
+
+    private static void fold(Collection<Aggregate> aggregates, SensorChannel channel, WindowedStats.Summary summary) {
+        for (Aggregate aggregate : aggregates) {
+            aggregate.fold(channel.ordinal(), summary);
+        }
+    }
+
+    // Distinct devices across the cluster; one that moved node counts once
+    int getFleetDeviceCount() {
+        Set<String> names = new HashSet<>(local.keySet());
+        for (Member member : members) {
+            if (member != self) {
+                names.addAll(member.devices.keySet());
+            }
+        }
+        return names.size();
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        Aggregate aggregate = local.get(deviceName);
+        if (aggregate == null) {
+            aggregate = local.computeIfAbsent(deviceName, Aggregate::new);
+        }
+        aggregate.add(methane, co2, temperature);
+    }
+
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        live.add(deviceName);
+    }
+
+    @Override
+    public void onDeviceDisconnected(String deviceName) {
+        live.remove(deviceName);
+    }
+
+    @Override
+    public void onDeviceRenamed(String oldName, String newName) {
+        if (live.remove(oldName)) {
+            live.add(newName);
+        }
+        Aggregate moved = local.remove(oldName);
+        if (moved != null) {
+            Aggregate renamed = moved.copyAs(newName);
+            Aggregate existing = local.putIfAbsent(newName, renamed);
+            if (existing != null) {
+                existing.absorb(renamed);
+            }
+        }
+    }
+
+    // Drops the aggregates of devices gone for idleMillis, and the copies of
+    // other nodes' aggregates that their full snapshots no longer carry
+    private void expire(long now) {
+        local.entrySet().removeIf(entry -> !live.contains(entry.getKey())
+                && now - entry.getValue().touched > idleMillis);
+        long stale = (long) MISSED_ROUNDS * FULL_EVERY * gossipMillis;
+        for (Member member : members) {
+            if (member != self) {
+                member.devices.values().removeIf(aggregate -> now - aggregate.touched > stale);
+            }
+        }
+    }
+
+    private void gossip() {
+        try {
+            long now = System.currentTimeMillis();
+            updateMembership(now);
+            expire(now);
+            boolean full = round++ % FULL_EVERY == 0;
+            startDatagram();
+            for (Aggregate aggregate : local.values()) {
+                if ((!full && !aggregate.dirty) || aggregate.name.length > MAX_NAME) {
+                    continue;
+                }
+                if (out.remaining() < ENTRY_FIXED + aggregate.name.length) {
+                    sendDatagram();
+                    startDatagram();
+                }
+                aggregate.write(out);
+            }
+            sendDatagram();
+        } catch (ClosedChannelException e) {
+            // Stopping
+        } catch (IOException | RuntimeException e) {
+            System.out.println("XX. Cluster gossip failed: " + e);
+        }
+    }
+
+    private void startDatagram() {
+        byte[] id = self.id.getBytes(StandardCharsets.UTF_8);
+        out.clear();
+        out.putInt(MAGIC);
+        out.put((byte) id.length);
+        out.put(id);
+        out.putLong(started);
+    }
+
+    private void sendDatagram() throws IOException {
+        out.flip();
+        for (Member member : members) {
+            if (member != self) {
+                channel.send(out.duplicate(), member.gossip);
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        while (channel.isOpen()) {
+            try {
+                in.clear();
+                channel.receive(in);
+                in.flip();
+                apply(in);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("XX. Cluster receive failed: " + e);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                System.out.println("XX. Malformed cluster datagram: " + e);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer in) {
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("bad magic");
+        }
+        byte[] id = new byte[in.get() & 0xff];
+        in.get(id);
+        Member from = member(new String(id, StandardCharsets.UTF_8));
+        long fromStarted = in.getLong();
+        if (from.started != fromStarted) {
+            // Restarted: what it reported before is gone from its counters too
+            from.devices.clear();
+            from.started = fromStarted;
+        }
+        long now = System.currentTimeMillis();
+        boolean wasDown = now - from.lastHeard > MISSED_ROUNDS * gossipMillis;
+        from.lastHeard = now;
+        if (wasDown) {
+            updateMembership(now);
+        }
+        byte[] name = new byte[MAX_NAME];
+        while (in.hasRemaining()) {
+            int length = in.getShort() & 0xffff;
+            if (length > MAX_NAME) {
+                throw new IllegalArgumentException("device name of " + length + " bytes");
+            }
+            in.get(name, 0, length);
+            from.devices.computeIfAbsent(new String(name, 0, length, StandardCharsets.UTF_8), Aggregate::new).read(in);
+        }
+    }
+
+    private Member member(String id) {
+        for (Member member : members) {
+            if (member.id.equals(id)) {
+                return member;
+            }
+        }
+        throw new IllegalArgumentException("unknown node " + id);
+    }
+
+    // Rebuilds the ring when a node has gone quiet or come back
+    private synchronized void updateMembership(long now) {
+        boolean changed = false;
+        List<Member> live = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            boolean alive = member == self || now - member.lastHeard <= MISSED_ROUNDS * gossipMillis;
+            changed |= alive != up[i];
+            up[i] = alive;
+            if (alive) {
+                live.add(member);
+            }
+        }
+        if (changed) {
+            ring = new ClusterRing(live);
+            System.out.println("00. Cluster node " + self.id + ": nodes up " + live);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ee402;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Consistent-hash ring over the cluster nodes that are up. Every node is
+// placed at VIRTUAL_NODES points, so devices spread evenly and a node going
+// down or coming back only moves the devices on its own arcs. Immutable: a
+// membership change builds a new ring. Every node builds the same ring from
+// the same member list, so they all agree on who owns a device.
+final class ClusterRing {
+    private static final int VIRTUAL_NODES = 64;
+
+    private final long[] points;              // sorted
+    private final ClusterNode.Member[] owners; // owner of each point
+
+    ClusterRing(List<ClusterNode.Member> members) {
+        int size = members.size() * VIRTUAL_NODES;
+        long[] hashes = new long[size];
+        for (int m = 0; m < members.size(); m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[m * VIRTUAL_NODES + v] = hash(members.get(m).id + "#" + v);
+            }
+        }
+        // Sort the points, carrying their member along
+        Integer[] byHash = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            byHash[i] = i;
+        }
+        Arrays.sort(byHash, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[size];
+        owners = new ClusterNode.Member[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = hashes[byHash[i]];
+            owners[i] = members.get(byHash[i] / VIRTUAL_NODES);
+        }
+    }
+
+    // The first node clockwise of the device's hash, or null for an empty ring
+    ClusterNode.Member owner(String deviceId) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(deviceId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer
+    // so that ids differing in one trailing character land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,59 @@
+package ee402;
+
+import java.util.concurrent.atomic.LongAdder;
+import javax.swing.Timer;
+
+// Turns any number of refresh requests from the ingest writer into at most
+// one repaint per frame interval. Requesting only bumps a striped counter,
+// so ingest never waits for Swing; a Swing Timer compares the counter on the
+// EDT with its value at the last repaint and repaints once for everything
+// that arrived since. The counter is never reset, so a request that races
+// a tick is seen by that tick or the next, never lost.
+class CoalescingRefresher {
+    private final LongAdder requests = new LongAdder();
+    private final Runnable repaint;
+    private final Timer timer;
+    private long repaintedThrough; // EDT only
+    private volatile long repaints;
+
+    CoalescingRefresher(int framesPerSecond, Runnable repaint) {
+        this.repaint = repaint;
+        this.timer = new Timer(Math.max(1, 1000 / framesPerSecond), e -> tick());
+        this.timer.setCoalesce(true);
+    }
+
+    void start() {
+        timer.start();
+    }
+
+    void stop() {
+        timer.stop();
+    }
+
+    // Safe to call from any thread
+    void requestRefresh() {
+        requests.increment();
+    }
+
+    long getRequestCount() {
+        return requests.sum();
+    }
+
+    long getRepaintCount() {
+        return repaints;
+    }
+
+    // Requests that were folded into another request's repaint
+    long getCoalescedCount() {
+        return getRequestCount() - repaints;
+    }
+
+    private void tick() {
+        long seen = requests.sum();
+        if (seen != repaintedThrough) {
+            repaintedThrough = seen;
+            repaints++;
+            repaint.run();
+        }
+    }
+}
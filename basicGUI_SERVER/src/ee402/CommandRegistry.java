@@ -0,0 +1,140 @@
+package ee402;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Dispatch table for the string commands devices send on the object stream,
+// shared by the threaded and NIO ingest paths. A command is "Verb" or
+// "Verb: argument" and the verb is its opcode: each registered verb gets a
+// small index, and an open-addressed table keyed by a hash of the verb's
+// characters finds it without building a substring, so dispatch costs the
+// same however many commands are registered. The argument is cut out once
+// and handed to the handler.
+//
+// Every command keeps its own call and error counters and latency
+// histogram. A handler that throws is counted as an error against its
+// command and the connection carries on; only an IOException, meaning the
+// connection itself is broken, reaches the caller.
+final class CommandRegistry {
+    // The connection a command arrived on
+    interface Session {
+        DeviceState getDevice();
+
+        void reply(String message) throws IOException;
+
+        // A cached response; the NIO path writes the pre-encoded bytes
+        default void reply(String message, byte[] utf) throws IOException {
+            reply(message);
+        }
+    }
+
+    interface Handler {
+        void handle(Session session, String argument) throws IOException;
+    }
+
+    static final class Command {
+        final String verb;
+        final int opcode;
+        final Handler handler;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Command(String verb, int opcode, Handler handler) {
+            this.verb = verb;
+            this.opcode = opcode;
+            this.handler = handler;
+        }
+    }
+
+    private final ServerMetrics metrics;
+    private final LongAdder unknown = new LongAdder();
+    // Rebuilt on register(), which happens while the server starts up
+    private volatile Command[] commands = new Command[0];
+    private volatile Command[] table = new Command[1];
+
+    CommandRegistry(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    synchronized void register(String verb, Handler handler) {
+        if (verb.isEmpty() || verb.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("bad verb: \"" + verb + "\"");
+        }
+        if (lookup(verb, verb.length()) != null) {
+            throw new IllegalArgumentException("verb already registered: " + verb);
+        }
+        Command[] next = new Command[commands.length + 1];
+        System.arraycopy(commands, 0, next, 0, commands.length);
+        next[commands.length] = new Command(verb, commands.length, handler);
+        // At most half full, so probes stay short
+        Command[] slots = new Command[Integer.highestOneBit(next.length * 2) * 2];
+        for (Command command : next) {
+            int i = hash(command.verb, command.verb.length()) & (slots.length - 1);
+            while (slots[i] != null) {
+                i = (i + 1) & (slots.length - 1);
+            }
+            slots[i] = command;
+        }
+        table = slots;
+        commands = next;
+    }
+
+    // Runs the command's handler; unregistered verbs are counted and ignored
+    void dispatch(Session session, String message) throws IOException {
+        long started = System.nanoTime();
+        DeviceState device = session.getDevice();
+        device.recordMessage();
+        metrics.messages.increment();
+        int end = message.indexOf(':');
+        if (end < 0) {
+            end = message.length();
+        }
+        Command command = lookup(message, end);
+        if (command == null) {
+            unknown.increment();
+            return;
+        }
+        int argument = Math.min(message.length(), end + (message.startsWith(": ", end) ? 2 : 1));
+        command.calls.increment();
+        try {
+            command.handler.handle(session, message.substring(argument));
+        } catch (RuntimeException e) {
+            // A malformed command costs the device that message, not its connection
+            command.errors.increment();
+            metrics.decodeErrors.increment();
+        } finally {
+            command.latency.record(System.nanoTime() - started);
+        }
+    }
+
+    private Command lookup(String message, int length) {
+        Command[] slots = table;
+        int i = hash(message, length) & (slots.length - 1);
+        for (Command command = slots[i]; command != null; command = slots[i]) {
+            if (command.verb.length() == length && message.startsWith(command.verb)) {
+                return command;
+            }
+            i = (i + 1) & (slots.length - 1);
+        }
+        return null;
+    }
+
+    private static int hash(String s, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // In opcode order
+    List<Command> getCommands() {
+        return List.of(commands);
+    }
+
+    long getUnknownCount() {
+        return unknown.sum();
+    }
+}
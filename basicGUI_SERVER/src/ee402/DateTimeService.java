@@ -4,25 +4,92 @@
 
 package ee402;
 
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 
 public class DateTimeService
 {
-   private Calendar calendar;
+   static final String COMMAND = "GetDate";
+   private static final String PREFIX = "The BeagleBone time is: ";
+   // the same layout as Date.toString(), e.g. "Tue Mar 04 10:15:30 GMT 2025"
+   private static final DateTimeFormatter FORMAT =
+	 DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH);
 
-   //constructor creates the Calendar object, could use the constructor:
-   //   Calendar(TimeZone zone, Locale aLocale) to explicitly specify 
-   //	  the time zone and locale
+   // One clock shared by every handler. A daemon thread rebuilds the
+   // response just after each second boundary, so a client polling GetDate
+   // is answered from the cache without allocating.
+   private static volatile Snapshot current = snapshot(System.currentTimeMillis());
+   private static Thread ticker;
+
+   //constructor starts the shared clock on first use; cheap after that
    public DateTimeService()
    {
-	 this.calendar = Calendar.getInstance();
+	 start();
    }
 
-   //method returns date/time as a formatted String object
+   //method returns date/time as a formatted String object, the same
+   //instance for the whole second
    public String getDateAndTime()
    {
-	 Date d = this.calendar.getTime();
-     return "The BeagleBone time is: " + d.toString();	
-   }	
-}
\ No newline at end of file
+	 return current.text;
+   }
+
+   //the response above as UTF-8 bytes, for the NIO string writer
+   byte[] getDateAndTimeUtf()
+   {
+	 return current.utf;
+   }
+
+   private static synchronized void start()
+   {
+	 if (ticker != null)
+	 {
+	    return;
+	 }
+	 ticker = new Thread(DateTimeService::tick, "date-time-service");
+	 ticker.setDaemon(true);
+	 ticker.start();
+   }
+
+   private static void tick()
+   {
+	 while (true)
+	 {
+	    long now = System.currentTimeMillis();
+	    current = snapshot(now);
+	    try
+	    {
+	       // wake a millisecond past the next boundary
+	       Thread.sleep(1001 - now % 1000);
+	    }
+	    catch (InterruptedException e)
+	    {
+	       return;
+	    }
+	 }
+   }
+
+   private static Snapshot snapshot(long millis)
+   {
+	 long second = millis - millis % 1000;
+	 String text = PREFIX + FORMAT.format(ZonedDateTime.ofInstant(
+	    Instant.ofEpochMilli(second), ZoneId.systemDefault()));
+	 return new Snapshot(text);
+   }
+
+   private static final class Snapshot
+   {
+	 final String text;
+	 final byte[] utf;
+
+	 Snapshot(String text)
+	 {
+	    this.text = text;
+	    this.utf = text.getBytes(StandardCharsets.UTF_8);
+	 }
+   }
+}
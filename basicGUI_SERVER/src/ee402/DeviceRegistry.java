@@ -0,0 +1,222 @@
+package ee402;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Concurrent registry of the connected devices, sharded by a hash of the
+// device name. Each shard publishes its members as an immutable array sorted
+// by name, so lookups binary-search it without locking; only connects,
+// renames and disconnects (rare next to readings) take the shard's monitor
+// and copy its array. Ingest threads keep a reference to their DeviceState,
+// so the reading path does not touch the registry at all.
+//
+// Names are unique: a device asking for a name that is taken is registered
+// as "name #n" instead, with the lowest n that is free, so suffixes freed by
+// disconnected devices are reused.
+class DeviceRegistry {
+    private static final int SHARDS = 64;
+    private static final Comparator<DeviceState.View> BY_NAME = Comparator.comparing(view -> view.name);
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong membershipVersion = new AtomicLong();
+
+    DeviceRegistry() {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    DeviceState register(String requestedName) {
+        DeviceState device = new DeviceState(requestedName, System.currentTimeMillis());
+        claim(device, requestedName);
+        size.incrementAndGet();
+        return device;
+    }
+
+    // Called by the device's own ingest thread. The move holds the locks of
+    // both shards, taken in index order, so an unregister never sees the
+    // device half moved; a concurrent lookup can still miss it.
+    void rename(DeviceState device, String requestedName) {
+        for (int suffix = 1; ; suffix++) {
+            String name = suffix == 1 ? requestedName : requestedName + " #" + suffix;
+            if (name.equals(device.getName())) {
+                return;
+            }
+            Shard from = shard(device.getName());
+            Shard to = shard(name);
+            Shard first = from.index <= to.index ? from : to;
+            Shard second = first == from ? to : from;
+            synchronized (first) {
+                synchronized (second) {
+                    if (to.find(name) == null) {
+                        if (!from.remove(device)) {
+                            return; // unregistered meanwhile
+                        }
+                        device.setName(name);
+                        to.insert(device);
+                        membershipVersion.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    void unregister(DeviceState device) {
+        while (true) {
+            String name = device.getName();
+            Shard shard = shard(name);
+            synchronized (shard) {
+                // A rename moved the device between reading its name and
+                // taking the lock: look for it in its new shard
+                if (!name.equals(device.getName())) {
+                    continue;
+                }
+                if (shard.remove(device)) {
+                    size.decrementAndGet();
+                    membershipVersion.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    DeviceState get(String name) {
+        return shard(name).find(name);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    // Changes whenever a device is added, removed or renamed
+    long getMembershipVersion() {
+        return membershipVersion.get();
+    }
+
+    // The live device objects in name order, for holders that track each
+    // device's version themselves (see DeviceTableModel). Each name is read
+    // once and the pairs are sorted, so a rename during the sort cannot make
+    // the ordering inconsistent.
+    List<DeviceState> members() {
+        List<Member> named = new ArrayList<>(size.get());
+        for (Shard shard : shards) {
+            for (DeviceState device : shard.devices) {
+                named.add(new Member(device.getName(), device));
+            }
+        }
+        named.sort(Member.BY_NAME);
+        List<DeviceState> members = new ArrayList<>(named.size());
+        for (Member member : named) {
+            members.add(member.device);
+        }
+        return members;
+    }
+
+    // Immutable, name-ordered copy of every device's state; nothing the
+    // caller does with it can race the ingest threads
+    List<DeviceState.View> snapshot() {
+        WindowedStats.Summary summary = new WindowedStats.Summary();
+        List<DeviceState.View> views = new ArrayList<>(size.get());
+        for (Shard shard : shards) {
+            for (DeviceState device : shard.devices) {
+                views.add(device.view(summary));
+            }
+        }
+        views.sort(BY_NAME);
+        return Collections.unmodifiableList(views);
+    }
+
+    private void claim(DeviceState device, String requestedName) {
+        for (int suffix = 1; ; suffix++) {
+            String name = suffix == 1 ? requestedName : requestedName + " #" + suffix;
+            Shard shard = shard(name);
+            synchronized (shard) {
+                if (shard.find(name) == null) {
+                    device.setName(name);
+                    shard.insert(device);
+                    membershipVersion.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Shard shard(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    private static final class Member {
+        static final Comparator<Member> BY_NAME = Comparator.comparing(member -> member.name);
+
+        final String name;
+        final DeviceState device;
+
+        Member(String name, DeviceState device) {
+            this.name = name;
+            this.device = device;
+        }
+    }
+
+    private static final class Shard {
+        final int index;
+        // Sorted by name; replaced, never modified, under the shard's monitor
+        volatile DeviceState[] devices = new DeviceState[0];
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        DeviceState find(String name) {
+            DeviceState[] current = devices;
+            int i = search(current, name);
+            return i >= 0 ? current[i] : null;
+        }
+
+        void insert(DeviceState device) {
+            DeviceState[] current = devices;
+            int i = -search(current, device.getName()) - 1;
+            DeviceState[] next = new DeviceState[current.length + 1];
+            System.arraycopy(current, 0, next, 0, i);
+            next[i] = device;
+            System.arraycopy(current, i, next, i + 1, current.length - i);
+            devices = next;
+        }
+
+        boolean remove(DeviceState device) {
+            DeviceState[] current = devices;
+            int i = search(current, device.getName());
+            if (i < 0 || current[i] != device) {
+                return false;
+            }
+            DeviceState[] next = new DeviceState[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, next.length - i);
+            devices = next;
+            return true;
+        }
+
+        private static int search(DeviceState[] devices, String name) {
+            int low = 0;
+            int high = devices.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = devices[mid].getName().compareTo(name);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ee402;
+
+// Live state of one registered device: when it connected, how many messages
+// and readings it has sent, its last reading and a window of recent values
+// per channel. Each device is normally written only by its own connection's
+// ingest thread, so the monitor below is uncontended; it keeps the last
+// reading consistent for readers taking a View.
+class DeviceState {
+    private volatile String name;
+    private final long connectedAt;
+    private final WindowedStats[] stats = new WindowedStats[SensorChannel.values().length];
+
+    private volatile long version; // bumped under the monitor on every change
+    private long messages;
+    private long readings;
+    private long lastTimestamp;
+    private double lastMethane;
+    private double lastCo2;
+    private double lastTemperature;
+
+    // The id last seen in this device's SBP frames; ingest thread only
+    String frameName;
+
+    DeviceState(String name, long connectedAt) {
+        this.name = name;
+        this.connectedAt = connectedAt;
+        for (SensorChannel channel : SensorChannel.values()) {
+            stats[channel.ordinal()] = WindowedStats.ofCount(SensorServer.ANALYSIS_WINDOW);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Only DeviceRegistry sets the name: under the new shard's lock while
+    // registering, and under the locks of both shards while renaming
+    void setName(String name) {
+        this.name = name;
+    }
+
+    long getConnectedAt() {
+        return connectedAt;
+    }
+
+    WindowedStats getStats(SensorChannel channel) {
+        return stats[channel.ordinal()];
+    }
+
+    synchronized void recordMessage() {
+        messages++;
+        version++;
+    }
+
+    void recordReading(long timestamp, double methane, double co2, double temperature) {
+        stats[SensorChannel.METHANE.ordinal()].add(methane);
+        stats[SensorChannel.CO2.ordinal()].add(co2);
+        stats[SensorChannel.TEMPERATURE.ordinal()].add(temperature);
+        synchronized (this) {
+            readings++;
+            lastTimestamp = timestamp;
+            lastMethane = methane;
+            lastCo2 = co2;
+            lastTemperature = temperature;
+            version++;
+        }
+    }
+
+    // Lets a view holder tell cheaply, without copying, whether it is stale
+    long getVersion() {
+        return version;
+    }
+
+    View view(WindowedStats.Summary summary) {
+        View view = new View(name, connectedAt);
+        synchronized (this) {
+            view.messages = messages;
+            view.readings = readings;
+            view.lastTimestamp = lastTimestamp;
+            view.lastMethane = lastMethane;
+            view.lastCo2 = lastCo2;
+            view.lastTemperature = lastTemperature;
+        }
+        for (SensorChannel channel : SensorChannel.values()) {
+            stats[channel.ordinal()].read(summary);
+            view.mean[channel.ordinal()] = summary.getMean();
+            view.min[channel.ordinal()] = summary.min;
+            view.max[channel.ordinal()] = summary.max;
+        }
+        return view;
+    }
+
+    // Immutable copy of a device's state for rendering off the ingest threads
+    static final class View {
+        final String name;
+        final long connectedAt;
+        private long messages;
+        private long readings;
+        private long lastTimestamp;
+        private double lastMethane;
+        private double lastCo2;
+        private double lastTemperature;
+        private final double[] mean = new double[SensorChannel.values().length];
+        private final double[] min = new double[SensorChannel.values().length];
+        private final double[] max = new double[SensorChannel.values().length];
+
+        private View(String name, long connectedAt) {
+            this.name = name;
+            this.connectedAt = connectedAt;
+        }
+
+        long getMessages() {
+            return messages;
+        }
+
+        long getReadings() {
+            return readings;
+        }
+
+        long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        double getLast(SensorChannel channel) {
+            switch (channel) {
+                case METHANE:
+                    return lastMethane;
+                case CO2:
+                    return lastCo2;
+                default:
+                    return lastTemperature;
+            }
+        }
+
+        double getMean(SensorChannel channel) {
+            return mean[channel.ordinal()];
+        }
+
+        double getMin(SensorChannel channel) {
+            return min[channel.ordinal()];
+        }
+
+        double getMax(SensorChannel channel) {
+            return max[channel.ordinal()];
+        }
+    }
+}
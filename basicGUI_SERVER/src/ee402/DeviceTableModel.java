@@ -0,0 +1,169 @@
+package ee402;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.table.AbstractTableModel;
+
+// Connected-devices table backed by the registry. refresh() runs on the EDT
+// once per repaint frame: membership changes are diffed against the current
+// rows into row insert/delete events, and otherwise only rows whose device
+// version moved are re-copied and fired as updated. JTable renders just the
+// visible rows, so a frame costs one version read per device plus Swing
+// work proportional to what changed.
+class DeviceTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {
+            "Device", "Connected", "Messages", "Readings", "Methane", "CO2", "Temperature"};
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private final DeviceRegistry registry;
+    private final WindowedStats.Summary summary = new WindowedStats.Summary();
+    private final List<Row> rows = new ArrayList<>();
+    private long membershipVersion = -1;
+
+    private static final class Row {
+        final DeviceState device;
+        final String name;
+        long version = -1;
+        DeviceState.View view;
+
+        Row(DeviceState device) {
+            this.device = device;
+            this.name = device.getName();
+        }
+    }
+
+    DeviceTableModel(DeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    // EDT only
+    void refresh() {
+        long membership = registry.getMembershipVersion();
+        if (membership != membershipVersion) {
+            membershipVersion = membership;
+            applyMembership(registry.members());
+        }
+        int first = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            long version = row.device.getVersion();
+            if (version != row.version) {
+                row.version = version;
+                row.view = row.device.view(summary);
+                if (first < 0) {
+                    first = i;
+                }
+            } else if (first >= 0) {
+                fireTableRowsUpdated(first, i - 1);
+                first = -1;
+            }
+        }
+        if (first >= 0) {
+            fireTableRowsUpdated(first, rows.size() - 1);
+        }
+    }
+
+    // Both lists are in name order, so one merge pass finds the rows that
+    // left (or were renamed away) and the ones that arrived; adjacent
+    // changes go out as one ranged event
+    private void applyMembership(List<DeviceState> members) {
+        int i = 0;
+        int m = 0;
+        int inserted = 0;
+        int deleted = 0;
+        while (i < rows.size() || m < members.size()) {
+            DeviceState next = m < members.size() ? members.get(m) : null;
+            if (i < rows.size()) {
+                Row row = rows.get(i);
+                int cmp = next == null ? -1 : row.name.compareTo(next.getName());
+                if (cmp <= 0 && !(cmp == 0 && row.device == next)) {
+                    inserted = flushInserted(i, inserted);
+                    rows.remove(i);
+                    deleted++;
+                    continue;
+                }
+                deleted = flushDeleted(i, deleted);
+                if (cmp == 0) {
+                    inserted = flushInserted(i, inserted);
+                    i++;
+                    m++;
+                    continue;
+                }
+            }
+            deleted = flushDeleted(i, deleted);
+            rows.add(i, new Row(next));
+            inserted++;
+            i++;
+            m++;
+        }
+        flushDeleted(i, deleted);
+        flushInserted(i, inserted);
+    }
+
+    // Rows [end - count, end) were just inserted
+    private int flushInserted(int end, int count) {
+        if (count > 0) {
+            fireTableRowsInserted(end - count, end - 1);
+        }
+        return 0;
+    }
+
+    // count rows that were at index start were just removed
+    private int flushDeleted(int start, int count) {
+        if (count > 0) {
+            fireTableRowsDeleted(start, start + count - 1);
+        }
+        return 0;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        if (column <= 1) {
+            return String.class;
+        }
+        return column <= 3 ? Long.class : Double.class;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        Row row = rows.get(rowIndex);
+        DeviceState.View view = row.view;
+        switch (column) {
+            case 0:
+                return row.name;
+            case 1:
+                return TIME.format(Instant.ofEpochMilli(row.device.getConnectedAt()));
+            case 2:
+                return view.getMessages();
+            case 3:
+                return view.getReadings();
+            case 4:
+                return view.getLast(SensorChannel.METHANE);
+            case 5:
+                return view.getLast(SensorChannel.CO2);
+            default:
+                return view.getLast(SensorChannel.TEMPERATURE);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package ee402;
+
+import java.io.Closeable;
+import java.io.IOException;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+// Executor for the blocking thread-per-device handlers. In "virtual" mode
+// every handler gets a virtual thread, so an idle device costs a small heap
+// object instead of a platform thread and its stack; "platform" (and JDKs
+// without virtual threads) keeps one named platform thread per handler.
+// Running handlers are tracked so drain() can tell their devices the server is
+// going away and shutDown() can unblock their socket reads.
+class HandlerPool {
+    private static final String PLATFORM_PREFIX = "device-handler-";
+    private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    interface Handler extends Runnable, Closeable {
+        // Asks the device to hang up and come back later; may block on a
+        // device that stopped reading, until close() fails the write.
+        // Handlers with no way to tell their device wait for the deadline.
+        default void goAway() {
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Set<Handler> running = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    // Heap left by the first collection, what the server holds before the
+    // connections add much; -1 until the collector runs of its own accord
+    private volatile long baselineHeap = -1;
+
+    // Carrier utilization, sampled at most once per SAMPLE_INTERVAL
+    private long lastSampleNanos;
+    private long lastCpuNanos;
+    private int carriers;
+    private double utilization;
+
+    HandlerPool(String mode) {
+        ExecutorService virtualExecutor = "virtual".equalsIgnoreCase(mode) ? newVirtualExecutor() : null;
+        if ("virtual".equalsIgnoreCase(mode) && virtualExecutor == null) {
+            System.out.println("XX. Virtual threads are not available on this JDK, using platform threads");
+        }
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor : Executors.newCachedThreadPool(platformThreads());
+        GcInfo last = lastGcInfo();
+        if (last != null) {
+            baselineHeap = heapAfter(last);
+        } else {
+            baselineAtFirstCollection();
+        }
+    }
+
+    void execute(Handler handler) {
+        running.add(handler);
+        executor.execute(() -> {
+            try {
+                handler.run();
+            } finally {
+                running.remove(handler);
+            }
+        });
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    int getActiveCount() {
+        return running.size();
+    }
+
+    // Stops taking handlers, tells the running ones' devices to go away and
+    // waits up to drainMillis for them to hang up; returns how many are still
+    // connected. The notices go out on their own thread so one stuck device
+    // cannot hold up the rest or the deadline.
+    int drain(long drainMillis) {
+        executor.shutdown();
+        Thread notifier = new Thread(() -> {
+            for (Handler handler : running) {
+                handler.goAway();
+            }
+        }, "handler-drain");
+        notifier.setDaemon(true);
+        notifier.start();
+        try {
+            executor.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return running.size();
+    }
+
+    // Stops taking handlers, closes the running ones so their blocking reads
+    // fail, then waits up to timeoutMillis for them to finish
+    boolean shutDown(long timeoutMillis) {
+        executor.shutdown();
+        for (Handler handler : running) {
+            try {
+                handler.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        try {
+            if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    // Share of the time the threads running handlers (the carrier pool in
+    // virtual mode, the handler threads themselves in platform mode) spent on
+    // the CPU since the previous sample
+    synchronized double getCarrierUtilization() {
+        long now = System.nanoTime();
+        if (now - lastSampleNanos < SAMPLE_INTERVAL) {
+            return utilization;
+        }
+        long[] ids = THREADS.getAllThreadIds();
+        ThreadInfo[] infos = THREADS.getThreadInfo(ids);
+        long cpu = 0;
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] != null && isCarrier(infos[i].getThreadName())) {
+                long time = THREADS.getThreadCpuTime(ids[i]);
+                if (time > 0) {
+                    cpu += time;
+                    count++;
+                }
+            }
+        }
+        if (lastSampleNanos != 0 && count > 0) {
+            utilization = Math.max(0, cpu - lastCpuNanos) / (double) ((now - lastSampleNanos) * count);
+        }
+        lastSampleNanos = now;
+        lastCpuNanos = cpu;
+        carriers = count;
+        return utilization;
+    }
+
+    synchronized int getCarrierCount() {
+        return carriers;
+    }
+
+    // The heap/connection figure is the growth of the heap left after the
+    // latest collection since the baseline, over the active handlers. It
+    // moves only when the collector runs, but never counts garbage or the
+    // server's own footprint; until the first collection there is no figure.
+    String describe() {
+        int active = getActiveCount();
+        long baseline = baselineHeap;
+        GcInfo last = lastGcInfo();
+        String heapPerHandler = baseline < 0 || last == null ? "n/a"
+                : (active == 0 ? 0 : Math.max(0, heapAfter(last) - baseline) / active / 1024) + " KB";
+        return String.format("Handlers: %d on %s threads, %d carriers %.0f%% busy, "
+                        + "%d platform threads, heap/connection: %s",
+                active, virtual ? "virtual" : "platform", getCarrierCount(), getCarrierUtilization() * 100,
+                THREADS.getThreadCount(), heapPerHandler);
+    }
+
+    // Takes the baseline from the first collection the JVM runs by itself;
+    // forcing one here would stop the world just for a diagnostic figure
+    private void baselineAtFirstCollection() {
+        NotificationListener listener = (notification, handback) -> {
+            if (baselineHeap < 0 && GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                    .equals(notification.getType())) {
+                baselineHeap = heapAfter(GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData()).getGcInfo());
+            }
+        };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    // The most recent collection of any kind, null before the first
+    private static GcInfo lastGcInfo() {
+        GcInfo last = null;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof com.sun.management.GarbageCollectorMXBean) {
+                GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+                if (info != null && (last == null || info.getEndTime() > last.getEndTime())) {
+                    last = info;
+                }
+            }
+        }
+        return last;
+    }
+
+    // Heap in use right after the given collection
+    private static long heapAfter(GcInfo info) {
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getMemoryUsageAfterGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private boolean isCarrier(String threadName) {
+        if (virtual) {
+            // The default virtual-thread scheduler's workers
+            return threadName.startsWith("ForkJoinPool-") && threadName.contains("-worker-");
+        }
+        return threadName.startsWith(PLATFORM_PREFIX);
+    }
+
+    private ThreadFactory platformThreads() {
+        return r -> new Thread(r, PLATFORM_PREFIX + threadCount.incrementAndGet());
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so
+    // the server still builds and runs on JDK 17
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package ee402;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded hand-off between the ingest threads that decode readings and the
+// sinks that aggregate them. Every ingest thread is a producer; one writer
+// thread drains the queue in batches and calls the target sink, so a slow
+// sink holds up the writer rather than every device socket, and a burst is
+// absorbed by the queue instead of by the sockets.
+//
+// The ring is a set of preallocated columns (names, timestamps, values), so
+// enqueueing a reading does not allocate. A producer claims a slot by moving
+// tail forward with a CAS, but only while the ring has room, writes the
+// columns and publishes the slot with a volatile store of its sequence, as
+// in LiveRelay. The writer takes each published slot in sequence order and
+// releases it by moving head forward.
+//
+// Device connects, renames and disconnects travel through the same ring, so
+// the target sees every device's events in the order the ingest threads
+// produced them.
+//
+// What a producer does when the ring is full is the overflow policy:
+//   block        wait for the writer to free a slot, so the device's socket
+//                stops being read and TCP pushes back on the device
+//   drop-oldest  discard the oldest queued reading (never a device event)
+//                and take its slot; the reading is already in the write-ahead
+//                log, it only misses the live aggregates
+//   signal       once the ring is HIGH_WATER full, report it congested until
+//                it drains to LOW_WATER, so that rate directives slow the SBP
+//                devices down (see RateController); wait like block if it
+//                fills anyway
+class IngestQueue implements ReadingSink {
+    static final int BLOCK = 0;
+    static final int DROP_OLDEST = 1;
+    static final int SIGNAL = 2;
+
+    private static final int READING = 0;
+    private static final int CONNECTED = 1;
+    private static final int DISCONNECTED = 2;
+    private static final int RENAMED = 3;
+
+    private static final int MAX_BATCH = 1024;
+    private static final int SPINS = 64;
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ReadingSink target;
+    private final int policy;
+    private final int capacity;
+    private final int mask;
+    private final int highWater;
+    private final int lowWater;
+
+    private final AtomicLongArray published;
+    private final int[] kinds;
+    private final String[] names;
+    private final String[] oldNames; // renames only
+    private final long[] timestamps;
+    private final double[] methane;
+    private final double[] co2;
+    private final double[] temperature;
+
+    private final AtomicLong tail = new AtomicLong(); // next sequence to claim
+    private final AtomicLong head = new AtomicLong(); // next sequence to deliver
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private volatile boolean congested;
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder congestions = new LongAdder();
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    // capacity is rounded up to a power of two slots
+    IngestQueue(ReadingSink target, int capacity, int policy) {
+        this.target = target;
+        this.policy = policy;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.highWater = this.capacity / 4 * 3;
+        this.lowWater = this.capacity / 4;
+        this.published = new AtomicLongArray(this.capacity);
+        this.kinds = new int[this.capacity];
+        this.names = new String[this.capacity];
+        this.oldNames = new String[this.capacity];
+        this.timestamps = new long[this.capacity];
+        this.methane = new double[this.capacity];
+        this.co2 = new double[this.capacity];
+        this.temperature = new double[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        writer = new Thread(this::run, "ingest-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static int parseOverflow(String policy) {
+        switch (policy.toLowerCase(Locale.ROOT)) {
+            case "block":
+                return BLOCK;
+            case "drop-oldest":
+                return DROP_OLDEST;
+            case "signal":
+                return SIGNAL;
+            default:
+                System.out.println("XX. Unknown ingest overflow policy \"" + policy + "\", using block");
+                return BLOCK;
+        }
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        long sequence = claim(true);
+        int slot = (int) (sequence & mask);
+        names[slot] = deviceName;
+        timestamps[slot] = timestamp;
+        this.methane[slot] = methane;
+        this.co2[slot] = co2;
+        this.temperature[slot] = temperature;
+        publish(sequence, READING);
+    }
+
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        long sequence = claim(false);
+        names[(int) (sequence & mask)] = deviceName;
+        publish(sequence, CONNECTED);
+    }
+
+    @Override
+    public void onDeviceDisconnected(String deviceName) {
+        long sequence = claim(false);
+        names[(int) (sequence & mask)] = deviceName;
+        publish(sequence, DISCONNECTED);
+    }
+
+    @Override
+    public void onDeviceRenamed(String oldName, String newName) {
+        long sequence = claim(false);
+        int slot = (int) (sequence & mask);
+        oldNames[slot] = oldName;
+        names[slot] = newName;
+        publish(sequence, RENAMED);
+    }
+
+    // Claims the next sequence, applying the overflow policy while the ring is
+    // full; only readings may push out the oldest entry
+    private long claim(boolean reading) {
+        long waitedSince = 0;
+        int spins = 0;
+        while (true) {
+            long sequence = tail.get();
+            long depth = sequence - head.get();
+            if (depth < capacity) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    if (policy == SIGNAL && !congested && depth >= highWater) {
+                        congested = true;
+                        congestions.increment();
+                    }
+                    if (waitedSince != 0) {
+                        blockedNanos.add(System.nanoTime() - waitedSince);
+                    }
+                    return sequence;
+                }
+                continue;
+            }
+            if (reading && policy == DROP_OLDEST && dropOldest()) {
+                continue;
+            }
+            if (waitedSince == 0) {
+                waitedSince = System.nanoTime();
+                blocked.increment();
+            }
+            // Spin briefly, then park: with few CPUs spinning only delays
+            // the writer we are waiting for
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+            }
+            wakeWriter();
+        }
+    }
+
+    // Takes the oldest entry off the ring if it is a published reading
+    private boolean dropOldest() {
+        long sequence = head.get();
+        int slot = (int) (sequence & mask);
+        if (published.get(slot) != sequence || kinds[slot] != READING) {
+            return false;
+        }
+        if (head.compareAndSet(sequence, sequence + 1)) {
+            dropped.increment();
+        }
+        return true;
+    }
+
+    private void publish(long sequence, int kind) {
+        int slot = (int) (sequence & mask);
+        kinds[slot] = kind;
+        published.set(slot, sequence);
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int batch = drain();
+            if (batch > 0) {
+                batchSizes.record(batch);
+                continue;
+            }
+            long seen = tail.get();
+            if (head.get() != seen) {
+                // Claimed but not yet published: let its producer finish
+                Thread.yield();
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+            // Park only if nothing was claimed meanwhile; a producer that
+            // publishes after this point finds sleeping set and unparks us
+            sleeping.set(true);
+            if (tail.get() == seen && running) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping.set(false);
+        }
+    }
+
+    // Delivers up to MAX_BATCH published entries in sequence order
+    private int drain() {
+        int count = 0;
+        while (count < MAX_BATCH) {
+            long sequence = head.get();
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            int kind = kinds[slot];
+            String name = names[slot];
+            String oldName = oldNames[slot];
+            long timestamp = timestamps[slot];
+            double m = methane[slot];
+            double c = co2[slot];
+            double t = temperature[slot];
+            // Fails only when drop-oldest took the entry while it was read
+            if (!head.compareAndSet(sequence, sequence + 1)) {
+                continue;
+            }
+            count++;
+            deliver(kind, name, oldName, timestamp, m, c, t);
+        }
+        if (congested && tail.get() - head.get() <= lowWater) {
+            congested = false;
+        }
+        return count;
+    }
+
+    private void deliver(int kind, String name, String oldName, long timestamp, double m, double c, double t) {
+        try {
+            switch (kind) {
+                case READING:
+                    target.onReading(name, timestamp, m, c, t);
+                    break;
+                case CONNECTED:
+                    target.onDeviceConnected(name);
+                    break;
+                case DISCONNECTED:
+                    target.onDeviceDisconnected(name);
+                    break;
+                default:
+                    target.onDeviceRenamed(oldName, name);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // The writer serves every device; one bad entry must not stop it
+            System.out.println("XX. Ingest writer failed to deliver: " + e);
+        }
+    }
+
+    // Delivers what is queued, then stops the writer; the producers must
+    // have stopped first. Returns whether the ring drained within the time.
+    boolean stop(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    // Entries claimed but not yet delivered
+    int getDepth() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    // Under the signal policy, whether devices should be slowed down now
+    boolean isCongested() {
+        return congested;
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // Enqueues that found the ring full and had to wait
+    long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    // Times the ring went over HIGH_WATER under the signal policy
+    long getCongestionCount() {
+        return congestions.sum();
+    }
+
+    // Entries delivered per writer wake-up
+    LatencyHistogram getBatchSizes() {
+        return batchSizes;
+    }
+}
@@ -0,0 +1,373 @@
+package ee402;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streams live readings to subscriber connections (dashboards, other
+// servers) on a port of their own. A subscriber connects and sends one line,
+//
+//   SUBSCRIBE <device,device,...|*> [<channel,channel,...|*>]
+//
+// and from then on receives SBP SAMPLE frames for the readings that match.
+//
+// Every reading is encoded once, as one SAMPLE per channel, into a shared
+// ring of fixed-size slots in a direct buffer. The relay is a sink, so only
+// the ingest queue's writer thread publishes: it claims slots with a
+// getAndAdd and publishes each with a volatile store, and never waits on the
+// relay. One relay thread owns every subscriber socket: it copies the
+// matching slots into the subscriber's own buffer, checks that the writer
+// did not lap them while it copied, and only then writes, so nothing is
+// re-encoded and a torn frame never reaches a socket.
+//
+// A subscriber that falls more than half a ring behind is either skipped
+// forward to the live edge, losing what it missed ("drop"), or disconnected
+// ("disconnect"). Either way the ring keeps moving and ingest never stalls.
+class LiveRelay implements ReadingSink {
+    static final String SUBSCRIBE = "SUBSCRIBE";
+    private static final int ENTRY = SensorFrame.SAMPLE_SIZE;
+    private static final int CHANNELS = SensorChannel.values().length;
+    private static final int MAX_REQUEST = 1024;
+    private static final int OUT_ENTRIES = 256;
+    private static final long SELECT_MILLIS = 100;
+
+    private final int port;
+    private final boolean disconnectSlow;
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;
+    private final String[] names; // device of each slot, for filtering
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private volatile int subscriberCount;
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    // Relay-thread view of the ring to copy slots out of
+    private final ByteBuffer source;
+
+    // capacity is rounded up to a power of two slots
+    LiveRelay(int port, int capacity, String slowPolicy) {
+        this.port = port;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.disconnectSlow = "disconnect".equalsIgnoreCase(slowPolicy);
+        this.ring = ByteBuffer.allocateDirect(this.capacity * ENTRY);
+        this.published = new AtomicLongArray(this.capacity);
+        this.names = new String[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        this.source = ring.duplicate();
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        Thread relay = new Thread(this::run, "live-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    int getSubscriberCount() {
+        return subscriberCount;
+    }
+
+    // SAMPLE frames a "drop" subscriber skipped to catch up
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    long getSlowDisconnectCount() {
+        return slowDisconnects.sum();
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        if (subscriberCount == 0) {
+            return;
+        }
+        long sequence = head.getAndAdd(CHANNELS);
+        publish(sequence, deviceName, timestamp, SensorChannel.METHANE.ordinal(), methane);
+        publish(sequence + 1, deviceName, timestamp, SensorChannel.CO2.ordinal(), co2);
+        publish(sequence + 2, deviceName, timestamp, SensorChannel.TEMPERATURE.ordinal(), temperature);
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+
+    private void publish(long sequence, String deviceName, long timestamp, int channel, double value) {
+        int slot = (int) (sequence & mask);
+        names[slot] = deviceName;
+        SensorFrame.encodeSample(ring, slot * ENTRY, deviceName, timestamp, channel, value);
+        published.set(slot, sequence);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long seen = head.get();
+                boolean writable = flushAll();
+                // Sleep only if nothing was claimed meanwhile; a claim made
+                // after this point finds sleeping set and wakes us
+                sleeping.set(true);
+                if (writable && head.get() != seen) {
+                    selector.selectNow();
+                } else {
+                    selector.select(SELECT_MILLIS);
+                }
+                sleeping.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            subscriber.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            subscriber.blocked = false;
+                        }
+                    } catch (IOException e) {
+                        subscriber.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("XX. Relay selector failure: " + e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Subscriber) {
+                ((Subscriber) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Subscriber subscriber = new Subscriber(channel);
+            subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+        }
+    }
+
+    // Returns whether any subscriber could take more
+    private boolean flushAll() {
+        boolean writable = false;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Subscriber) {
+                Subscriber subscriber = (Subscriber) key.attachment();
+                if (subscriber.subscribed && !subscriber.blocked) {
+                    try {
+                        subscriber.flush();
+                        writable |= !subscriber.blocked;
+                    } catch (IOException e) {
+                        subscriber.close();
+                    }
+                }
+            }
+        }
+        return writable;
+    }
+
+    private class Subscriber {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(OUT_ENTRIES * ENTRY);
+        private Set<String> devices; // null for every device
+        private int channels;        // bit per channel ordinal
+        private long cursor;         // next sequence to consider
+        private boolean subscribed;
+        private boolean blocked;     // waiting for the socket to drain
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+            out.flip();
+        }
+
+        void read() throws IOException {
+            if (subscribed) {
+                // Nothing is expected after the request line; read only to
+                // notice the subscriber hanging up
+                request = request == null ? ByteBuffer.allocate(64) : request;
+                request.clear();
+            }
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+            if (subscribed) {
+                return;
+            }
+            for (int i = 0; i < request.position(); i++) {
+                if (request.get(i) == '\n') {
+                    subscribe(new String(request.array(), 0, i, StandardCharsets.US_ASCII).trim());
+                    request = null;
+                    return;
+                }
+            }
+            if (!request.hasRemaining()) {
+                throw new IOException("subscription request too long");
+            }
+        }
+
+        private void subscribe(String line) throws IOException {
+            String[] words = line.split("\\s+");
+            if (words.length < 2 || words.length > 3 || !words[0].equalsIgnoreCase(SUBSCRIBE)) {
+                throw new IOException("bad subscription: " + line);
+            }
+            if (!words[1].equals("*")) {
+                devices = new HashSet<>();
+                for (String device : words[1].split(",")) {
+                    devices.add(device);
+                }
+            }
+            if (words.length == 2 || words[2].equals("*")) {
+                channels = (1 << CHANNELS) - 1;
+            } else {
+                for (String label : words[2].split(",")) {
+                    channels |= 1 << channel(label).ordinal();
+                }
+            }
+            cursor = head.get();
+            subscribed = true;
+            subscriberCount++;
+        }
+
+        private SensorChannel channel(String label) throws IOException {
+            for (SensorChannel channel : SensorChannel.values()) {
+                if (channel.getLabel().toLowerCase(Locale.ROOT).equals(label.toLowerCase(Locale.ROOT))) {
+                    return channel;
+                }
+            }
+            throw new IOException("unknown channel " + label);
+        }
+
+        // Writes as much of the ring past cursor as the socket takes
+        void flush() throws IOException {
+            if (out.hasRemaining()) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    block();
+                    return;
+                }
+            }
+            long available = head.get();
+            if (available - cursor > capacity / 2) {
+                if (disconnectSlow) {
+                    slowDisconnects.increment();
+                    close();
+                    return;
+                }
+                dropped.add(available - cursor);
+                cursor = available;
+            }
+            while (cursor < available) {
+                out.clear();
+                long sequence = cursor;
+                for (; sequence < available && out.remaining() >= ENTRY; sequence++) {
+                    int slot = (int) (sequence & mask);
+                    if (published.get(slot) != sequence) {
+                        break; // Claimed but not written yet
+                    }
+                    if (matches(slot)) {
+                        source.limit(slot * ENTRY + ENTRY).position(slot * ENTRY);
+                        out.put(source);
+                    }
+                }
+                out.flip();
+                // A slot is only rewritten once a full ring has been claimed
+                // past it; if that happened while copying, the copy may be
+                // torn, so it never goes out. The fence keeps the plain reads
+                // of the copy from moving after the re-check of head.
+                VarHandle.loadLoadFence();
+                if (head.get() - cursor > capacity) {
+                    out.limit(0);
+                    slowDisconnects.increment();
+                    close();
+                    return;
+                }
+                cursor = sequence;
+                if (!out.hasRemaining()) {
+                    return;
+                }
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    block();
+                    return;
+                }
+            }
+        }
+
+        private boolean matches(int slot) {
+            int channel = ring.get(slot * ENTRY + SensorFrame.SAMPLE_CHANNEL_OFFSET);
+            return (channels & (1 << channel)) != 0 && (devices == null || devices.contains(names[slot]));
+        }
+
+        private void block() {
+            blocked = true;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (subscribed) {
+                subscriberCount--;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package ee402;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Publishes ServerMetrics as Prometheus text on http://localhost:<port>/metrics
+// and as an MXBean on the platform MBean server. Rates, percentiles and the
+// per-device counters are only worked out when something asks for them.
+// The same port serves the history query API (QueryService) on /query.
+class MetricsExporter implements ServerMetricsMXBean {
+    private static final String OBJECT_NAME = "ee402:type=SensorServer";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final SensorServer server;
+    private final ServerMetrics metrics;
+    private HttpServer http;
+    private ObjectName name;
+
+    MetricsExporter(SensorServer server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+    }
+
+    // Either half failing (port taken, bean already registered by another
+    // server in this JVM) is reported and leaves the other running
+    void start(int port) {
+        if (port > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                http.createContext("/metrics", this::handle);
+                http.createContext("/query", new QueryService(server.getRollups()));
+                http.start();
+                System.out.println("00. Metrics on http://localhost:" + port + "/metrics, history queries on /query");
+            } catch (IOException e) {
+                System.out.println("XX. Unable to start the metrics endpoint on port " + port + ": " + e);
+                http = null;
+            }
+        }
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName(OBJECT_NAME);
+            beans.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("XX. Unable to register " + OBJECT_NAME + ": " + e);
+            name = null;
+        }
+    }
+
+    void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "ee402_readings_total", "Sensor readings delivered", metrics.readings.sum());
+        gauge(out, "ee402_readings_per_second", "Sensor readings delivered over the last second",
+                metrics.getReadingsPerSecond());
+        counter(out, "ee402_messages_total", "Device messages handled (strings and SBP frames)",
+                metrics.messages.sum());
+        counter(out, "ee402_bytes_in_total", "Bytes read from device sockets", metrics.bytesIn.sum());
+        counter(out, "ee402_bytes_out_total", "Bytes written to device sockets", metrics.bytesOut.sum());
+        counter(out, "ee402_decode_errors_total", "Device messages that could not be decoded",
+                metrics.decodeErrors.sum());
+        counter(out, "ee402_send_errors_total", "Failed writes to device sockets", metrics.sendErrors.sum());
+        counter(out, "ee402_connections_opened_total", "Device connections accepted",
+                metrics.connectionsOpened.sum());
+        counter(out, "ee402_connections_closed_total", "Device connections closed",
+                metrics.connectionsClosed.sum());
+        counter(out, "ee402_wal_errors_total", "Write-ahead log appends or syncs that failed",
+                metrics.walErrors.sum());
+        gauge(out, "ee402_connected_devices", "Devices currently connected", server.getDevices().size());
+        gauge(out, "ee402_active_alerts", "Alert rules currently raised", server.getAlerts().getActiveCount());
+        counter(out, "ee402_rate_directives_total", "Sampling rates sent to devices", metrics.rateDirectives.sum());
+        gauge(out, "ee402_shed_level", "Device sample intervals are doubled this many times to shed load",
+                server.getRates().getShedLevel());
+        IngestQueue ingest = server.getIngest();
+        gauge(out, "ee402_ingest_queue_depth", "Readings and device events waiting for the ingest writer",
+                ingest.getDepth());
+        gauge(out, "ee402_ingest_queue_capacity", "Slots in the ingest queue", ingest.getCapacity());
+        counter(out, "ee402_ingest_dropped_total", "Queued readings dropped from the live aggregates by drop-oldest",
+                ingest.getDroppedCount());
+        counter(out, "ee402_ingest_blocked_total", "Ingest threads that found the queue full and waited",
+                ingest.getBlockedCount());
+        counter(out, "ee402_ingest_blocked_seconds_total", "Time ingest threads spent waiting for queue space",
+                ingest.getBlockedNanos() / 1e9);
+        counter(out, "ee402_ingest_congestions_total", "Times the queue filled past the signal policy's high water",
+                ingest.getCongestionCount());
+        gauge(out, "ee402_ingest_congested", "1 while devices are being told to slow down for the queue",
+                ingest.isCongested() ? 1 : 0);
+        summary(out, "ee402_ingest_batch_size", "Entries the ingest writer delivered per wake-up",
+                ingest.getBatchSizes(), 1);
+        LiveRelay relay = server.getRelay();
+        if (relay != null) {
+            gauge(out, "ee402_relay_subscribers", "Live relay subscribers", relay.getSubscriberCount());
+            counter(out, "ee402_relay_dropped_total", "Samples skipped by relay subscribers that fell behind",
+                    relay.getDroppedCount());
+            counter(out, "ee402_relay_slow_disconnects_total", "Relay subscribers disconnected for falling behind",
+                    relay.getSlowDisconnectCount());
+        }
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            counter(out, "ee402_redirects_total", "Handshakes redirected to the node owning the device",
+                    metrics.redirects.sum());
+            gauge(out, "ee402_cluster_nodes_up", "Cluster nodes this node currently hears from, itself included",
+                    cluster.getNodesUp());
+            gauge(out, "ee402_fleet_devices", "Devices that have reported to any cluster node",
+                    cluster.getFleetDeviceCount());
+            fleet(out, cluster);
+        }
+        summary(out, "ee402_parse_latency_seconds", "Decoding and queueing one device message",
+                metrics.parseLatency, 1e9);
+        summary(out, "ee402_edt_lag_seconds", "Wait for the Swing event queue", metrics.edtLag, 1e9);
+        commands(out, server.getCommands());
+
+        out.append("# HELP ee402_device_readings_total Sensor readings delivered per device\n");
+        out.append("# TYPE ee402_device_readings_total counter\n");
+        for (DeviceState.View device : server.getDevices().snapshot()) {
+            out.append("ee402_device_readings_total{device=\"");
+            escape(out, device.name);
+            out.append("\"} ").append(device.getReadings()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Fleet-wide aggregates per channel, folded from every node's gossip
+    private static void fleet(StringBuilder out, ClusterNode cluster) {
+        SensorChannel[] channels = SensorChannel.values();
+        WindowedStats.Summary[] summaries = new WindowedStats.Summary[channels.length];
+        for (SensorChannel channel : channels) {
+            summaries[channel.ordinal()] = cluster.fleetSummary(channel, new WindowedStats.Summary());
+        }
+        header(out, "ee402_fleet_readings_total", "Readings of every device on every node", "counter");
+        for (SensorChannel channel : channels) {
+            channelLine(out, "ee402_fleet_readings_total", channel).append(summaries[channel.ordinal()].count).append('\n');
+        }
+        header(out, "ee402_fleet_mean", "Mean of every reading across the cluster", "gauge");
+        for (SensorChannel channel : channels) {
+            channelLine(out, "ee402_fleet_mean", channel).append(summaries[channel.ordinal()].getMean()).append('\n');
+        }
+        header(out, "ee402_fleet_min", "Lowest reading across the cluster", "gauge");
+        for (SensorChannel channel : channels) {
+            channelLine(out, "ee402_fleet_min", channel).append(summaries[channel.ordinal()].min).append('\n');
+        }
+        header(out, "ee402_fleet_max", "Highest reading across the cluster", "gauge");
+        for (SensorChannel channel : channels) {
+            channelLine(out, "ee402_fleet_max", channel).append(summaries[channel.ordinal()].max).append('\n');
+        }
+    }
+
+    // Calls, errors and latency of each string command, labelled by verb
+    private static void commands(StringBuilder out, CommandRegistry registry) {
+        List<CommandRegistry.Command> commands = registry.getCommands();
+        header(out, "ee402_commands_total", "String commands handled", "counter");
+        for (CommandRegistry.Command command : commands) {
+            commandLine(out, "ee402_commands_total", command).append("} ").append(command.calls.sum()).append('\n');
+        }
+        header(out, "ee402_command_errors_total", "String commands whose handler failed", "counter");
+        for (CommandRegistry.Command command : commands) {
+            commandLine(out, "ee402_command_errors_total", command).append("} ").append(command.errors.sum()).append('\n');
+        }
+        counter(out, "ee402_unknown_commands_total", "String commands with no registered verb",
+                registry.getUnknownCount());
+        String name = "ee402_command_latency_seconds";
+        header(out, name, "Handling one string command", "summary");
+        for (CommandRegistry.Command command : commands) {
+            for (double quantile : QUANTILES) {
+                commandLine(out, name, command).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(command.latency.percentile(quantile) / 1e9).append('\n');
+            }
+            commandLine(out, name + "_sum", command).append("} ").append(command.latency.getSum() / 1e9).append('\n');
+            commandLine(out, name + "_count", command).append("} ").append(command.latency.getCount()).append('\n');
+        }
+    }
+
+    private static StringBuilder commandLine(StringBuilder out, String name, CommandRegistry.Command command) {
+        out.append(name).append("{command=\"");
+        escape(out, command.verb);
+        return out.append('"');
+    }
+
+    private static StringBuilder channelLine(StringBuilder out, String name, SensorChannel channel) {
+        return out.append(name).append("{channel=\"").append(channel.getLabel()).append("\"} ");
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Recorded values divided by scale: 1e9 for latencies in nanoseconds
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram,
+                                double scale) {
+        header(out, name, help, "summary");
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile) / scale).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.getSum() / scale).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void escape(StringBuilder out, String label) {
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    @Override
+    public long getReadings() {
+        return metrics.readings.sum();
+    }
+
+    @Override
+    public double getReadingsPerSecond() {
+        return metrics.getReadingsPerSecond();
+    }
+
+    @Override
+    public long getMessages() {
+        return metrics.messages.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return metrics.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return metrics.bytesOut.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return metrics.decodeErrors.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return metrics.sendErrors.sum();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return metrics.connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return metrics.connectionsClosed.sum();
+    }
+
+    @Override
+    public int getConnectedDevices() {
+        return server.getDevices().size();
+    }
+
+    @Override
+    public int getActiveAlerts() {
+        return server.getAlerts().getActiveCount();
+    }
+
+    @Override
+    public double getParseLatencyP50Micros() {
+        return metrics.parseLatency.percentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getParseLatencyP99Micros() {
+        return metrics.parseLatency.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getEdtLagP99Micros() {
+        return metrics.edtLag.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public int getIngestQueueDepth() {
+        return server.getIngest().getDepth();
+    }
+
+    @Override
+    public long getIngestDropped() {
+        return server.getIngest().getDroppedCount();
+    }
+}
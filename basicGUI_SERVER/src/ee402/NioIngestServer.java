@@ -0,0 +1,526 @@
+package ee402;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Event-driven ingest: instead of one blocking SensorDevice thread per socket,
+// an accept thread hands every device channel to one of a small fixed set of
+// selector loops. Each loop decodes the devices' serialized strings and SBP
+// frames without blocking and delivers the same updateSensorReading() callbacks.
+class NioIngestServer {
+    private static final int INITIAL_BUFFER = 512;
+    private static final int MAX_BUFFER = 64 * 1024;
+
+    private final SensorServer server;
+    private final int port;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bufferBytes = new AtomicLong();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    NioIngestServer(SensorServer server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].start();
+        }
+        // Not a daemon: in a headless run it is what keeps the JVM alive,
+        // just like the threaded accept loop; drain() or stop() ends it
+        Thread acceptor = new Thread(this::acceptLoop, "nio-accept");
+        acceptor.start();
+    }
+
+    // Stops accepting, has every loop tell its devices to go away and waits
+    // up to drainMillis for them to hang up; returns how many are still
+    // connected. The loops keep ingesting and acking meanwhile.
+    int drain(long drainMillis) {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (IoLoop loop : loops) {
+            loop.goAway();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        synchronized (connections) {
+            long left;
+            while (!connections.isEmpty() && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    connections.wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return connections.size();
+        }
+    }
+
+    // Ends the loops, which close their remaining connections, and waits up
+    // to timeoutMillis for them to finish; returns whether they all did
+    boolean stop(long timeoutMillis) {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (IoLoop loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            try {
+                loop.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (loop.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    // Buffer memory currently held for device connections, the dominant
+    // per-connection cost once the thread stacks are gone
+    long getBufferBytes() {
+        return bufferBytes.get();
+    }
+
+    long getBytesPerConnection() {
+        int count = connections.size();
+        return count == 0 ? 0 : bufferBytes.get() / count;
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.out.println("XX. Error accepting connection: " + e);
+                }
+            }
+        }
+    }
+
+    private class IoLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean goingAway;
+        private boolean noticesSent;
+
+        IoLoop(int index) throws IOException {
+            super("nio-io-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // The notices are written by the loop itself, which owns the channels
+        void goAway() {
+            goingAway = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        open(channel);
+                    }
+                    if (goingAway && !noticesSent) {
+                        noticesSent = true;
+                        for (SelectionKey key : selector.keys()) {
+                            Connection connection = (Connection) key.attachment();
+                            try {
+                                connection.goAway(server.reconnectAfterMillis());
+                            } catch (IOException | RuntimeException e) {
+                                connection.close();
+                            }
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // Malformed readings only cost that one device its connection
+                            if (e instanceof ObjectStreamException || e instanceof RuntimeException) {
+                                server.getMetrics().decodeErrors.increment();
+                            }
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("XX. Selector failure: " + e);
+                } catch (RuntimeException e) {
+                    // Whatever broke, the loop's other devices keep being served
+                    System.out.println("XX. I/O loop error: " + e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            Connection connection = new Connection(channel);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+                connection.device = server.connectDevice(SensorServer.DEFAULT_DEVICE_NAME);
+                connection.sendWelcome();
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private class Connection implements CommandRegistry.Session {
+        private final SocketChannel channel;
+        private final ObjectStreamCodec decoder = new ObjectStreamCodec();
+        private final SensorFrame frame = new SensorFrame();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        private ByteBuffer out;
+        private ByteBuffer frames;
+        private ByteBuffer ack;
+        private ByteBuffer time;
+        private ByteBuffer rate;
+        private int sampleMillis;
+        private long readAt;
+        private int received;
+        private boolean ackPending;
+        private boolean closeAfterWrite;
+        private DeviceState device;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            bufferBytes.addAndGet(in.capacity());
+        }
+
+        // The device's ObjectInputStream constructor blocks until it sees our
+        // stream header, so it must go out before anything is read
+        void sendWelcome() throws IOException {
+            setOut(ByteBuffer.allocate(INITIAL_BUFFER));
+            ObjectStreamCodec.writeHeader(out);
+            out.flip();
+            send("Connection established. Welcome, " + device.getName() + "!");
+        }
+
+        void send(String message) throws IOException {
+            reply(message, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public DeviceState getDevice() {
+            return device;
+        }
+
+        @Override
+        public void reply(String message) throws IOException {
+            send(message);
+        }
+
+        // Writes the bytes, already encoded, rather than the String
+        @Override
+        public void reply(String message, byte[] utf) throws IOException {
+            ObjectStreamCodec.writeString(appendable(3 + utf.length), utf);
+            out.flip();
+            flush();
+        }
+
+        // Queues a frame behind any write still pending
+        private void sendFrame(ByteBuffer frame) throws IOException {
+            ObjectStreamCodec.writeBlockData(appendable(2 + frame.remaining()), frame);
+            out.flip();
+            flush();
+        }
+
+        // out, ready to have a record of size bytes appended after whatever
+        // is unsent. String replies are not deferred like acks, so out grows
+        // to fit them, but only to MAX_BUFFER: a device that keeps asking and
+        // never reads the answers is disconnected.
+        private ByteBuffer appendable(int size) throws IOException {
+            if (out == null) {
+                setOut(ByteBuffer.allocate(Math.max(INITIAL_BUFFER, size)));
+                return out;
+            }
+            out.compact();
+            if (out.remaining() < size) {
+                int needed = out.position() + size;
+                out.flip();
+                if (needed > MAX_BUFFER) {
+                    throw new IOException("device is not reading its replies");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_BUFFER, Math.max(needed, out.capacity() * 2)));
+                larger.put(out);
+                setOut(larger);
+            }
+            return out;
+        }
+
+        // Swaps the output buffer, keeping bufferBytes in step
+        private void setOut(ByteBuffer next) {
+            bufferBytes.addAndGet((next == null ? 0 : next.capacity()) - (out == null ? 0 : out.capacity()));
+            out = next;
+        }
+
+        void flush() throws IOException {
+            server.getMetrics().bytesOut.add(channel.write(out));
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+                setOut(null);
+                if (closeAfterWrite) {
+                    close();
+                    return;
+                }
+                if (ackPending) {
+                    sendAck();
+                }
+            }
+        }
+
+        // One cumulative ack per batch of frames read; while an earlier write
+        // is still queued the ack is deferred, so a device that never reads
+        // cannot make the output buffer grow
+        private void sendAck() throws IOException {
+            if (out != null) {
+                ackPending = true;
+                return;
+            }
+            ackPending = false;
+            ack.clear();
+            SensorFrame.encodeAck(ack, received);
+            ack.flip();
+            sendFrame(ack);
+        }
+
+        void read() throws IOException {
+            int bytes = channel.read(in);
+            readAt = System.currentTimeMillis();
+            if (bytes < 0) {
+                close();
+                return;
+            }
+            server.getMetrics().bytesIn.add(bytes);
+            in.flip();
+            int record;
+            while (channel.isOpen() && (record = decoder.next(in, frames)) != ObjectStreamCodec.NEED_MORE) {
+                if (record == ObjectStreamCodec.STRING) {
+                    handleString(decoder.getString());
+                } else {
+                    readFrames();
+                }
+            }
+            if (!channel.isOpen()) {
+                return;
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                grow();
+            }
+        }
+
+        private void handleString(String command) throws IOException {
+            if (SensorFrame.isHello(command)) {
+                String redirect = server.redirectFor(command);
+                if (redirect != null) {
+                    // Another node owns this device; it reconnects there
+                    closeAfterWrite = true;
+                    send(redirect);
+                    return;
+                }
+                // Switch this device to binary frames; the buffer holds one
+                // full frame plus the largest block ObjectOutputStream emits.
+                // A repeated HELLO keeps the buffers it already has.
+                if (frames == null) {
+                    frames = ByteBuffer.allocate(SensorFrame.MAX_FRAME_SIZE + 1024);
+                    bufferBytes.addAndGet(frames.capacity());
+                }
+                if (SensorFrame.wantsAcks(command) && ack == null) {
+                    // Acks are tiny writes that Nagle would otherwise hold back
+                    channel.socket().setTcpNoDelay(true);
+                    ack = ByteBuffer.allocate(SensorFrame.ACK_SIZE);
+                }
+                send(SensorFrame.HELLO_ACK);
+                if (rate == null) {
+                    rate = ByteBuffer.allocate(SensorFrame.RATE_SIZE);
+                }
+                sendRate();
+            } else {
+                server.getCommands().dispatch(this, command);
+            }
+        }
+
+        // SBP devices get an ack of everything received so far and a GOAWAY
+        // frame, legacy ones a string they may ignore; queued behind any
+        // write still pending
+        void goAway(int reconnectAfter) throws IOException {
+            if (frames == null) {
+                send("Server Shutdown: reconnect after " + reconnectAfter + " ms");
+                return;
+            }
+            if (ack != null) {
+                ackPending = false;
+                ack.clear();
+                SensorFrame.encodeAck(ack, received);
+                ack.flip();
+                sendFrame(ack);
+            }
+            ByteBuffer notice = ByteBuffer.allocate(SensorFrame.GOAWAY_SIZE);
+            SensorFrame.encodeGoAway(notice, reconnectAfter);
+            notice.flip();
+            sendFrame(notice);
+        }
+
+        // Stamped with the time the request was read off the socket. While
+        // an earlier write is still queued the request goes unanswered: the
+        // device would measure our backlog rather than the network, and a
+        // device that never reads cannot make the output buffer grow.
+        private void answerTime(long originate) throws IOException {
+            if (out != null) {
+                return;
+            }
+            if (time == null) {
+                time = ByteBuffer.allocate(SensorFrame.TIME_RESPONSE_SIZE);
+                channel.socket().setTcpNoDelay(true);
+            }
+            time.clear();
+            SensorFrame.encodeTimeResponse(time, originate, readAt, System.currentTimeMillis());
+            time.flip();
+            sendFrame(time);
+        }
+
+        private void readFrames() throws IOException {
+            frames.flip();
+            int before = received;
+            int type;
+            while ((type = frame.decode(frames)) != 0) {
+                if (type == SensorFrame.TYPE_TIME_REQUEST) {
+                    answerTime(frame.timestamp);
+                } else {
+                    received += server.updateSensorReadings(device, frame, type);
+                }
+            }
+            frames.compact();
+            if (received != before) {
+                if (ack != null) {
+                    sendAck();
+                }
+                sendRate();
+            }
+        }
+
+        // Sends the device's sampling interval if it has changed; with a
+        // write still queued it waits for the next batch of readings
+        private void sendRate() throws IOException {
+            RateController rates = server.getRates();
+            int millis = rates.sampleMillisFor(device);
+            if (millis == sampleMillis || out != null || !channel.isOpen()) {
+                return;
+            }
+            sampleMillis = millis;
+            rate.clear();
+            SensorFrame.encodeRate(rate, millis, rates.getHeartbeatMillis());
+            rate.flip();
+            sendFrame(rate);
+            server.getMetrics().rateDirectives.increment();
+        }
+
+        private void grow() throws IOException {
+            if (in.capacity() >= MAX_BUFFER) {
+                throw new IOException("message larger than " + MAX_BUFFER + " bytes");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            larger.put(in);
+            bufferBytes.addAndGet(larger.capacity() - in.capacity());
+            in = larger;
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Socket already gone
+            }
+            bufferBytes.addAndGet(-in.capacity() - (frames == null ? 0 : frames.capacity()));
+            setOut(null);
+            connections.remove(this);
+            if (device != null) {
+                server.disconnectDevice(device);
+            }
+            synchronized (connections) {
+                connections.notifyAll(); // for drain()
+            }
+        }
+    }
+}
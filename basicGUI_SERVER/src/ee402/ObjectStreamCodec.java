@@ -0,0 +1,171 @@
+package ee402;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Incremental reader/writer for the small subset of the Java serialization
+// stream format that the sensing devices use: a stream header followed by
+// String objects and, once SBP is negotiated, block data. It works on
+// partially filled ByteBuffers so that the NIO ingest loops never block
+// waiting for the rest of a message.
+class ObjectStreamCodec {
+    static final short STREAM_MAGIC = (short) 0xaced;
+    static final short STREAM_VERSION = 5;
+    static final byte TC_REFERENCE = (byte) 0x71;
+    static final byte TC_STRING = (byte) 0x74;
+    static final byte TC_BLOCKDATA = (byte) 0x77;
+    static final byte TC_RESET = (byte) 0x79;
+    static final byte TC_BLOCKDATALONG = (byte) 0x7a;
+    static final byte TC_LONGSTRING = (byte) 0x7c;
+    private static final int BASE_WIRE_HANDLE = 0x7e0000;
+
+    static final int NEED_MORE = 0;
+    static final int STRING = 1;
+    static final int BLOCK_DATA = 2;
+
+    // Clients build a fresh String for every reading, so back references are
+    // rare; only the most recent handles are kept to bound per-connection memory
+    private static final int HANDLE_SLOTS = 32;
+
+    private final String[] handles = new String[HANDLE_SLOTS];
+    private int handleCount;
+    private boolean headerRead;
+    private String string;
+
+    // Decodes the next complete record and returns its kind: STRING (read it
+    // with getString()), BLOCK_DATA (its bytes have been appended to
+    // blockData) or NEED_MORE when the buffer ends mid-record, in which case
+    // nothing is consumed.
+    int next(ByteBuffer buf, ByteBuffer blockData) throws StreamCorruptedException {
+        if (!headerRead) {
+            if (buf.remaining() < 4) {
+                return NEED_MORE;
+            }
+            if (buf.getShort() != STREAM_MAGIC || buf.getShort() != STREAM_VERSION) {
+                throw new StreamCorruptedException("invalid stream header");
+            }
+            headerRead = true;
+        }
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            byte tc = buf.get();
+            if (tc == TC_RESET) {
+                handleCount = 0;
+                continue;
+            }
+            int kind = NEED_MORE;
+            if (tc == TC_STRING) {
+                if (buf.remaining() >= 2) {
+                    int length = buf.getShort() & 0xffff;
+                    if (buf.remaining() >= length) {
+                        string = newHandle(readUtf(buf, length));
+                        kind = STRING;
+                    }
+                }
+            } else if (tc == TC_LONGSTRING) {
+                if (buf.remaining() >= 8) {
+                    long length = buf.getLong();
+                    if (length < 0 || length > buf.capacity()) {
+                        throw new StreamCorruptedException("string too long: " + length);
+                    }
+                    if (buf.remaining() >= length) {
+                        string = newHandle(readUtf(buf, (int) length));
+                        kind = STRING;
+                    }
+                }
+            } else if (tc == TC_REFERENCE) {
+                if (buf.remaining() >= 4) {
+                    string = lookupHandle(buf.getInt() - BASE_WIRE_HANDLE);
+                    kind = STRING;
+                }
+            } else if (tc == TC_BLOCKDATA || tc == TC_BLOCKDATALONG) {
+                int lengthSize = tc == TC_BLOCKDATA ? 1 : 4;
+                if (buf.remaining() >= lengthSize) {
+                    int length = tc == TC_BLOCKDATA ? buf.get() & 0xff : buf.getInt();
+                    if (length < 0 || blockData == null || length > blockData.remaining()) {
+                        throw new StreamCorruptedException("unexpected block data: " + length + " bytes");
+                    }
+                    if (buf.remaining() >= length) {
+                        int limit = buf.limit();
+                        buf.limit(buf.position() + length);
+                        blockData.put(buf);
+                        buf.limit(limit);
+                        kind = BLOCK_DATA;
+                    }
+                }
+            } else {
+                throw new StreamCorruptedException(String.format("unsupported type code: %02X", tc));
+            }
+            if (kind == NEED_MORE) {
+                buf.position(start);
+            }
+            return kind;
+        }
+        return NEED_MORE;
+    }
+
+    String getString() {
+        return string;
+    }
+
+    private String newHandle(String s) {
+        handles[handleCount++ % HANDLE_SLOTS] = s;
+        return s;
+    }
+
+    private String lookupHandle(int handle) throws StreamCorruptedException {
+        if (handle < 0 || handle >= handleCount || handle < handleCount - HANDLE_SLOTS) {
+            throw new StreamCorruptedException("unavailable handle: " + handle);
+        }
+        return handles[handle % HANDLE_SLOTS];
+    }
+
+    // Decodes the "modified UTF-8" used by DataOutput.writeUTF
+    private static String readUtf(ByteBuffer buf, int length) throws StreamCorruptedException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buf.position() + length;
+        while (buf.position() < end) {
+            int a = buf.get() & 0xff;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0 && buf.position() < end) {
+                int b = buf.get() & 0x3f;
+                chars[count++] = (char) (((a & 0x1f) << 6) | b);
+            } else if ((a & 0xf0) == 0xe0 && buf.position() + 1 < end) {
+                int b = buf.get() & 0x3f;
+                int c = buf.get() & 0x3f;
+                chars[count++] = (char) (((a & 0x0f) << 12) | (b << 6) | c);
+            } else {
+                throw new StreamCorruptedException("malformed string encoding");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    static void writeHeader(ByteBuffer buf) {
+        buf.putShort(STREAM_MAGIC);
+        buf.putShort(STREAM_VERSION);
+    }
+
+    // Writes s as a TC_STRING record; the devices only ever receive short
+    // ASCII status messages, so the 16-bit length form is always enough
+    static void writeString(ByteBuffer buf, String s) {
+        writeString(buf, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // As above, for a string already encoded, e.g. a cached response
+    static void writeString(ByteBuffer buf, byte[] utf) {
+        buf.put(TC_STRING);
+        buf.putShort((short) utf.length);
+        buf.put(utf);
+    }
+
+    // Writes the remaining bytes of data (at most 255) as one TC_BLOCKDATA record
+    static void writeBlockData(ByteBuffer buf, ByteBuffer data) {
+        buf.put(TC_BLOCKDATA);
+        buf.put((byte) data.remaining());
+        buf.put(data);
+    }
+}
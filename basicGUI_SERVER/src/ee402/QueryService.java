@@ -0,0 +1,212 @@
+package ee402;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// History queries over the rollups, served as JSON next to the metrics:
+//
+//   GET /query?channel=methane[&from=ms][&to=ms][&group=device|time|fleet]
+//       [&device=name or prefix*][&points=n][&above=v][&below=v]
+//
+// aggregates the channel over [from, to] (by default the last day) into
+// count/min/max/mean rows: one per device, one per time bucket across the
+// matching devices, or one for the whole fleet. The bucket size is the
+// finest rollup resolution whose ring still reaches back to from and covers
+// the range in at most points buckets (1440 by default, MAX_POINTS at most).
+// above and below keep only rows whose max is above, or whose min is below,
+// the value. Values that are not finite are written as null.
+//
+// The scan runs on fork-join over the rollup rings (RollupStore.aggregate)
+// into one columnar Aggregate, which is complete before the first byte is
+// written; it is bounded by the ring sizes and the rollups' series cap. Only
+// the JSON text is streamed, row by row, to the chunked response.
+class QueryService implements HttpHandler {
+    private static final long DEFAULT_RANGE_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int DEFAULT_POINTS = 1440;
+    private static final int MAX_POINTS = 1000000;
+
+    private final RollupStore rollups;
+
+    QueryService(RollupStore rollups) {
+        this.rollups = rollups;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                error(exchange, 405, "only GET is supported");
+                return;
+            }
+            Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+            SensorChannel channel = SensorChannel.forLabel(params.getOrDefault("channel", ""));
+            if (channel == null) {
+                error(exchange, 400, "channel must be one of methane, co2, temperature");
+                return;
+            }
+            String group = params.getOrDefault("group", "device");
+            if (!group.equals("device") && !group.equals("time") && !group.equals("fleet")) {
+                error(exchange, 400, "group must be device, time or fleet");
+                return;
+            }
+            long to = longParam(params, "to", System.currentTimeMillis());
+            long from = longParam(params, "from", to - DEFAULT_RANGE_MILLIS);
+            long points = longParam(params, "points", DEFAULT_POINTS);
+            double above = doubleParam(params, "above", Double.NEGATIVE_INFINITY);
+            double below = doubleParam(params, "below", Double.POSITIVE_INFINITY);
+            if (from > to || points < 1 || points > MAX_POINTS) {
+                error(exchange, 400, "need from <= to and 1 <= points <= " + MAX_POINTS);
+                return;
+            }
+
+            long started = System.nanoTime();
+            RollupStore.Aggregate rows = rollups.aggregate(channel, from, to, (int) points,
+                    deviceFilter(params.get("device")), group.equals("device"));
+            double scanMillis = (System.nanoTime() - started) / 1e6;
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0); // chunked
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+                    StandardCharsets.UTF_8), 16 * 1024)) {
+                out.write("{\"channel\":\"" + channel.getLabel() + "\",\"group\":\"" + group + "\",\"from\":" + from
+                        + ",\"to\":" + to + ",\"resolution\":" + rows.resolution + ",\"devices\":"
+                        + rows.devices.length + ",\"scanMillis\":" + scanMillis + ",\"rows\":[");
+                if (group.equals("fleet")) {
+                    writeFleet(out, rows, above, below);
+                } else {
+                    writeRows(out, rows, group.equals("device"), above, below);
+                }
+                out.write("]}\n");
+            }
+        } catch (IllegalArgumentException e) {
+            error(exchange, 400, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void writeRows(Writer out, RollupStore.Aggregate rows, boolean byDevice,
+                                  double above, double below) throws IOException {
+        boolean first = true;
+        for (int row = 0; row < rows.size(); row++) {
+            if (rows.counts[row] == 0 || !(rows.maxs[row] > above) || !(rows.mins[row] < below)) {
+                continue;
+            }
+            out.write(first ? "\n{" : ",\n{");
+            first = false;
+            if (byDevice) {
+                out.write("\"device\":");
+                string(out, rows.devices[row]);
+            } else {
+                out.write("\"start\":" + (rows.first + row) * rows.resolution);
+            }
+            out.write(",\"count\":" + rows.counts[row] + ",\"min\":" + number(rows.mins[row]) + ",\"max\":"
+                    + number(rows.maxs[row]) + ",\"mean\":" + number(rows.getMean(row)) + "}");
+        }
+    }
+
+    // The bucket rows folded into one
+    private static void writeFleet(Writer out, RollupStore.Aggregate rows, double above, double below)
+            throws IOException {
+        RollupStore.Aggregate total = new RollupStore.Aggregate(rows.devices, rows.first, rows.resolution, 1);
+        for (int row = 0; row < rows.size(); row++) {
+            if (rows.counts[row] > 0) {
+                total.add(0, rows.counts[row], rows.mins[row], rows.maxs[row], rows.sums[row]);
+            }
+        }
+        if (total.counts[0] > 0 && total.maxs[0] > above && total.mins[0] < below) {
+            out.write("\n{\"count\":" + total.counts[0] + ",\"min\":" + number(total.mins[0]) + ",\"max\":"
+                    + number(total.maxs[0]) + ",\"mean\":" + number(total.getMean(0)) + "}");
+        }
+    }
+
+    // Exact name, or every name starting with what precedes a trailing '*'
+    private static Predicate<String> deviceFilter(String device) {
+        if (device == null || device.equals("*")) {
+            return name -> true;
+        }
+        if (device.endsWith("*")) {
+            String prefix = device.substring(0, device.length() - 1);
+            return name -> name.startsWith(prefix);
+        }
+        return device::equals;
+    }
+
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static long longParam(Map<String, String> params, String name, long otherwise) {
+        String value = params.get(name);
+        try {
+            return value == null ? otherwise : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    private static double doubleParam(Map<String, String> params, String name, double otherwise) {
+        String value = params.get(name);
+        try {
+            return value == null ? otherwise : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private static void error(HttpExchange exchange, int status, String message) throws IOException {
+        StringWriter json = new StringWriter();
+        json.write("{\"error\":");
+        string(json, message);
+        json.write("}\n");
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // JSON has no NaN or Infinity
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    private static void string(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,104 @@
+package ee402;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Decides how often each SBP device should sample. A device with a raised
+// alert samples at the event rate, so a developing leak is seen within a
+// second rather than ten; the others at the normal rate, reporting only
+// readings that moved plus a heartbeat. The connections ask for a device's
+// interval whenever they ack and send a RATE frame when it has changed, so
+// a directive reaches the device with the ack for the reading that
+// tripped the alert.
+//
+// Load shedding: every SHED_CHECK_MILLIS the reading rate is compared with
+// the ingest budget. Over budget, the normal interval is doubled (up to
+// the heartbeat; the event rate is never shed); under half of it, it is
+// halved back. One step per check
+// gives the devices time to pick up the last directive before the next.
+// Under the "signal" overflow policy a congested ingest queue does not wait
+// for the check: every device without a raised alert is sent the heartbeat
+// interval with its next ack, until the queue has drained.
+class RateController {
+    private static final long SHED_CHECK_MILLIS = 5000;
+    private static final int MAX_SHED_LEVEL = 6;
+
+    private final AlertEngine alerts;
+    private final IngestQueue ingest;
+    private final ServerMetrics metrics;
+    private final int sampleMillis;
+    private final int eventSampleMillis;
+    private final int heartbeatMillis;
+    private final int budget;
+    private volatile int shedLevel;
+    private ScheduledExecutorService checker;
+
+    RateController(AlertEngine alerts, IngestQueue ingest, ServerMetrics metrics, int sampleMillis,
+                   int eventSampleMillis, int heartbeatMillis, int budget) {
+        this.alerts = alerts;
+        this.ingest = ingest;
+        this.metrics = metrics;
+        // A device reporting nothing for longer than the silence rule allows
+        // would be flagged silent, so the heartbeat stays well inside it
+        this.heartbeatMillis = (int) Math.max(1000, Math.min(heartbeatMillis, alerts.getSilenceMillis() / 2));
+        this.sampleMillis = Math.min(sampleMillis, this.heartbeatMillis);
+        this.eventSampleMillis = Math.min(eventSampleMillis, this.sampleMillis);
+        this.budget = budget;
+    }
+
+    void start() {
+        if (budget <= 0) {
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleAtFixedRate(this::checkLoad, SHED_CHECK_MILLIS, SHED_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    // The interval the device should sample at now; called on its ingest
+    // thread. A device with a raised alert keeps the event rate whatever the
+    // load: congestion and shedding slow only the quiet devices.
+    int sampleMillisFor(DeviceState device) {
+        if (alerts.hasRaised(device.getName())) {
+            return eventSampleMillis;
+        }
+        if (ingest.isCongested()) {
+            return heartbeatMillis;
+        }
+        return (int) Math.min(heartbeatMillis, (long) sampleMillis << shedLevel);
+    }
+
+    int getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    // Intervals are multiplied by 2^level
+    int getShedLevel() {
+        return shedLevel;
+    }
+
+    private void checkLoad() {
+        double rate = metrics.getReadingsPerSecond();
+        int level = shedLevel;
+        if (rate > budget && level < MAX_SHED_LEVEL) {
+            level++;
+        } else if (rate < budget / 2.0 && level > 0) {
+            level--;
+        } else {
+            return;
+        }
+        shedLevel = level;
+        System.out.println("00. " + Math.round(rate) + " readings/s against a budget of " + budget
+                + ", device sample intervals now x" + (1 << level));
+    }
+}
@@ -0,0 +1,20 @@
+package ee402;
+
+// Consumer of the server's live readings. Sinks are called one after another
+// on the ingest queue's single writer thread, in the order the readings and
+// device events were queued, so a slow sink holds up every other sink (though
+// not the device sockets) and anything that touches Swing has to hand off to
+// the EDT. Other threads reading a sink's state still need it thread-safe.
+interface ReadingSink {
+    void onReading(String deviceName, long timestamp, double methane, double co2, double temperature);
+
+    default void onDeviceConnected(String deviceName) {
+    }
+
+    default void onDeviceDisconnected(String deviceName) {
+    }
+
+    // A device identified itself (SetDeviceName or its SBP frame id)
+    default void onDeviceRenamed(String oldName, String newName) {
+    }
+}
@@ -0,0 +1,469 @@
+package ee402;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// In-memory downsampled history for charts: every device keeps min/max/mean/
+// count buckets per channel at 1 s, 1 min and 1 h resolution, each level in a
+// fixed primitive ring, so memory per device is bounded by the ring sizes
+// rather than by how long it has been reporting: 88 bytes a bucket, about
+// 271 KB a device with the default rings. A reading updates one bucket
+// per level as it passes through the sinks, which is O(1) and allocation
+// free. A query reads the finest level that still holds the requested range
+// within its point budget, coarsening only as far as it has to.
+//
+// A series follows its device through renames. Once the device disconnects,
+// the series is dropped after it has been idle for as long as the minute
+// ring spans; a connected device that stops reporting keeps it for the hour
+// ring's span. maxSeries caps how many devices are tracked: at the cap, the
+// least recently written series of a disconnected device makes way for a new
+// one, and with none to evict the new device gets no rollups.
+//
+// The query API's fleet scans (aggregate()) fold the same rings, split
+// across devices on the common fork-join pool, into columnar Aggregates.
+class RollupStore implements ReadingSink {
+    static final long[] RESOLUTIONS = {1000, 60 * 1000, 60 * 60 * 1000};
+    private static final int CHANNELS = SensorChannel.values().length;
+    private static final long EXPIRY_CHECK_MILLIS = 60 * 1000;
+    // Devices one fork-join leaf scans before it stops splitting
+    private static final int SCAN_CHUNK = 256;
+
+    interface BucketConsumer {
+        void accept(long start, long count, double min, double max, double mean);
+    }
+
+    private final int[] capacities;
+    private final int maxSeries;
+    private final long idleMillis;
+    private final long disconnectedIdleMillis;
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    // Names of the connected devices
+    private final Set<String> live = ConcurrentHashMap.newKeySet();
+    private final LongAdder refused = new LongAdder();
+    private volatile long lastExpiryCheck;
+    private volatile long fullUntil;
+
+    RollupStore(int seconds, int minutes, int hours, int maxSeries) {
+        capacities = new int[] {seconds, minutes, hours};
+        this.maxSeries = maxSeries;
+        // A series nobody has written to for as long as its coarsest ring
+        // spans has nothing left to show
+        idleMillis = hours * RESOLUTIONS[2];
+        disconnectedIdleMillis = minutes * RESOLUTIONS[1];
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        long now = System.currentTimeMillis();
+        expireIdle(now);
+        Series device = series.get(deviceName);
+        if (device == null) {
+            if (series.size() >= maxSeries && !evictDisconnected(now)) {
+                refused.increment();
+                return;
+            }
+            device = series.computeIfAbsent(deviceName, name -> new Series());
+        }
+        device.add(now, timestamp, methane, co2, temperature);
+    }
+
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        live.add(deviceName);
+    }
+
+    @Override
+    public void onDeviceDisconnected(String deviceName) {
+        live.remove(deviceName);
+        fullUntil = 0; // its series can be evicted now
+    }
+
+    @Override
+    public void onDeviceRenamed(String oldName, String newName) {
+        if (live.remove(oldName)) {
+            live.add(newName);
+        }
+        Series moved = series.remove(oldName);
+        if (moved != null) {
+            series.put(newName, moved);
+        }
+    }
+
+    // Resolution the query below would use
+    long resolutionFor(long from, long to, int maxPoints) {
+        return RESOLUTIONS[level(from, to, maxPoints, System.currentTimeMillis())];
+    }
+
+    // Feeds consumer the buckets of [from, to] in time order, for one device
+    // or, with a null device, merged across every device. Returns the
+    // resolution used.
+    long query(String device, SensorChannel channel, long from, long to, int maxPoints, BucketConsumer consumer) {
+        int level = level(from, to, maxPoints, System.currentTimeMillis());
+        long resolution = RESOLUTIONS[level];
+        long first = Math.floorDiv(from, resolution);
+        long last = Math.floorDiv(to, resolution);
+        // Older buckets have been overwritten anyway
+        first = Math.max(first, last - capacities[level] + 1);
+        if (device != null) {
+            Series one = series.get(device);
+            if (one != null) {
+                one.rings[level].scan(channel.ordinal(), first, last, consumer);
+            }
+            return resolution;
+        }
+        Merge merge = new Merge(first, resolution, (int) (last - first + 1));
+        for (Series each : series.values()) {
+            each.rings[level].scan(channel.ordinal(), first, last, merge);
+        }
+        merge.emit(consumer);
+        return resolution;
+    }
+
+    // Folds channel over the buckets of [from, to], at the level query()
+    // would pick, for every device whose name passes filter: one row per
+    // device (in name order) when byDevice, else one row per bucket across
+    // all of them. Buckets at either end count whole.
+    Aggregate aggregate(SensorChannel channel, long from, long to, int maxPoints, Predicate<String> filter,
+                        boolean byDevice) {
+        int level = level(from, to, maxPoints, System.currentTimeMillis());
+        long resolution = RESOLUTIONS[level];
+        long last = Math.floorDiv(to, resolution);
+        long first = Math.max(Math.floorDiv(from, resolution), last - capacities[level] + 1);
+        List<Map.Entry<String, Series>> matching = new ArrayList<>();
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            if (filter.test(entry.getKey())) {
+                matching.add(entry);
+            }
+        }
+        matching.sort(Map.Entry.comparingByKey());
+        String[] names = new String[matching.size()];
+        Series[] scanned = new Series[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = matching.get(i).getKey();
+            scanned[i] = matching.get(i).getValue();
+        }
+        int rows = byDevice ? names.length : (int) Math.max(0, last - first + 1);
+        Aggregate into = new Aggregate(names, first, resolution, rows);
+        new ScanTask(scanned, 0, scanned.length, level, channel.ordinal(), first, last, byDevice ? into : null)
+                .invoke()
+                .mergeInto(byDevice ? null : into);
+        return into;
+    }
+
+    int getSeriesCount() {
+        return series.size();
+    }
+
+    // Readings of devices that got no series because of maxSeries
+    long getRefusedCount() {
+        return refused.sum();
+    }
+
+    // The finest level whose ring still reaches back to from and whose
+    // buckets over [from, to] fit maxPoints; else the coarsest level
+    private int level(long from, long to, int maxPoints, long now) {
+        for (int level = 0; level < RESOLUTIONS.length - 1; level++) {
+            long resolution = RESOLUTIONS[level];
+            long oldest = (Math.floorDiv(now, resolution) - capacities[level] + 1) * resolution;
+            long points = Math.floorDiv(to, resolution) - Math.floorDiv(from, resolution) + 1;
+            if (from >= oldest && points <= maxPoints) {
+                return level;
+            }
+        }
+        return RESOLUTIONS.length - 1;
+    }
+
+    private void expireIdle(long now) {
+        if (now - lastExpiryCheck < EXPIRY_CHECK_MILLIS) {
+            return;
+        }
+        lastExpiryCheck = now;
+        series.entrySet().removeIf(entry -> now - entry.getValue().lastWritten
+                > (live.contains(entry.getKey()) ? idleMillis : disconnectedIdleMillis));
+    }
+
+    // Drops the least recently written series of a disconnected device; when
+    // there is none, does not look again for a while
+    private boolean evictDisconnected(long now) {
+        if (now < fullUntil) {
+            return false;
+        }
+        Map.Entry<String, Series> oldest = null;
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            if (!live.contains(entry.getKey())
+                    && (oldest == null || entry.getValue().lastWritten < oldest.getValue().lastWritten)) {
+                oldest = entry;
+            }
+        }
+        if (oldest == null) {
+            fullUntil = now + EXPIRY_CHECK_MILLIS;
+            System.out.println("XX. Rollups are tracking " + series.size()
+                    + " devices, the most allowed; new devices get none");
+            return false;
+        }
+        return series.remove(oldest.getKey(), oldest.getValue());
+    }
+
+    // One device's rings; written by the ingest writer, read by queries
+    private final class Series {
+        final Ring[] rings = new Ring[RESOLUTIONS.length];
+        volatile long lastWritten;
+
+        Series() {
+            for (int level = 0; level < rings.length; level++) {
+                rings[level] = new Ring(RESOLUTIONS[level], capacities[level]);
+            }
+        }
+
+        // A bucket from the future would hold its slot against every current
+        // reading until the clock caught up, so those are bucketed as now
+        void add(long now, long timestamp, double methane, double co2, double temperature) {
+            lastWritten = now;
+            long bucketed = ServerConfig.clampToServerTime(timestamp, now);
+            for (Ring ring : rings) {
+                ring.add(bucketed, methane, co2, temperature);
+            }
+        }
+    }
+
+    // Buckets of one resolution, slot = bucket number % capacity. Every
+    // reading carries all three channels, so the bucket number and count are
+    // shared and the per-channel values sit side by side at
+    // channel * capacity + slot.
+    private static final class Ring {
+        final long resolution;
+        final int capacity;
+        final long[] buckets;
+        final long[] counts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+
+        Ring(long resolution, int capacity) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            buckets = new long[capacity];
+            counts = new long[capacity];
+            mins = new double[capacity * CHANNELS];
+            maxs = new double[capacity * CHANNELS];
+            sums = new double[capacity * CHANNELS];
+            Arrays.fill(buckets, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long timestamp, double methane, double co2, double temperature) {
+            long bucket = Math.floorDiv(timestamp, resolution);
+            int slot = (int) Math.floorMod(bucket, (long) capacity);
+            if (buckets[slot] != bucket) {
+                if (buckets[slot] > bucket) {
+                    return; // Late reading for a bucket that has been recycled
+                }
+                buckets[slot] = bucket;
+                counts[slot] = 0;
+            }
+            long count = counts[slot]++;
+            put(count, slot, methane);
+            put(count, capacity + slot, co2);
+            put(count, 2 * capacity + slot, temperature);
+        }
+
+        private void put(long count, int i, double value) {
+            if (count == 0) {
+                mins[i] = value;
+                maxs[i] = value;
+                sums[i] = value;
+            } else {
+                mins[i] = Math.min(mins[i], value);
+                maxs[i] = Math.max(maxs[i], value);
+                sums[i] += value;
+            }
+        }
+
+        // Folds [first, last] into one row
+        synchronized void fold(int channel, long first, long last, Aggregate into, int row) {
+            for (long bucket = first; bucket <= last; bucket++) {
+                int slot = (int) Math.floorMod(bucket, (long) capacity);
+                if (buckets[slot] == bucket) {
+                    int i = channel * capacity + slot;
+                    into.add(row, counts[slot], mins[i], maxs[i], sums[i]);
+                }
+            }
+        }
+
+        // Folds each bucket of [first, last] into the row bucket - first
+        synchronized void foldBuckets(int channel, long first, long last, Aggregate into) {
+            for (long bucket = first; bucket <= last; bucket++) {
+                int slot = (int) Math.floorMod(bucket, (long) capacity);
+                if (buckets[slot] == bucket) {
+                    int i = channel * capacity + slot;
+                    into.add((int) (bucket - first), counts[slot], mins[i], maxs[i], sums[i]);
+                }
+            }
+        }
+
+        synchronized void scan(int channel, long first, long last, BucketConsumer consumer) {
+            for (long bucket = first; bucket <= last; bucket++) {
+                int slot = (int) Math.floorMod(bucket, (long) capacity);
+                if (buckets[slot] == bucket) {
+                    int i = channel * capacity + slot;
+                    consumer.accept(bucket * resolution, counts[slot], mins[i], maxs[i], sums[i] / counts[slot]);
+                }
+            }
+        }
+    }
+
+    // Columnar result of a fleet scan: count, min, max and sum per row, a row
+    // being a device (devices[row]) or a bucket starting at
+    // (first + row) * resolution. Rows nothing fell into have a count of 0.
+    static final class Aggregate {
+        final String[] devices;
+        final long first;
+        final long resolution;
+        final long[] counts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+
+        Aggregate(String[] devices, long first, long resolution, int rows) {
+            this.devices = devices;
+            this.first = first;
+            this.resolution = resolution;
+            counts = new long[rows];
+            mins = new double[rows];
+            maxs = new double[rows];
+            sums = new double[rows];
+        }
+
+        int size() {
+            return counts.length;
+        }
+
+        double getMean(int row) {
+            return sums[row] / counts[row];
+        }
+
+        void add(int row, long count, double min, double max, double sum) {
+            if (counts[row] == 0) {
+                mins[row] = min;
+                maxs[row] = max;
+            } else {
+                mins[row] = Math.min(mins[row], min);
+                maxs[row] = Math.max(maxs[row], max);
+            }
+            counts[row] += count;
+            sums[row] += sum;
+        }
+
+        // Adds this partial's rows to other's (same rows); null is a no-op
+        void mergeInto(Aggregate other) {
+            if (other == null || other == this) {
+                return;
+            }
+            for (int row = 0; row < counts.length; row++) {
+                if (counts[row] > 0) {
+                    other.add(row, counts[row], mins[row], maxs[row], sums[row]);
+                }
+            }
+        }
+    }
+
+    // Scans devices[lo, hi), halving the range until it is SCAN_CHUNK or
+    // less. By device, every leaf writes its own rows of the shared result;
+    // by bucket, each leaf folds into a partial of its own and the partials
+    // are merged on the way back up.
+    private static final class ScanTask extends RecursiveTask<Aggregate> {
+        private static final long serialVersionUID = 1L;
+
+        final Series[] devices;
+        final int lo;
+        final int hi;
+        final int level;
+        final int channel;
+        final long first;
+        final long last;
+        final Aggregate byDevice;
+
+        ScanTask(Series[] devices, int lo, int hi, int level, int channel, long first, long last,
+                 Aggregate byDevice) {
+            this.devices = devices;
+            this.lo = lo;
+            this.hi = hi;
+            this.level = level;
+            this.channel = channel;
+            this.first = first;
+            this.last = last;
+            this.byDevice = byDevice;
+        }
+
+        @Override
+        protected Aggregate compute() {
+            if (hi - lo > SCAN_CHUNK) {
+                int mid = (lo + hi) >>> 1;
+                ScanTask left = new ScanTask(devices, lo, mid, level, channel, first, last, byDevice);
+                left.fork();
+                Aggregate right = new ScanTask(devices, mid, hi, level, channel, first, last, byDevice).compute();
+                Aggregate merged = left.join();
+                right.mergeInto(byDevice == null ? merged : null);
+                return merged;
+            }
+            Aggregate rows = byDevice != null ? byDevice
+                    : new Aggregate(null, first, RESOLUTIONS[level], (int) Math.max(0, last - first + 1));
+            for (int i = lo; i < hi; i++) {
+                Ring ring = devices[i].rings[level];
+                if (byDevice != null) {
+                    ring.fold(channel, first, last, rows, i);
+                } else {
+                    ring.foldBuckets(channel, first, last, rows);
+                }
+            }
+            return rows;
+        }
+    }
+
+    // Fleet-wide query: folds every device's buckets into one row per bucket
+    private static final class Merge implements BucketConsumer {
+        final long first;
+        final long resolution;
+        final long[] counts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+
+        Merge(long first, long resolution, int buckets) {
+            this.first = first;
+            this.resolution = resolution;
+            counts = new long[buckets];
+            mins = new double[buckets];
+            maxs = new double[buckets];
+            sums = new double[buckets];
+        }
+
+        @Override
+        public void accept(long start, long count, double min, double max, double mean) {
+            int i = (int) (start / resolution - first);
+            if (counts[i] == 0) {
+                mins[i] = min;
+                maxs[i] = max;
+            } else {
+                mins[i] = Math.min(mins[i], min);
+                maxs[i] = Math.max(maxs[i], max);
+            }
+            counts[i] += count;
+            sums[i] += mean * count;
+        }
+
+        void emit(BucketConsumer consumer) {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    consumer.accept((first + i) * resolution, counts[i], mins[i], maxs[i], sums[i] / counts[i]);
+                }
+            }
+        }
+    }
+}
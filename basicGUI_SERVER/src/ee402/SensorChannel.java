@@ -0,0 +1,34 @@
+package ee402;
+
+// The three measurements every sensing device reports
+enum SensorChannel {
+    METHANE("Methane"),
+    CO2("CO2"),
+    TEMPERATURE("Temperature");
+
+    private static final SensorChannel[] VALUES = values();
+
+    private final String label;
+
+    SensorChannel(String label) {
+        this.label = label;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    static SensorChannel of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    // The channel labelled label, ignoring case, or null
+    static SensorChannel forLabel(String label) {
+        for (SensorChannel channel : VALUES) {
+            if (channel.label.equalsIgnoreCase(label)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,279 @@
+package ee402;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Compact binary sensor protocol (SBP), negotiated during the handshake and
+// carried as block data on the existing object streams. Every frame is
+//
+//   u8 version | u8 type | u16 payload length | payload
+//
+// and a READING payload is fixed width:
+//
+//   16-byte device id (ASCII, zero padded) | i64 timestamp (ms since epoch)
+//   | f64 methane | f64 co2 | f64 temperature
+//
+// A BATCH payload carries several readings of one device:
+//
+//   16-byte device id | u16 count | count x (i64 timestamp | f64 methane
+//   | f64 co2 | f64 temperature)
+//
+// HELLO may carry options: ACK_OPTION, then DEVICE_OPTION and the device id,
+// which a cluster node uses to answer REDIRECT + "host:port" instead of
+// HELLO_ACK when another node owns the device.
+//
+// A device that says HELLO + ACK_OPTION is sent ACK frames back, whose
+// payload is the u32 count of readings received so far on the connection.
+// Acks are cumulative, so the server may send one for several readings.
+// Before it shuts down the server sends a GOAWAY frame, whose payload is the
+// u32 number of ms the device should wait before reconnecting.
+//
+// Clock sync is an NTP-style exchange. The device sends TIME_REQUEST with its
+// i64 transmit time t0; the server answers TIME_RESPONSE with
+//
+//   i64 t0 (echoed) | i64 t1 (server receive) | i64 t2 (server transmit)
+//
+// and from its own receive time t3 the device estimates its clock offset
+// ((t1 - t0) + (t2 - t3)) / 2 and round trip (t3 - t0) - (t2 - t1).
+//
+// RATE tells a device how to sample: u32 interval ms | u32 heartbeat ms. It
+// reports a reading only when a value has moved past its deadband or the
+// heartbeat has passed since the last one it sent.
+//
+// The live relay streams SAMPLE frames to its subscribers, one per channel
+// of a reading, so a subscriber to some channels gets only those:
+//
+//   16-byte device id | i64 timestamp | u8 channel ordinal | f64 value
+//
+// An instance is a reusable decode target, so ingest does not allocate per
+// reading; the device name String is only rebuilt when the id changes.
+class SensorFrame {
+    static final String HELLO = "Hello: SBP/1";
+    static final String HELLO_ACK = "Protocol: SBP/1";
+    static final String ACK_OPTION = "; ack";
+    static final String DEVICE_OPTION = "; device=";
+    static final String REDIRECT = "Redirect: ";
+
+    static final byte VERSION = 1;
+    static final byte TYPE_READING = 1;
+    static final byte TYPE_ACK = 2;
+    static final byte TYPE_BATCH = 3;
+    static final byte TYPE_SAMPLE = 4;
+    static final byte TYPE_GOAWAY = 5;
+    static final byte TYPE_TIME_REQUEST = 6;
+    static final byte TYPE_TIME_RESPONSE = 7;
+    static final byte TYPE_RATE = 8;
+    static final int HEADER_SIZE = 4;
+    static final int DEVICE_ID_SIZE = 16;
+    static final int READING_PAYLOAD_SIZE = DEVICE_ID_SIZE + 8 + 3 * 8;
+    static final int READING_SIZE = HEADER_SIZE + READING_PAYLOAD_SIZE;
+    static final int ACK_SIZE = HEADER_SIZE + 4;
+    static final int GOAWAY_SIZE = HEADER_SIZE + 4;
+    static final int TIME_REQUEST_SIZE = HEADER_SIZE + 8;
+    static final int TIME_RESPONSE_SIZE = HEADER_SIZE + 3 * 8;
+    static final int RATE_SIZE = HEADER_SIZE + 8;
+    static final int BATCH_HEADER_SIZE = DEVICE_ID_SIZE + 2;
+    static final int BATCH_ENTRY_SIZE = 8 + 3 * 8;
+    static final int SAMPLE_SIZE = HEADER_SIZE + DEVICE_ID_SIZE + 8 + 1 + 8;
+    static final int MAX_FRAME_SIZE = 4096;
+
+    private final byte[] deviceId = new byte[DEVICE_ID_SIZE];
+    private final byte[] lastDeviceId = new byte[DEVICE_ID_SIZE];
+    private String deviceName;
+    private byte[] scratch;
+    private ByteBuffer scratchBuffer;
+    private ByteBuffer batch;
+    private int batchOffset;
+    private int batchRemaining;
+
+    long timestamp;       // of a READING, or the t0 of a TIME_REQUEST
+    double methane;
+    double co2;
+    double temperature;
+
+    // Decodes the next frame if it is complete, returning its type, or 0 when
+    // more bytes are needed (nothing is consumed). Frame types this version
+    // does not understand are skipped so newer clients keep working.
+    int decode(ByteBuffer buf) throws StreamCorruptedException {
+        if (buf.remaining() < HEADER_SIZE) {
+            return 0;
+        }
+        int start = buf.position();
+        byte version = buf.get(start);
+        byte type = buf.get(start + 1);
+        int length = buf.getShort(start + 2) & 0xffff;
+        if (version != VERSION || HEADER_SIZE + length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("bad frame header: version " + version + ", length " + length);
+        }
+        if (buf.remaining() < HEADER_SIZE + length) {
+            return 0;
+        }
+        buf.position(start + HEADER_SIZE);
+        if (type == TYPE_READING) {
+            if (length != READING_PAYLOAD_SIZE) {
+                throw new StreamCorruptedException("bad reading length: " + length);
+            }
+            buf.get(deviceId);
+            timestamp = buf.getLong();
+            methane = buf.getDouble();
+            co2 = buf.getDouble();
+            temperature = buf.getDouble();
+        } else if (type == TYPE_BATCH) {
+            if (length < BATCH_HEADER_SIZE) {
+                throw new StreamCorruptedException("bad batch length: " + length);
+            }
+            buf.get(deviceId);
+            int count = buf.getShort() & 0xffff;
+            if (length != BATCH_HEADER_SIZE + count * BATCH_ENTRY_SIZE) {
+                throw new StreamCorruptedException("bad batch length: " + length + " for " + count + " readings");
+            }
+            batch = buf;
+            batchOffset = buf.position();
+            batchRemaining = count;
+            buf.position(start + HEADER_SIZE + length);
+        } else if (type == TYPE_TIME_REQUEST) {
+            if (length != TIME_REQUEST_SIZE - HEADER_SIZE) {
+                throw new StreamCorruptedException("bad time request length: " + length);
+            }
+            timestamp = buf.getLong();
+        } else {
+            buf.position(start + HEADER_SIZE + length);
+        }
+        return type;
+    }
+
+    // Blocking variant for the thread-per-device path, reading the frame
+    // from the block data of an ObjectInputStream
+    int read(DataInput in) throws IOException {
+        if (scratch == null) {
+            scratch = new byte[MAX_FRAME_SIZE];
+            scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+        in.readFully(scratch, 0, HEADER_SIZE);
+        int length = ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+        if (HEADER_SIZE + length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("frame too long: " + length);
+        }
+        in.readFully(scratch, HEADER_SIZE, length);
+        scratchBuffer.clear().limit(HEADER_SIZE + length);
+        return decode(scratchBuffer);
+    }
+
+    // After decode() returns TYPE_BATCH, loads the batch's next reading into
+    // the public fields; valid until the buffer is next compacted or refilled
+    boolean nextBatchReading() {
+        if (batchRemaining == 0) {
+            return false;
+        }
+        timestamp = batch.getLong(batchOffset);
+        methane = batch.getDouble(batchOffset + 8);
+        co2 = batch.getDouble(batchOffset + 16);
+        temperature = batch.getDouble(batchOffset + 24);
+        batchOffset += BATCH_ENTRY_SIZE;
+        batchRemaining--;
+        return true;
+    }
+
+    String getDeviceName() {
+        if (deviceName == null || !Arrays.equals(deviceId, lastDeviceId)) {
+            System.arraycopy(deviceId, 0, lastDeviceId, 0, DEVICE_ID_SIZE);
+            int length = 0;
+            while (length < DEVICE_ID_SIZE && deviceId[length] != 0) {
+                length++;
+            }
+            deviceName = new String(deviceId, 0, length, StandardCharsets.US_ASCII);
+        }
+        return deviceName;
+    }
+
+    static void encodeReading(ByteBuffer buf, String deviceName, long timestamp,
+                              double methane, double co2, double temperature) {
+        buf.put(VERSION);
+        buf.put(TYPE_READING);
+        buf.putShort((short) READING_PAYLOAD_SIZE);
+        putDeviceId(buf, deviceName);
+        buf.putLong(timestamp);
+        buf.putDouble(methane);
+        buf.putDouble(co2);
+        buf.putDouble(temperature);
+    }
+
+    static final int SAMPLE_CHANNEL_OFFSET = HEADER_SIZE + DEVICE_ID_SIZE + 8;
+
+    // Absolute puts at offset, leaving buf's position alone, so several
+    // threads can encode into disjoint parts of one shared buffer
+    static void encodeSample(ByteBuffer buf, int offset, String deviceName, long timestamp,
+                             int channel, double value) {
+        buf.put(offset, VERSION);
+        buf.put(offset + 1, TYPE_SAMPLE);
+        buf.putShort(offset + 2, (short) (SAMPLE_SIZE - HEADER_SIZE));
+        int length = Math.min(deviceName.length(), DEVICE_ID_SIZE);
+        for (int i = 0; i < DEVICE_ID_SIZE; i++) {
+            char c = i < length ? deviceName.charAt(i) : 0;
+            buf.put(offset + HEADER_SIZE + i, (byte) (c < 128 ? c : '?'));
+        }
+        buf.putLong(offset + HEADER_SIZE + DEVICE_ID_SIZE, timestamp);
+        buf.put(offset + SAMPLE_CHANNEL_OFFSET, (byte) channel);
+        buf.putDouble(offset + SAMPLE_CHANNEL_OFFSET + 1, value);
+    }
+
+    static boolean isHello(String command) {
+        return command.equals(HELLO) || command.startsWith(HELLO + "; ");
+    }
+
+    static boolean wantsAcks(String hello) {
+        return hello.startsWith(HELLO + ACK_OPTION)
+                && (hello.length() == HELLO.length() + ACK_OPTION.length()
+                || hello.startsWith(DEVICE_OPTION, HELLO.length() + ACK_OPTION.length()));
+    }
+
+    // The id a HELLO names its device by, or null; always the last option
+    static String helloDevice(String hello) {
+        int i = hello.indexOf(DEVICE_OPTION);
+        return i < 0 ? null : hello.substring(i + DEVICE_OPTION.length());
+    }
+
+    static void encodeAck(ByteBuffer buf, int received) {
+        buf.put(VERSION);
+        buf.put(TYPE_ACK);
+        buf.putShort((short) (ACK_SIZE - HEADER_SIZE));
+        buf.putInt(received);
+    }
+
+    static void encodeGoAway(ByteBuffer buf, int reconnectAfterMillis) {
+        buf.put(VERSION);
+        buf.put(TYPE_GOAWAY);
+        buf.putShort((short) (GOAWAY_SIZE - HEADER_SIZE));
+        buf.putInt(reconnectAfterMillis);
+    }
+
+    static void encodeTimeResponse(ByteBuffer buf, long originate, long received, long transmit) {
+        buf.put(VERSION);
+        buf.put(TYPE_TIME_RESPONSE);
+        buf.putShort((short) (TIME_RESPONSE_SIZE - HEADER_SIZE));
+        buf.putLong(originate);
+        buf.putLong(received);
+        buf.putLong(transmit);
+    }
+
+    static void encodeRate(ByteBuffer buf, int sampleMillis, int heartbeatMillis) {
+        buf.put(VERSION);
+        buf.put(TYPE_RATE);
+        buf.putShort((short) (RATE_SIZE - HEADER_SIZE));
+        buf.putInt(sampleMillis);
+        buf.putInt(heartbeatMillis);
+    }
+
+    static void putDeviceId(ByteBuffer buf, String deviceName) {
+        byte[] name = deviceName.getBytes(StandardCharsets.US_ASCII);
+        int length = Math.min(name.length, DEVICE_ID_SIZE);
+        buf.put(name, 0, length);
+        for (int i = length; i < DEVICE_ID_SIZE; i++) {
+            buf.put((byte) 0);
+        }
+    }
+}
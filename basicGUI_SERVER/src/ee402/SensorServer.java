@@ -1,298 +1,828 @@
 package ee402;
 
-
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.net.*;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Networking and aggregation core of the sensor server. It has no AWT
+// dependency: the Swing window (SensorServerGui), the time-series store and
+// any other consumer attach as ReadingSinks. The ingest threads log each
+// decoded reading and queue it (IngestQueue); one writer thread takes it from
+// there to the gauge windows and the sinks.
 public class SensorServer {
-    private static final int PORT_NUMBER = 5050;
+    private static final int PORT_NUMBER = ServerConfig.PORT;
+    static final String DEFAULT_DEVICE_NAME = "Unknown Device";
+    static final int ANALYSIS_WINDOW = 10; // readings per channel
     private ServerSocket serverSocket;
-    Map<String, SensorDevice> connectedDevices;
-    private List<Double> methaneReadings;
-    private List<Double> co2Readings;
-    private List<Double> temperatureReadings;
-    private Timer analysisTimer;
-
-    private JFrame frame;
-    private JTextArea statusTextArea;
-    private JTextArea analysisTextArea;
-    private Gauge methaneGauge;
-    private Gauge co2Gauge;
-    private Gauge temperatureGauge;
+    private NioIngestServer nioIngest;
+    private HandlerPool handlers;
+    private TimeSeriesStore store;
+    private WriteAheadLog wal;
+    private final AlertEngine alerts;
+    private final RateController rates;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private MetricsExporter exporter;
+    private LiveRelay relay;
+    private ClusterNode cluster;
+    private final RollupStore rollups = new RollupStore(ServerConfig.ROLLUP_SECONDS,
+            ServerConfig.ROLLUP_MINUTES, ServerConfig.ROLLUP_HOURS, ServerConfig.ROLLUP_MAX_SERIES);
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final WindowedStats[] channelStats = new WindowedStats[SensorChannel.values().length];
+    private final List<ReadingSink> sinks = new CopyOnWriteArrayList<>();
+    private final DateTimeService dateTime = new DateTimeService();
+    private final CommandRegistry commands = new CommandRegistry(metrics);
+    private final IngestQueue ingest;
+    private boolean stopped;
 
     public SensorServer() {
-        connectedDevices = new HashMap<>();
-        methaneReadings = new ArrayList<>();
-        co2Readings = new ArrayList<>();
-        temperatureReadings = new ArrayList<>();
-
-        initializeGUI();
-        startServer();
-        startAnalysisTimer();
-    }
-
-    private void initializeGUI() {
-        frame = new JFrame("Sensor Server");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setLayout(new GridLayout(2, 2));
-
-        // Status area
-        statusTextArea = new JTextArea();
-        JScrollPane statusScrollPane = new JScrollPane(statusTextArea);
-        statusScrollPane.setBorder(BorderFactory.createTitledBorder("Connected Devices"));
-        frame.add(statusScrollPane);
-
-        // Analysis area
-        analysisTextArea = new JTextArea();
-        JScrollPane analysisScrollPane = new JScrollPane(analysisTextArea);
-        analysisScrollPane.setBorder(BorderFactory.createTitledBorder("Analysis Results"));
-        frame.add(analysisScrollPane);
-
-        // Gauges
-        methaneGauge = new Gauge("Methane");
-        frame.add(methaneGauge);
-        co2Gauge = new Gauge("CO2");
-        frame.add(co2Gauge);
-        temperatureGauge = new Gauge("Temperature");
-        frame.add(temperatureGauge);
-
-        // X button to shut down the server gracefully
-        JButton closeButton = new JButton("X");
-        closeButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                shutDownServer();
+        for (SensorChannel channel : SensorChannel.values()) {
+            channelStats[channel.ordinal()] = WindowedStats.ofCount(ANALYSIS_WINDOW);
+        }
+
+        alerts = new AlertEngine(AlertRule.parseAll(ServerConfig.ALERT_RULES),
+                ServerConfig.ALERT_EWMA_ALPHA, ServerConfig.ALERT_WARMUP);
+        alerts.addListener(alert -> System.out.println("!!. " + alert));
+        int overflow = IngestQueue.parseOverflow(ServerConfig.INGEST_OVERFLOW);
+        if (overflow == IngestQueue.BLOCK && ServerConfig.isNioIngest()) {
+            // A blocked producer there is a selector thread, which would
+            // stop reading every socket on its loop, not just the busy one
+            System.out.println("XX. The block overflow policy would stall NIO ingest loops, using signal");
+            overflow = IngestQueue.SIGNAL;
+        }
+        ingest = new IngestQueue(new Fanout(), ServerConfig.INGEST_QUEUE, overflow);
+        rates = new RateController(alerts, ingest, metrics, ServerConfig.SAMPLE_MILLIS,
+                ServerConfig.EVENT_SAMPLE_MILLIS, ServerConfig.HEARTBEAT_MILLIS, ServerConfig.INGEST_BUDGET);
+        addSink(rollups);
+        registerCommands();
+        joinCluster();
+
+        openLog();
+        openStore();
+    }
+
+    void addSink(ReadingSink sink) {
+        sinks.add(sink);
+    }
+
+    void removeSink(ReadingSink sink) {
+        sinks.remove(sink);
+    }
+
+    // The string commands of the object stream protocol; HELLO is not one,
+    // since it switches the connection to SBP frames
+    private void registerCommands() {
+        commands.register("SetDeviceName", (session, name) -> renameDevice(session.getDevice(), name));
+        commands.register("Sensor Update", this::sensorUpdate);
+        commands.register(DateTimeService.COMMAND,
+                (session, argument) -> session.reply(dateTime.getDateAndTime(), dateTime.getDateAndTimeUtf()));
+    }
+
+    // "Methane - m, CO2 - c, Temperature - t", scanned in place rather than
+    // split; anything malformed throws, which the registry counts
+    private void sensorUpdate(CommandRegistry.Session session, String values) throws IOException {
+        long started = System.nanoTime();
+        int co2 = values.indexOf(", ");
+        int temperature = values.indexOf(", ", co2 + 2);
+        int end = values.indexOf(", ", temperature + 2);
+        double methane = parseValue(values, 0, co2);
+        double co2Value = parseValue(values, co2 + 2, temperature);
+        double temperatureValue = parseValue(values, temperature + 2, end < 0 ? values.length() : end);
+        updateSensorReading(session.getDevice(), System.currentTimeMillis(), methane, co2Value, temperatureValue);
+        metrics.parseLatency.record(System.nanoTime() - started);
+        commitLog();
+    }
+
+    // The number after "Label - " in values[from, to)
+    private static double parseValue(String values, int from, int to) {
+        int dash = values.indexOf(" - ", from);
+        if (from < 0 || to < 0 || dash < 0 || dash > to) {
+            throw new NumberFormatException("bad sensor update: " + values);
+        }
+        return Double.parseDouble(values.substring(dash + 3, to));
+    }
+
+    CommandRegistry getCommands() {
+        return commands;
+    }
+
+    private void joinCluster() {
+        if (ServerConfig.CLUSTER == null) {
+            return;
+        }
+        try {
+            cluster = new ClusterNode(ServerConfig.NODE_ID, ClusterNode.parseMembers(ServerConfig.CLUSTER),
+                    ServerConfig.CLUSTER_GOSSIP_MILLIS, ServerConfig.CLUSTER_IDLE_MILLIS);
+            if (cluster.getSelf().port != PORT_NUMBER) {
+                System.out.println("XX. Cluster lists node " + ServerConfig.NODE_ID + " on port "
+                        + cluster.getSelf().port + " but it listens on " + PORT_NUMBER);
+            }
+            addSink(cluster);
+        } catch (IllegalArgumentException e) {
+            System.out.println("XX. Bad cluster configuration, running standalone: " + e.getMessage());
+        }
+    }
+
+    // The cluster membership, or null when running standalone
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // What to answer a HELLO with when another node owns its device:
+    // REDIRECT + "host:port", else null
+    String redirectFor(String hello) {
+        String owner = cluster == null ? null : cluster.redirectFor(SensorFrame.helloDevice(hello));
+        if (owner == null) {
+            return null;
+        }
+        metrics.redirects.increment();
+        return SensorFrame.REDIRECT + owner;
+    }
+
+    // The live relay, or null when it is off or failed to start
+    LiveRelay getRelay() {
+        return relay;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    RollupStore getRollups() {
+        return rollups;
+    }
+
+    RateController getRates() {
+        return rates;
+    }
+
+    IngestQueue getIngest() {
+        return ingest;
+    }
+
+    AlertEngine getAlerts() {
+        return alerts;
+    }
+
+    WindowedStats getStats(SensorChannel channel) {
+        return channelStats[channel.ordinal()];
+    }
+
+    private void openStore() {
+        if (ServerConfig.STORE_DIR == null) {
+            return;
+        }
+        try {
+            store = new TimeSeriesStore(Paths.get(ServerConfig.STORE_DIR),
+                    ServerConfig.STORE_SEGMENT_MB * 1024 * 1024,
+                    TimeUnit.HOURS.toMillis(ServerConfig.STORE_SEGMENT_HOURS),
+                    TimeUnit.DAYS.toMillis(ServerConfig.STORE_RETENTION_DAYS),
+                    ServerConfig.STORE_RETENTION_MB * 1024 * 1024);
+            if (wal == null) {
+                restoreFromStore();
             }
-        });
-        frame.add(closeButton);
+            addSink(store);
+        } catch (IOException e) {
+            System.out.println("XX. Unable to open the time-series store: " + e);
+        }
+    }
 
-        frame.pack();
-        frame.setVisible(true);
+    // Replays the write-ahead log into the gauge windows and rollups, then
+    // keeps appending to it
+    private void openLog() {
+        if (ServerConfig.WAL_DIR == null) {
+            return;
+        }
+        int durability = WriteAheadLog.parseDurability(ServerConfig.WAL_DURABILITY);
+        if (durability == WriteAheadLog.PER_READING && ServerConfig.isNioIngest()) {
+            // The NIO engine commits on its selector threads, where an fsync
+            // per batch of frames would stall every device on the loop
+            System.out.println("XX. Per-reading WAL durability needs threaded ingest, using batch");
+            durability = WriteAheadLog.BATCH;
+        }
+        try {
+            wal = new WriteAheadLog(Paths.get(ServerConfig.WAL_DIR), durability,
+                    ServerConfig.WAL_SEGMENT_MB * 1024L * 1024, ServerConfig.WAL_SEGMENTS,
+                    ServerConfig.WAL_FLUSH_MILLIS);
+            long started = System.nanoTime();
+            long replayed = wal.replay((device, timestamp, methane, co2, temperature) -> {
+                channelStats[SensorChannel.METHANE.ordinal()].add(methane, timestamp);
+                channelStats[SensorChannel.CO2.ordinal()].add(co2, timestamp);
+                channelStats[SensorChannel.TEMPERATURE.ordinal()].add(temperature, timestamp);
+                rollups.onReading(device, timestamp, methane, co2, temperature);
+            });
+            System.out.println("00. Replayed " + replayed + " readings from the write-ahead log in "
+                    + (System.nanoTime() - started) / 1000000 + " ms");
+            wal.start();
+        } catch (IOException e) {
+            System.out.println("XX. Unable to open the write-ahead log: " + e);
+            wal = null;
+        }
     }
 
-    private void startServer() {
+    // Makes the readings this thread has logged as durable as the configured
+    // level asks for; the ingest paths call it before acking
+    // Throws when the log could not take the readings; the caller must not
+    // ack them but close the connection, so the device resends its spool
+    void commitLog() throws IOException {
+        if (wal != null) {
+            try {
+                wal.commit();
+            } catch (IOException e) {
+                metrics.walErrors.increment();
+                throw e;
+            }
+        }
+    }
+
+    // Refills the gauge windows with the latest stored points so a restart
+    // does not start from empty gauges
+    private void restoreFromStore() {
+        long now = System.currentTimeMillis();
+        long from = now - TimeUnit.HOURS.toMillis(ServerConfig.STORE_SEGMENT_HOURS);
+        for (SensorChannel channel : SensorChannel.values()) {
+            LatestPoints latest = new LatestPoints(ANALYSIS_WINDOW);
+            store.query(null, channel, from, now, latest);
+            for (int i = 0; i < latest.count; i++) {
+                getStats(channel).add(latest.values[i], latest.times[i]);
+            }
+        }
+    }
+
+    // Keeps the newest points seen, in timestamp order
+    private static class LatestPoints implements TimeSeriesStore.PointConsumer {
+        final long[] times;
+        final double[] values;
+        int count;
+
+        LatestPoints(int capacity) {
+            times = new long[capacity];
+            values = new double[capacity];
+        }
+
+        @Override
+        public void accept(String device, long timestamp, double value) {
+            if (count == times.length) {
+                if (timestamp <= times[0]) {
+                    return;
+                }
+                System.arraycopy(times, 1, times, 0, count - 1);
+                System.arraycopy(values, 1, values, 0, count - 1);
+                count--;
+            }
+            int i = count;
+            while (i > 0 && times[i - 1] > timestamp) {
+                times[i] = times[i - 1];
+                values[i] = values[i - 1];
+                i--;
+            }
+            times[i] = timestamp;
+            values[i] = value;
+            count++;
+        }
+    }
+
+    void start() {
+        alerts.start();
+        rates.start();
+        if (cluster != null) {
+            try {
+                cluster.start();
+                System.out.println("00. Cluster node " + ServerConfig.NODE_ID + " gossiping on port: "
+                        + cluster.getSelf().gossip.getPort());
+            } catch (IOException e) {
+                System.out.println("XX. Unable to start cluster gossip: " + e);
+            }
+        }
+        exporter = new MetricsExporter(this);
+        exporter.start(ServerConfig.METRICS_PORT);
+        startRelay();
+        if (ServerConfig.isNioIngest()) {
+            startNioServer();
+            return;
+        }
         try {
             serverSocket = new ServerSocket(PORT_NUMBER);
-            statusTextArea.append("Server started on port: " + PORT_NUMBER + "\n");
+            handlers = new HandlerPool(ServerConfig.HANDLER_THREADS);
+            System.out.println("00. Server started on port: " + PORT_NUMBER + " with "
+                    + (handlers.isVirtual() ? "virtual" : "platform") + " handler threads");
             acceptConnections();
         } catch (IOException e) {
-            statusTextArea.append("Error: Unable to start server on port " + PORT_NUMBER + "\n");
+            System.out.println("XX. Unable to start server on port " + PORT_NUMBER);
+        }
+    }
+
+    private void startRelay() {
+        if (ServerConfig.RELAY_PORT <= 0) {
+            return;
+        }
+        try {
+            relay = new LiveRelay(ServerConfig.RELAY_PORT, ServerConfig.RELAY_RING, ServerConfig.RELAY_SLOW_POLICY);
+            relay.start();
+            addSink(relay);
+            System.out.println("00. Live relay on port: " + ServerConfig.RELAY_PORT);
+        } catch (IOException e) {
+            System.out.println("XX. Unable to start the live relay on port " + ServerConfig.RELAY_PORT + ": " + e);
+            relay = null;
+        }
+    }
+
+    private void startNioServer() {
+        try {
+            nioIngest = new NioIngestServer(this, PORT_NUMBER, ServerConfig.IO_THREADS);
+            nioIngest.start();
+            System.out.println("00. NIO server started on port: " + PORT_NUMBER
+                    + " with " + ServerConfig.IO_THREADS + " I/O threads");
+        } catch (IOException e) {
+            System.out.println("XX. Unable to start server on port " + PORT_NUMBER);
         }
     }
 
     private void acceptConnections() {
         new Thread(() -> {
-            while (true) {
+            while (!serverSocket.isClosed()) {
                 try {
                     Socket clientSocket = serverSocket.accept();
                     handleNewConnection(clientSocket);
                 } catch (IOException e) {
-                    statusTextArea.append("Error accepting connection.\n");
+                    if (!serverSocket.isClosed()) {
+                        System.out.println("XX. Error accepting connection.");
+                    }
                 }
             }
         }).start();
     }
 
     private void handleNewConnection(Socket clientSocket) {
-        SensorDevice sensorDevice = new SensorDevice(clientSocket, this);
-        connectedDevices.put(sensorDevice.getDeviceName(), sensorDevice);
-        updateConnectedDevices();
-        new Thread(sensorDevice).start();
+        SensorDevice sensorDevice = new SensorDevice(clientSocket, this, connectDevice(DEFAULT_DEVICE_NAME));
+        handlers.execute(sensorDevice);
+    }
+
+    // Registers a new connection under a unique name (see DeviceRegistry)
+    DeviceState connectDevice(String requestedName) {
+        DeviceState device = devices.register(requestedName);
+        metrics.connectionsOpened.increment();
+        try {
+            alerts.onDeviceConnected(device.getName());
+        } catch (RuntimeException e) {
+            System.out.println("XX. Alert evaluation failed: " + e);
+        }
+        ingest.onDeviceConnected(device.getName());
+        return device;
+    }
+
+    void disconnectDevice(DeviceState device) {
+        devices.unregister(device);
+        metrics.connectionsClosed.increment();
+        try {
+            alerts.onDeviceDisconnected(device.getName());
+        } catch (RuntimeException e) {
+            System.out.println("XX. Alert evaluation failed: " + e);
+        }
+        ingest.onDeviceDisconnected(device.getName());
     }
 
-    void updateConnectedDevices() {
-        SwingUtilities.invokeLater(() -> {
-            statusTextArea.setText("");
-            for (SensorDevice device : connectedDevices.values()) {
-                statusTextArea.append(device.getDeviceName() + " - Connected\n");
+    void renameDevice(DeviceState device, String requestedName) {
+        String oldName = device.getName();
+        devices.rename(device, requestedName);
+        if (!oldName.equals(device.getName())) {
+            try {
+                alerts.onDeviceRenamed(oldName, device.getName());
+            } catch (RuntimeException e) {
+                System.out.println("XX. Alert evaluation failed: " + e);
             }
-        });
+            ingest.onDeviceRenamed(oldName, device.getName());
+        }
     }
 
-    public void updateSensorReading(String deviceName, double methane, double co2, double temperature) {
-        methaneReadings.add(methane);
-        co2Readings.add(co2);
-        temperatureReadings.add(temperature);
+    DeviceRegistry getDevices() {
+        return devices;
+    }
 
-        updateGauges();
-        updateAnalysis();
+    // The threaded engine's handler executor, or null for NIO / before start()
+    HandlerPool getHandlers() {
+        return handlers;
     }
 
-    private void updateGauges() {
-        SwingUtilities.invokeLater(() -> {
-            methaneGauge.updateValues(getAverage(methaneReadings), getMin(methaneReadings), getMax(methaneReadings));
-            co2Gauge.updateValues(getAverage(co2Readings), getMin(co2Readings), getMax(co2Readings));
-            temperatureGauge.updateValues(getAverage(temperatureReadings), getMin(temperatureReadings), getMax(temperatureReadings));
-        });
+    // One-line summary of the ingest engine
+    String describeIngest() {
+        if (handlers != null) {
+            return handlers.describe();
+        }
+        if (nioIngest == null) {
+            return null;
+        }
+        return "NIO connections: " + nioIngest.getConnectionCount()
+                + ", buffer bytes/connection: " + nioIngest.getBytesPerConnection();
     }
 
-    private double getAverage(List<Double> readings) {
-        return readings.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+    public void updateSensorReading(String deviceName, double methane, double co2, double temperature)
+            throws IOException {
+        updateSensorReading(deviceName, System.currentTimeMillis(), methane, co2, temperature);
     }
 
-    private double getMin(List<Double> readings) {
-        return readings.stream().mapToDouble(Double::doubleValue).min().orElse(0.0);
+    void updateSensorReading(DeviceState device, long timestamp, double methane, double co2, double temperature)
+            throws IOException {
+        device.recordReading(timestamp, methane, co2, temperature);
+        updateSensorReading(device.getName(), timestamp, methane, co2, temperature);
     }
 
-    private double getMax(List<Double> readings) {
-        return readings.stream().mapToDouble(Double::doubleValue).max().orElse(0.0);
+    // Alerts are evaluated here, on the ingest thread, before the reading is
+    // queued: a backlog in the queue delays the aggregates, never an alert.
+    // A reading the write-ahead log cannot take is not queued; the exception
+    // reaches the ingest path, which closes the connection unacked, as it
+    // does when commitLog() fails, so the device resends it from its spool.
+    public void updateSensorReading(String deviceName, long timestamp, double methane, double co2, double temperature)
+            throws IOException {
+        metrics.readings.increment();
+        try {
+            alerts.onReading(deviceName, timestamp, methane, co2, temperature);
+        } catch (RuntimeException e) {
+            System.out.println("XX. Alert evaluation failed: " + e);
+        }
+        if (wal != null) {
+            try {
+                wal.append(deviceName, timestamp, methane, co2, temperature);
+            } catch (IOException e) {
+                metrics.walErrors.increment();
+                throw e;
+            }
+        }
+        ingest.onReading(deviceName, timestamp, methane, co2, temperature);
     }
 
-    private void updateAnalysis() {
-        SwingUtilities.invokeLater(() -> {
-            analysisTextArea.setText("");
-            if (methaneReadings.size() > 10) {
-                methaneReadings.remove(0);
+    // The end of the ingest queue, run on its writer thread: the gauge
+    // windows, then every sink in turn. Each sink is guarded on its own, so
+    // one that throws cannot keep a reading or device event from the rest.
+    private class Fanout implements ReadingSink {
+        @Override
+        public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+            channelStats[SensorChannel.METHANE.ordinal()].add(methane);
+            channelStats[SensorChannel.CO2.ordinal()].add(co2);
+            channelStats[SensorChannel.TEMPERATURE.ordinal()].add(temperature);
+
+            for (ReadingSink sink : sinks) {
+                try {
+                    sink.onReading(deviceName, timestamp, methane, co2, temperature);
+                } catch (RuntimeException e) {
+                    // A faulty consumer must not hold up the other sinks
+                    System.out.println("XX. Reading sink failed: " + e);
+                }
             }
-            if (co2Readings.size() > 10) {
-                co2Readings.remove(0);
+        }
+
+        @Override
+        public void onDeviceConnected(String deviceName) {
+            for (ReadingSink sink : sinks) {
+                try {
+                    sink.onDeviceConnected(deviceName);
+                } catch (RuntimeException e) {
+                    System.out.println("XX. Reading sink failed: " + e);
+                }
             }
-            if (temperatureReadings.size() > 10) {
-                temperatureReadings.remove(0);
+        }
+
+        @Override
+        public void onDeviceDisconnected(String deviceName) {
+            for (ReadingSink sink : sinks) {
+                try {
+                    sink.onDeviceDisconnected(deviceName);
+                } catch (RuntimeException e) {
+                    System.out.println("XX. Reading sink failed: " + e);
+                }
             }
+        }
 
-            analysisTextArea.append("Methane Average: " + getAverage(methaneReadings) + "\n");
-            analysisTextArea.append("CO2 Average: " + getAverage(co2Readings) + "\n");
-            analysisTextArea.append("Temperature Average: " + getAverage(temperatureReadings) + "\n");
-        });
+        @Override
+        public void onDeviceRenamed(String oldName, String newName) {
+            for (ReadingSink sink : sinks) {
+                try {
+                    sink.onDeviceRenamed(oldName, newName);
+                } catch (RuntimeException e) {
+                    System.out.println("XX. Reading sink failed: " + e);
+                }
+            }
+        }
     }
 
-    private void startAnalysisTimer() {
-        analysisTimer = new Timer();
-        analysisTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                updateAnalysis();
+    // Delivers the reading(s) of a decoded SBP frame from device and returns
+    // how many there were, for the ingest paths' cumulative acks. The frame's
+    // device id names the connection's device the first time it is seen, and
+    // timestamps too far ahead of the server clock are clamped to it.
+    // Throws, with nothing to ack, when the write-ahead log fails.
+    int updateSensorReadings(DeviceState device, SensorFrame frame, int type) throws IOException {
+        if (type != SensorFrame.TYPE_READING && type != SensorFrame.TYPE_BATCH) {
+            return 0;
+        }
+        String frameName = frame.getDeviceName();
+        if (frameName != device.frameName) {
+            device.frameName = frameName;
+            renameDevice(device, frameName);
+        }
+        long started = System.nanoTime();
+        device.recordMessage();
+        metrics.messages.increment();
+        int count = 0;
+        if (type == SensorFrame.TYPE_READING) {
+            updateSensorReading(device, ServerConfig.clampToServerTime(frame.timestamp, System.currentTimeMillis()),
+                    frame.methane, frame.co2, frame.temperature);
+            count = 1;
+        } else {
+            long now = System.currentTimeMillis();
+            while (frame.nextBatchReading()) {
+                updateSensorReading(device, ServerConfig.clampToServerTime(frame.timestamp, now),
+                        frame.methane, frame.co2, frame.temperature);
+                count++;
             }
-        }, 0, 10000); // Update every 10 seconds
+        }
+        metrics.parseLatency.record(System.nanoTime() - started);
+        commitLog();
+        return count;
+    }
+
+    // Jittered so the devices of a restarting server come back spread out
+    // rather than in one burst
+    int reconnectAfterMillis() {
+        return ServerConfig.RECONNECT_MIN_MILLIS
+                + ThreadLocalRandom.current().nextInt(ServerConfig.RECONNECT_SPREAD_MILLIS + 1);
     }
 
-    private void shutDownServer() {
-        analysisTimer.cancel();
+    // Orderly stop: no new connections, every device told to go away and
+    // given DRAIN_MILLIS to hang up (its readings still being ingested and
+    // acked meanwhile), the stragglers closed, and only then the log and
+    // store flushed and closed, so nothing accepted is lost under them.
+    // Safe to call twice (window close, then the shutdown hook).
+    synchronized void shutDown() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        long started = System.nanoTime();
+        int connected = devices.size();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        int remaining = 0;
+        if (nioIngest != null) {
+            remaining = nioIngest.drain(ServerConfig.DRAIN_MILLIS);
+            if (!nioIngest.stop(ServerConfig.HANDLER_SHUTDOWN_MILLIS)) {
+                System.out.println("XX. NIO loops did not stop within "
+                        + ServerConfig.HANDLER_SHUTDOWN_MILLIS + " ms");
+            }
+        }
+        if (handlers != null) {
+            remaining = handlers.drain(ServerConfig.DRAIN_MILLIS);
+            if (!handlers.shutDown(ServerConfig.HANDLER_SHUTDOWN_MILLIS)) {
+                System.out.println("XX. Device handlers did not stop within "
+                        + ServerConfig.HANDLER_SHUTDOWN_MILLIS + " ms");
+            }
+        }
+        // Whatever the devices sent is queued by now; let the sinks have it
+        // before they are stopped and the log and store closed
+        if (!ingest.stop(ServerConfig.DRAIN_MILLIS)) {
+            System.out.println("XX. " + ingest.getDepth() + " queued readings were not delivered within "
+                    + ServerConfig.DRAIN_MILLIS + " ms");
+        }
+        alerts.stop();
+        rates.stop();
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (exporter != null) {
+            exporter.stop();
+        }
+        if (relay != null) {
+            removeSink(relay);
+            relay.stop();
+        }
         try {
-            serverSocket.close();
+            if (wal != null) {
+                wal.close();
+            }
+            if (store != null) {
+                removeSink(store);
+                store.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        System.exit(0);
+        System.out.println("00. Server stopped in " + (System.nanoTime() - started) / 1000000 + " ms: "
+                + (connected - remaining) + " of " + connected + " devices drained, "
+                + metrics.readings.sum() + " readings taken");
+        WindowedStats.Summary summary = new WindowedStats.Summary();
+        for (SensorChannel channel : SensorChannel.values()) {
+            getStats(channel).read(summary);
+            if (summary.count > 0) {
+                System.out.println("    -> " + channel.getLabel() + " mean " + summary.getMean()
+                        + ", min " + summary.min + ", max " + summary.max);
+            }
+        }
     }
 
+    // Runs with the Swing window by default; "--headless" (or
+    // -Dee402.headless=true / -Djava.awt.headless=true) runs only the core
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new SensorServer());
-    }
-}
-
-class Gauge extends JPanel {
-    private String sensorType;
-    private JLabel titleLabel;
-    private JLabel averageLabel;
-    private JLabel minLabel;
-    private JLabel maxLabel;
-
-    public Gauge(String sensorType) {
-        this.sensorType = sensorType;
-        initialize();
-    }
-
-    private void initialize() {
-        setLayout(new GridLayout(4, 1));
-        setBorder(BorderFactory.createTitledBorder(sensorType + " Gauge"));
-
-        titleLabel = new JLabel(sensorType);
-        averageLabel = new JLabel("Average: 0.0");
-        minLabel = new JLabel("Min: 0.0");
-        maxLabel = new JLabel("Max: 0.0");
+        long started = System.nanoTime();
+        boolean headless = ServerConfig.HEADLESS;
+        for (String arg : args) {
+            headless |= arg.equals("--headless");
+        }
 
-        add(titleLabel);
-        add(averageLabel);
-        add(minLabel);
-        add(maxLabel);
-    }
+        SensorServer server = new SensorServer();
+        // SIGTERM (a rolling restart) drains like closing the window does
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutDown, "server-shutdown"));
+        if (!headless) {
+            SensorServerGui.launch(server);
+        }
+        server.start();
 
-    public void updateValues(double average, double min, double max) {
-        SwingUtilities.invokeLater(() -> {
-            averageLabel.setText("Average: " + average);
-            minLabel.setText("Min: " + min);
-            maxLabel.setText("Max: " + max);
-        });
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("**. Sensor server ready in " + (System.nanoTime() - started) / 1000000 + " ms ("
+                + (headless ? "headless" : "GUI") + "), heap used: "
+                + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + " KB");
     }
 }
 
-class SensorDevice implements Runnable {
+class SensorDevice implements HandlerPool.Handler, CommandRegistry.Session {
     private Socket clientSocket;
     private SensorServer server;
-    private ObjectOutputStream os;
+    private volatile ObjectOutputStream os; // written by the handler and by goAway()
     private ObjectInputStream is;
-    private String deviceName;
+    private volatile boolean binary;
+    private volatile boolean acks;
+    private volatile int readingsReceived; // readings committed, for the cumulative acks
+    private final DeviceState device;
 
-    public SensorDevice(Socket clientSocket, SensorServer server) {
+    public SensorDevice(Socket clientSocket, SensorServer server, DeviceState device) {
         this.clientSocket = clientSocket;
         this.server = server;
-        this.deviceName = "Unknown Device";
+        this.device = device;
     }
 
     public String getDeviceName() {
-        return deviceName;
+        return device.getName();
     }
 
     @Override
     public void run() {
         try {
-            os = new ObjectOutputStream(clientSocket.getOutputStream());
-            is = new ObjectInputStream(clientSocket.getInputStream());
+            os = new ObjectOutputStream(server.getMetrics().countOut(clientSocket.getOutputStream()));
+            is = new ObjectInputStream(server.getMetrics().countIn(clientSocket.getInputStream()));
 
             // Send an initial acknowledgment to the client
-            send("Connection established. Welcome, " + deviceName + "!");
+            send("Connection established. Welcome, " + device.getName() + "!");
 
             while (true) {
                 Object received = is.readObject();
                 if (received instanceof String) {
                     String command = (String) received;
-                    if (command.startsWith("Sensor Update: ")) {
-                        // Extract sensor values from the update command
-                        String[] values = command.replace("Sensor Update: ", "").split(", ");
-                        double methane = Double.parseDouble(values[0].split(" - ")[1]);
-                        double co2 = Double.parseDouble(values[1].split(" - ")[1]);
-                        double temperature = Double.parseDouble(values[2].split(" - ")[1]);
-
-                        // Notify the server about the new sensor readings
-                        server.updateSensorReading(deviceName, methane, co2, temperature);
+                    if (SensorFrame.isHello(command)) {
+                        String redirect = server.redirectFor(command);
+                        if (redirect != null) {
+                            // Another node owns this device; it reconnects there
+                            send(redirect);
+                            server.disconnectDevice(device);
+                            close();
+                            return;
+                        }
+                        send(SensorFrame.HELLO_ACK);
+                        binary = true;
+                        readFrames(SensorFrame.wantsAcks(command));
+                    } else {
+                        server.getCommands().dispatch(this, command);
                     }
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
             // Handle disconnection or errors
-            server.connectedDevices.remove(deviceName);
-            server.updateConnectedDevices();
-            closeSocket();
+            if (e instanceof ObjectStreamException || e instanceof ClassNotFoundException) {
+                server.getMetrics().decodeErrors.increment();
+            }
+            server.disconnectDevice(device);
+            close();
         }
     }
 
-    private void send(Object o) {
+    // After the SBP handshake the device only sends binary frames, carried
+    // as block data on the same object stream. Acks are cumulative, so one
+    // is only written once the frames already buffered have been consumed.
+    // Time requests are answered at once, stamped as close to the wire as
+    // the stream allows. A new sampling rate goes out with the ack.
+    private void readFrames(boolean acks) throws IOException {
+        this.acks = acks;
+        SensorFrame frame = new SensorFrame();
+        ByteBuffer ack = ByteBuffer.allocate(SensorFrame.ACK_SIZE);
+        ByteBuffer time = ByteBuffer.allocate(SensorFrame.TIME_RESPONSE_SIZE);
+        ByteBuffer rate = ByteBuffer.allocate(SensorFrame.RATE_SIZE);
+        // Acks, rates and time responses are tiny writes that Nagle would
+        // otherwise hold back
+        clientSocket.setTcpNoDelay(true);
+        int sampleMillis = sendRate(rate, 0);
+        while (true) {
+            int type = frame.read(is);
+            if (type == SensorFrame.TYPE_TIME_REQUEST) {
+                long receivedAt = System.currentTimeMillis();
+                time.clear();
+                SensorFrame.encodeTimeResponse(time, frame.timestamp, receivedAt, System.currentTimeMillis());
+                writeFrame(time.array());
+                continue;
+            }
+            int readings = server.updateSensorReadings(device, frame, type);
+            if (readings > 0) {
+                readingsReceived += readings;
+                if (is.available() == 0) {
+                    if (acks) {
+                        ack.clear();
+                        SensorFrame.encodeAck(ack, readingsReceived);
+                        writeFrame(ack.array());
+                    }
+                    sampleMillis = sendRate(rate, sampleMillis);
+                }
+            }
+        }
+    }
+
+    // Sends the device's sampling interval if it is not the one last sent
+    private int sendRate(ByteBuffer rate, int sent) throws IOException {
+        RateController rates = server.getRates();
+        int sampleMillis = rates.sampleMillisFor(device);
+        if (sampleMillis != sent) {
+            rate.clear();
+            SensorFrame.encodeRate(rate, sampleMillis, rates.getHeartbeatMillis());
+            writeFrame(rate.array());
+            server.getMetrics().rateDirectives.increment();
+        }
+        return sampleMillis;
+    }
+
+    @Override
+    public DeviceState getDevice() {
+        return device;
+    }
+
+    // A cached String goes out as a back reference on repeat sends
+    @Override
+    public void reply(String message) {
+        send(message);
+    }
+
+    // Writes are synchronized because goAway() comes from the shutdown thread
+    private synchronized void send(Object o) {
         try {
             os.writeObject(o);
             os.flush();
         } catch (IOException e) {
-            // Handle sending errors
+            // The read loop notices the broken connection; just count it
+            server.getMetrics().sendErrors.increment();
+        }
+    }
+
+    private synchronized void writeFrame(byte[] frame) throws IOException {
+        os.write(frame);
+        os.flush();
+    }
+
+    // SBP devices get an ack of everything received so far and a GOAWAY
+    // frame, legacy ones a string they may ignore; the handler keeps reading
+    // (and acking) until the device hangs up
+    @Override
+    public void goAway() {
+        if (os == null) {
+            return; // Not even welcomed yet, the deadline will close it
+        }
+        int reconnectAfter = server.reconnectAfterMillis();
+        if (!binary) {
+            send("Server Shutdown: reconnect after " + reconnectAfter + " ms");
+            return;
+        }
+        ByteBuffer notice = ByteBuffer.allocate(SensorFrame.GOAWAY_SIZE);
+        SensorFrame.encodeGoAway(notice, reconnectAfter);
+        try {
+            if (acks) {
+                ByteBuffer ack = ByteBuffer.allocate(SensorFrame.ACK_SIZE);
+                SensorFrame.encodeAck(ack, readingsReceived);
+                writeFrame(ack.array());
+            }
+            writeFrame(notice.array());
+        } catch (IOException e) {
+            server.getMetrics().sendErrors.increment();
         }
     }
 
-    private void closeSocket() {
+    @Override
+    // Also called from HandlerPool.shutDown() on another thread: closing the
+    // socket unblocks the handler's read, where flushing os first could block
+    // on a device that stopped reading
+    public void close() {
         try {
-            os.close();
-            is.close();
             clientSocket.close();
         } catch (IOException e) {
             // Handle closing errors
@@ -0,0 +1,217 @@
+package ee402;
+
+import javax.swing.*;
+import javax.swing.table.TableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// The Swing window of the sensor server, attached to the core as one more
+// ReadingSink. Readings and connection changes only mark the display dirty;
+// the refresher redraws it on the EDT at a bounded frame rate. The device
+// and analysis panes are JTables whose models fire row events only for what
+// changed, so thousands of devices cost no document rebuilds.
+class SensorServerGui implements ReadingSink {
+    private final SensorServer server;
+    private final WindowedStats.Summary summary = new WindowedStats.Summary(); // EDT only
+    private Timer analysisTimer;
+    private CoalescingRefresher refresher;
+
+    private JFrame frame;
+    private DeviceTableModel deviceModel;
+    private AnalysisTableModel analysisModel;
+    private JLabel ingestLabel;
+    private JLabel refreshLabel;
+    private final Gauge[] gauges = new Gauge[SensorChannel.values().length];
+
+    SensorServerGui(SensorServer server) {
+        this.server = server;
+
+        initializeGUI();
+        startRefresher();
+        startAnalysisTimer();
+        server.addSink(this);
+    }
+
+    static void launch(SensorServer server) {
+        SwingUtilities.invokeLater(() -> new SensorServerGui(server));
+    }
+
+    private void initializeGUI() {
+        frame = new JFrame("Sensor Server");
+        frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                shutDownServer();
+            }
+        });
+        frame.setLayout(new GridLayout(2, 2));
+
+        // Status area
+        deviceModel = new DeviceTableModel(server.getDevices());
+        ingestLabel = new JLabel(" ");
+        frame.add(tablePanel("Connected Devices", deviceModel, ingestLabel));
+
+        // Analysis area
+        analysisModel = new AnalysisTableModel(server);
+        refreshLabel = new JLabel(" ");
+        frame.add(tablePanel("Analysis Results", analysisModel, refreshLabel));
+
+        // Gauges
+        for (SensorChannel channel : SensorChannel.values()) {
+            gauges[channel.ordinal()] = new Gauge(channel.getLabel());
+            frame.add(gauges[channel.ordinal()]);
+        }
+
+        // X button to shut down the server gracefully
+        JButton closeButton = new JButton("X");
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                shutDownServer();
+            }
+        });
+        frame.add(closeButton);
+
+        frame.pack();
+        frame.setVisible(true);
+    }
+
+    private static JPanel tablePanel(String title, TableModel model, JLabel footer) {
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder(title));
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(footer, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        refresher.requestRefresh();
+    }
+
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        refresher.requestRefresh();
+    }
+
+    @Override
+    public void onDeviceDisconnected(String deviceName) {
+        refresher.requestRefresh();
+    }
+
+    @Override
+    public void onDeviceRenamed(String oldName, String newName) {
+        refresher.requestRefresh();
+    }
+
+    // Ingest threads only mark the display dirty; the gauges and analysis
+    // pane are redrawn on the EDT at most ee402.uiRefreshHz times a second
+    private void startRefresher() {
+        refresher = new CoalescingRefresher(ServerConfig.UI_REFRESH_HZ, () -> {
+            updateConnectedDevices();
+            updateGauges();
+            updateAnalysis();
+        });
+        refresher.start();
+        refresher.requestRefresh();
+    }
+
+    private void updateConnectedDevices() {
+        deviceModel.refresh();
+        String ingest = server.describeIngest();
+        ingestLabel.setText(server.getDevices().size() + " devices" + (ingest == null ? "" : " - " + ingest));
+    }
+
+    private void updateGauges() {
+        for (SensorChannel channel : SensorChannel.values()) {
+            server.getStats(channel).read(summary);
+            gauges[channel.ordinal()].updateValues(summary.getMean(), summary.min, summary.max);
+        }
+    }
+
+    private void updateAnalysis() {
+        analysisModel.refresh();
+        refreshLabel.setText("Coalesced updates: " + refresher.getCoalescedCount()
+                + " (" + refresher.getRepaintCount() + " repaints), active alerts: "
+                + server.getAlerts().getActiveCount());
+    }
+
+    private void startAnalysisTimer() {
+        analysisTimer = new Timer();
+        analysisTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                refresher.requestRefresh();
+            }
+        }, 0, 10000); // Update every 10 seconds
+
+        // EDT lag probe: how long a task posted from another thread waits
+        // behind everything already on the Swing event queue
+        analysisTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater(() -> server.getMetrics().edtLag.record(System.nanoTime() - posted));
+            }
+        }, 0, 250);
+    }
+
+    // Closing the window (or X) shuts the core down in order; once its
+    // handlers and timers are gone the JVM exits without System.exit. The
+    // drain can take up to its deadline, so it runs off the EDT and the
+    // window goes when it is done.
+    private void shutDownServer() {
+        analysisTimer.cancel();
+        refresher.stop();
+        server.removeSink(this);
+        frame.setTitle("Sensor Server - shutting down");
+        frame.setEnabled(false);
+        new Thread(() -> {
+            server.shutDown();
+            SwingUtilities.invokeLater(frame::dispose);
+        }, "server-shutdown").start();
+    }
+}
+
+class Gauge extends JPanel {
+    private String sensorType;
+    private JLabel titleLabel;
+    private JLabel averageLabel;
+    private JLabel minLabel;
+    private JLabel maxLabel;
+
+    public Gauge(String sensorType) {
+        this.sensorType = sensorType;
+        initialize();
+    }
+
+    private void initialize() {
+        setLayout(new GridLayout(4, 1));
+        setBorder(BorderFactory.createTitledBorder(sensorType + " Gauge"));
+
+        titleLabel = new JLabel(sensorType);
+        averageLabel = new JLabel("Average: 0.0");
+        minLabel = new JLabel("Min: 0.0");
+        maxLabel = new JLabel("Max: 0.0");
+
+        add(titleLabel);
+        add(averageLabel);
+        add(minLabel);
+        add(maxLabel);
+    }
+
+    // Called on the EDT by the GUI's refresher
+    public void updateValues(double average, double min, double max) {
+        averageLabel.setText("Average: " + average);
+        minLabel.setText("Min: " + min);
+        maxLabel.setText("Max: " + max);
+    }
+}
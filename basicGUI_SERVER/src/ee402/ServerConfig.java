@@ -0,0 +1,127 @@
+package ee402;
+
+// Server settings, read once from -D system properties so that every launch
+// (GUI or otherwise) is tuned the same way without recompiling.
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("ee402.port", 5050);
+
+    // "threads" keeps one SensorDevice thread per socket, "nio" multiplexes
+    // every device socket over a few selector threads
+    static final String INGEST_MODE = System.getProperty("ee402.ingest", "threads");
+    static final int IO_THREADS = Integer.getInteger("ee402.ioThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Threaded ingest runs each device handler on a "platform" thread or, on
+    // JDKs that have them, a "virtual" thread
+    static final String HANDLER_THREADS = System.getProperty("ee402.handlerThreads", "platform");
+    static final long HANDLER_SHUTDOWN_MILLIS = Long.getLong("ee402.handlerShutdownMillis", 5000);
+
+    // On shutdown every device is told to reconnect after RECONNECT_MIN plus
+    // a random share of RECONNECT_SPREAD ms, so a restart does not bring the
+    // whole fleet back at once, and gets DRAIN_MILLIS to hang up before its
+    // connection is closed under it
+    static final long DRAIN_MILLIS = Long.getLong("ee402.drainMillis", 5000);
+    static final int RECONNECT_MIN_MILLIS = Integer.getInteger("ee402.reconnectMinMillis", 1000);
+    static final int RECONNECT_SPREAD_MILLIS = Integer.getInteger("ee402.reconnectSpreadMillis", 4000);
+
+    // Rate directives for SBP devices: sample every SAMPLE_MILLIS (the
+    // client's own default, so the first directive does not speed devices
+    // up), every EVENT_SAMPLE_MILLIS while an alert on the device is raised,
+    // and report an unchanged reading at least every HEARTBEAT_MILLIS, capped
+    // at half the silence rule. With the default 60 s silence rule a steady
+    // device reports every 30 s, a third of the old one every 10 s; a longer
+    // silence limit lengthens the heartbeat with it. Once more than
+    // INGEST_BUDGET readings/s arrive (0: no limit) the intervals are
+    // doubled until the rate fits, up to the heartbeat.
+    static final int SAMPLE_MILLIS = Integer.getInteger("ee402.sampleMillis", 10000);
+    static final int EVENT_SAMPLE_MILLIS = Integer.getInteger("ee402.eventSampleMillis", 500);
+    static final int HEARTBEAT_MILLIS = Integer.getInteger("ee402.heartbeatMillis", 120000);
+    static final int INGEST_BUDGET = Integer.getInteger("ee402.ingestBudget", 10000);
+
+    // Decoded readings wait for the sinks in a queue of INGEST_QUEUE slots,
+    // drained by one writer thread. When it is full an ingest thread waits
+    // ("block"), drops the oldest queued reading from the live aggregates,
+    // though not from the log ("drop-oldest"), or, "signal", has SBP devices
+    // sample at the heartbeat while it is three quarters full and waits only
+    // if it fills all the same (see IngestQueue). NIO ingest uses "signal"
+    // in place of "block", which would park a whole selector loop.
+    static final int INGEST_QUEUE = Integer.getInteger("ee402.ingestQueue", 64 * 1024);
+    static final String INGEST_OVERFLOW = System.getProperty("ee402.ingestOverflow", "block");
+
+    // Headless runs only the networking/aggregation core, with no Swing window
+    static final boolean HEADLESS = Boolean.getBoolean("ee402.headless")
+            || Boolean.getBoolean("java.awt.headless");
+
+    // Upper bound on gauge/analysis repaints per second, however fast readings arrive
+    static final int UI_REFRESH_HZ = Integer.getInteger("ee402.uiRefreshHz", 10);
+
+    // Alert rules, ';'-separated (see AlertRule for the syntax); the EWMA
+    // behind "z" rules weighs each new reading by ALERT_EWMA_ALPHA and stays
+    // quiet for the first ALERT_WARMUP readings of a device
+    static final String ALERT_RULES = System.getProperty("ee402.alertRules",
+            "methane > 5000; co2 > 5000; silence 60");
+    static final double ALERT_EWMA_ALPHA = Double.parseDouble(System.getProperty("ee402.alertEwmaAlpha", "0.1"));
+    static final int ALERT_WARMUP = Integer.getInteger("ee402.alertWarmup", 20);
+
+    // Prometheus text endpoint on localhost (0 turns it off; JMX is always on)
+    static final int METRICS_PORT = Integer.getInteger("ee402.metricsPort", 9402);
+
+    // Write-ahead log of accepted readings, off unless a directory is given;
+    // durability is "none", "batch" (fsync every flush interval) or
+    // "per-reading" (fsync before a reading is acked), which needs threaded
+    // ingest: NIO ingest falls back to "batch" rather than fsync on its
+    // selector threads
+    static final String WAL_DIR = System.getProperty("ee402.walDir");
+    static final String WAL_DURABILITY = System.getProperty("ee402.walDurability", "batch");
+    static final long WAL_FLUSH_MILLIS = Long.getLong("ee402.walFlushMillis", 10);
+    static final int WAL_SEGMENT_MB = Integer.getInteger("ee402.walSegmentMB", 64);
+    static final int WAL_SEGMENTS = Integer.getInteger("ee402.walSegments", 4);
+
+    // Clustering is off unless ee402.cluster lists every node as
+    // id=host:port:gossipPort (comma separated, the same list on each node)
+    // and ee402.nodeId says which one this is. Nodes gossip their per-device
+    // aggregates every CLUSTER_GOSSIP_MILLIS over UDP; a disconnected device's
+    // aggregate is dropped after CLUSTER_IDLE_MILLIS without readings.
+    static final String CLUSTER = System.getProperty("ee402.cluster");
+    static final String NODE_ID = System.getProperty("ee402.nodeId");
+    static final long CLUSTER_GOSSIP_MILLIS = Long.getLong("ee402.clusterGossipMillis", 1000);
+    static final long CLUSTER_IDLE_MILLIS = Long.getLong("ee402.clusterIdleMillis", 10 * 60 * 1000);
+
+    // Live relay for subscriber connections (0 turns it off): ring slots,
+    // one per channel sample, and what happens to a subscriber that falls
+    // half a ring behind, "drop" (skip to live) or "disconnect"
+    static final int RELAY_PORT = Integer.getInteger("ee402.relayPort", 5051);
+    static final int RELAY_RING = Integer.getInteger("ee402.relayRing", 64 * 1024);
+    static final String RELAY_SLOW_POLICY = System.getProperty("ee402.relaySlowPolicy", "drop");
+
+    // Rollup ring sizes: buckets kept at 1 s, 1 min and 1 h resolution per
+    // device (by default 15 minutes, a day and a month, about 271 KB), and
+    // how many devices get rollups at most
+    static final int ROLLUP_SECONDS = Integer.getInteger("ee402.rollupSeconds", 900);
+    static final int ROLLUP_MINUTES = Integer.getInteger("ee402.rollupMinutes", 1440);
+    static final int ROLLUP_HOURS = Integer.getInteger("ee402.rollupHours", 744);
+    static final int ROLLUP_MAX_SERIES = Integer.getInteger("ee402.rollupMaxSeries", 4096);
+
+    // Time-series persistence is off unless a store directory is given
+    static final String STORE_DIR = System.getProperty("ee402.storeDir");
+    static final int STORE_SEGMENT_MB = Integer.getInteger("ee402.storeSegmentMB", 64);
+    static final long STORE_SEGMENT_HOURS = Long.getLong("ee402.storeSegmentHours", 24);
+    static final long STORE_RETENTION_DAYS = Long.getLong("ee402.storeRetentionDays", 30);
+    static final long STORE_RETENTION_MB = Long.getLong("ee402.storeRetentionMB", 4096);
+
+    // How far ahead of the server a device's reading timestamp may be; a
+    // reading stamped later than that is taken as stamped now. Earlier
+    // timestamps are kept, since spooled readings arrive late by design.
+    static final long CLOCK_SKEW_MILLIS = Long.getLong("ee402.clockSkewMillis", 60000);
+
+    private ServerConfig() {
+    }
+
+    static long clampToServerTime(long timestamp, long now) {
+        return timestamp - now > CLOCK_SKEW_MILLIS ? now : timestamp;
+    }
+
+    static boolean isNioIngest() {
+        return "nio".equalsIgnoreCase(INGEST_MODE);
+    }
+}
@@ -0,0 +1,93 @@
+package ee402;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The server's own instrumentation, recorded on the ingest hot path: striped
+// counters that an increment never contends on, and latency histograms.
+// MetricsExporter publishes them over HTTP and JMX.
+class ServerMetrics {
+    private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    final LongAdder readings = new LongAdder();
+    final LongAdder messages = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder decodeErrors = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder walErrors = new LongAdder();
+    final LongAdder redirects = new LongAdder();
+    final LongAdder rateDirectives = new LongAdder();
+
+    // Decoding and queueing one device message, from decoded bytes to its
+    // readings being alerted on, logged and on the ingest queue; the write-
+    // ahead log commit that follows is not included
+    final LatencyHistogram parseLatency = new LatencyHistogram();
+    // Time a task posted to the Swing event queue waits before it runs
+    final LatencyHistogram edtLag = new LatencyHistogram();
+
+    // Reading rate, sampled at most once per SAMPLE_INTERVAL
+    private long lastSampleNanos;
+    private long lastReadings;
+    private double readingsPerSecond;
+
+    synchronized double getReadingsPerSecond() {
+        long now = System.nanoTime();
+        if (now - lastSampleNanos < SAMPLE_INTERVAL) {
+            return readingsPerSecond;
+        }
+        long count = readings.sum();
+        if (lastSampleNanos != 0) {
+            readingsPerSecond = (count - lastReadings) * 1e9 / (now - lastSampleNanos);
+        }
+        lastSampleNanos = now;
+        lastReadings = count;
+        return readingsPerSecond;
+    }
+
+    // Socket streams for the threaded handlers, counting bytes as they pass
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+}
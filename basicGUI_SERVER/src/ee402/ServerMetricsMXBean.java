@@ -0,0 +1,37 @@
+package ee402;
+
+// JMX view of the server's metrics, registered as ee402:type=SensorServer.
+// Public because the platform MBean server only introspects public interfaces.
+public interface ServerMetricsMXBean {
+    long getReadings();
+
+    double getReadingsPerSecond();
+
+    long getMessages();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDecodeErrors();
+
+    long getSendErrors();
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    int getConnectedDevices();
+
+    int getActiveAlerts();
+
+    double getParseLatencyP50Micros();
+
+    double getParseLatencyP99Micros();
+
+    double getEdtLagP99Micros();
+
+    int getIngestQueueDepth();
+
+    long getIngestDropped();
+}
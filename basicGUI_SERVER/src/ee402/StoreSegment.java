@@ -0,0 +1,314 @@
+package ee402;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// One memory-mapped, append-only segment file of the TimeSeriesStore. After
+// an 8-byte header (magic, segment size) the file holds two record types:
+//
+//   SERIES: u8 1 | varint id | u8 channel | u8 name length | device name
+//   POINT:  u8 2 | varint id | varint bytes back to the series' previous point
+//           | zigzag varint timestamp delta-of-delta | XOR-coded value
+//
+// Each series' first point in a segment carries its absolute timestamp, so a
+// segment decodes on its own. Values are XORed with the series' previous value
+// and only the significant bytes are kept: a control byte holds the trailing
+// zero byte count (high nibble) and the kept byte count (low nibble). The back
+// pointers chain each series' points, so a query for one device reads only
+// that device's records. A record's type byte is written last, which makes a
+// record torn by a crash look like the end of the segment.
+class StoreSegment implements Closeable {
+    static final int MAGIC = 0x54535331; // "TSS1"
+    static final int MAX_RECORD_SIZE = 300;
+    private static final int HEADER_SIZE = 8;
+    private static final byte TYPE_SERIES = 1;
+    private static final byte TYPE_POINT = 2;
+
+    final Path path;
+    final long sequence;
+    private final FileChannel file;
+    private final MappedByteBuffer buf;
+    private final Map<String, Series[]> seriesByDevice = new HashMap<>();
+    private final List<Series> seriesById = new ArrayList<>();
+    private int[] chain = new int[256];
+    long minTimestamp = Long.MAX_VALUE;
+    long maxTimestamp = Long.MIN_VALUE;
+    // Server wall-clock times the segment was opened and last written, which
+    // the store rolls and expires by; device timestamps cannot be trusted for it
+    final long openedMillis;
+    long writtenMillis;
+
+    private static class Series {
+        final int id;
+        final String device;
+        final SensorChannel channel;
+        int lastOffset;
+        long lastTimestamp;
+        long lastDelta;
+        long lastBits;
+
+        Series(int id, String device, SensorChannel channel) {
+            this.id = id;
+            this.device = device;
+            this.channel = channel;
+        }
+    }
+
+    StoreSegment(Path path, long sequence, int size) throws IOException {
+        this.path = path;
+        this.sequence = sequence;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = file.size() == 0;
+        this.buf = file.map(FileChannel.MapMode.READ_WRITE, 0, created ? size : file.size());
+        if (created) {
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, size);
+        } else if (buf.getInt(0) != MAGIC) {
+            file.close();
+            throw new IOException("not a store segment: " + path);
+        }
+        if (created) {
+            openedMillis = System.currentTimeMillis();
+            writtenMillis = openedMillis;
+        } else {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            openedMillis = attributes.creationTime().toMillis();
+            writtenMillis = attributes.lastModifiedTime().toMillis();
+        }
+        recover();
+    }
+
+    int size() {
+        return buf.capacity();
+    }
+
+    boolean hasRoom() {
+        return buf.capacity() - buf.position() >= MAX_RECORD_SIZE;
+    }
+
+    // Appends a point, returning false when the segment is full
+    boolean append(String device, SensorChannel channel, long timestamp, double value) {
+        if (!hasRoom()) {
+            return false;
+        }
+        Series series = series(device, channel);
+        int start = buf.position();
+        buf.position(start + 1);
+        putVarint(series.id);
+        putVarint(series.lastOffset == 0 ? 0 : start - series.lastOffset);
+        long delta;
+        if (series.lastOffset == 0) {
+            delta = 0;
+            putVarint(zigzag(timestamp));
+        } else {
+            delta = timestamp - series.lastTimestamp;
+            putVarint(zigzag(delta - series.lastDelta));
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        putXor(bits ^ series.lastBits);
+        buf.put(start, TYPE_POINT);
+
+        series.lastOffset = start;
+        series.lastTimestamp = timestamp;
+        series.lastDelta = delta;
+        series.lastBits = bits;
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        return true;
+    }
+
+    // Feeds every point of the matching series (all devices when device is
+    // null) with from <= timestamp <= to to the consumer, oldest first per series
+    void scan(String device, SensorChannel channel, long from, long to, TimeSeriesStore.PointConsumer consumer) {
+        if (to < minTimestamp || from > maxTimestamp) {
+            return;
+        }
+        if (device != null) {
+            Series[] series = seriesByDevice.get(device);
+            if (series != null && series[channel.ordinal()] != null) {
+                scanSeries(series[channel.ordinal()], from, to, consumer);
+            }
+            return;
+        }
+        for (Series series : seriesById) {
+            if (series.channel == channel) {
+                scanSeries(series, from, to, consumer);
+            }
+        }
+    }
+
+    private void scanSeries(Series series, long from, long to, TimeSeriesStore.PointConsumer consumer) {
+        // Walk the back pointers to collect the offsets, then decode forwards
+        int count = 0;
+        ByteBuffer in = buf.duplicate();
+        int offset = series.lastOffset;
+        while (offset != 0) {
+            if (count == chain.length) {
+                int[] larger = new int[chain.length * 2];
+                System.arraycopy(chain, 0, larger, 0, count);
+                chain = larger;
+            }
+            chain[count++] = offset;
+            in.position(offset + 1);
+            getVarint(in); // series id
+            int back = (int) getVarint(in);
+            offset = back == 0 ? 0 : offset - back;
+        }
+        long timestamp = 0;
+        long delta = 0;
+        long bits = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            in.position(chain[i] + 1);
+            getVarint(in);
+            boolean first = getVarint(in) == 0;
+            long encoded = unzigzag(getVarint(in));
+            if (first) {
+                timestamp = encoded;
+                delta = 0;
+            } else {
+                delta += encoded;
+                timestamp += delta;
+            }
+            bits ^= getXor(in);
+            if (timestamp >= from && timestamp <= to) {
+                consumer.accept(series.device, timestamp, Double.longBitsToDouble(bits));
+            }
+        }
+    }
+
+    void force() {
+        buf.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buf.force();
+        file.close();
+    }
+
+    private Series series(String device, SensorChannel channel) {
+        Series[] byChannel = seriesByDevice.get(device);
+        if (byChannel == null) {
+            byChannel = new Series[SensorChannel.values().length];
+            seriesByDevice.put(device, byChannel);
+        }
+        Series series = byChannel[channel.ordinal()];
+        if (series == null) {
+            byte[] name = device.getBytes(StandardCharsets.US_ASCII);
+            int length = Math.min(name.length, 255);
+            series = new Series(seriesById.size(), device, channel);
+            int start = buf.position();
+            buf.position(start + 1);
+            putVarint(series.id);
+            buf.put((byte) channel.ordinal());
+            buf.put((byte) length);
+            buf.put(name, 0, length);
+            buf.put(start, TYPE_SERIES);
+            byChannel[channel.ordinal()] = series;
+            seriesById.add(series);
+        }
+        return series;
+    }
+
+    // Replays the records of an existing file to find the append position and
+    // each series' encoder state; a zero or torn record marks the end
+    private void recover() {
+        buf.position(HEADER_SIZE);
+        while (buf.capacity() - buf.position() >= MAX_RECORD_SIZE) {
+            int start = buf.position();
+            byte type = buf.get();
+            if (type == TYPE_SERIES) {
+                int id = (int) getVarint(buf);
+                SensorChannel channel = SensorChannel.of(buf.get());
+                byte[] name = new byte[buf.get() & 0xff];
+                buf.get(name);
+                String device = new String(name, StandardCharsets.US_ASCII);
+                Series series = new Series(id, device, channel);
+                seriesByDevice.computeIfAbsent(device, d -> new Series[SensorChannel.values().length])[channel.ordinal()] = series;
+                seriesById.add(series);
+            } else if (type == TYPE_POINT) {
+                Series series = seriesById.get((int) getVarint(buf));
+                boolean first = getVarint(buf) == 0;
+                long encoded = unzigzag(getVarint(buf));
+                if (first) {
+                    series.lastTimestamp = encoded;
+                    series.lastDelta = 0;
+                } else {
+                    series.lastDelta += encoded;
+                    series.lastTimestamp += series.lastDelta;
+                }
+                series.lastBits ^= getXor(buf);
+                series.lastOffset = start;
+                minTimestamp = Math.min(minTimestamp, series.lastTimestamp);
+                maxTimestamp = Math.max(maxTimestamp, series.lastTimestamp);
+            } else {
+                buf.position(start);
+                return;
+            }
+        }
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private void putXor(long xor) {
+        if (xor == 0) {
+            buf.put((byte) 0);
+            return;
+        }
+        int trailing = Long.numberOfTrailingZeros(xor) / 8;
+        int kept = 8 - Long.numberOfLeadingZeros(xor) / 8 - trailing;
+        buf.put((byte) ((trailing << 4) | kept));
+        long significant = xor >>> (trailing * 8);
+        for (int i = kept - 1; i >= 0; i--) {
+            buf.put((byte) (significant >>> (i * 8)));
+        }
+    }
+
+    private static long getXor(ByteBuffer in) {
+        int control = in.get() & 0xff;
+        int kept = control & 0x0f;
+        long significant = 0;
+        for (int i = 0; i < kept; i++) {
+            significant = (significant << 8) | (in.get() & 0xff);
+        }
+        return significant << ((control >>> 4) * 8);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -9,12 +9,17 @@ import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.Random;
 
-public class ThreadedConnectionHandler extends Thread {
+// Runs on a HandlerPool thread (virtual or platform) rather than being a Thread.
+// Commands go through the server's CommandRegistry, so a device named here
+// is renamed in the server's registry too. The device is registered only
+// once run() starts serving the socket, so a handler that is never run
+// leaves nothing in the registry.
+public class ThreadedConnectionHandler implements HandlerPool.Handler, CommandRegistry.Session {
     private Socket clientSocket;
     private ObjectInputStream is;
     private ObjectOutputStream os;
-    private DateTimeService theDateService;
-    private String deviceName;
+    private final SensorServer server;
+    private volatile DeviceState device;
 
     // New attributes for simulated sensors
     private double methaneValue;
@@ -22,10 +27,9 @@ public class ThreadedConnectionHandler extends Thread {
     private double temperatureValue;
     private Random random = new Random();
 
-    public ThreadedConnectionHandler(Socket clientSocket) {
+    public ThreadedConnectionHandler(Socket clientSocket, SensorServer server) {
         this.clientSocket = clientSocket;
-        this.theDateService = new DateTimeService();
-        this.deviceName = "Default Device";
+        this.server = server;
 
         // Initialize simulated sensor values
         this.methaneValue = 0.0;
@@ -34,16 +38,35 @@ public class ThreadedConnectionHandler extends Thread {
     }
 
     public String getDeviceName() {
-        return deviceName;
+        DeviceState current = device;
+        return current == null ? "Default Device" : current.getName();
     }
 
     public void setDeviceName(String deviceName) {
-        this.deviceName = deviceName;
+        if (device != null) {
+            server.renameDevice(device, deviceName);
+        }
+    }
+
+    @Override
+    public DeviceState getDevice() {
+        return device;
+    }
+
+    @Override
+    public void reply(String message) {
+        send(message);
     }
 
     @Override
     public void run() {
         try {
+            synchronized (this) {
+                if (clientSocket.isClosed()) {
+                    return;
+                }
+                device = server.connectDevice("Default Device");
+            }
             this.is = new ObjectInputStream(clientSocket.getInputStream());
             this.os = new ObjectOutputStream(clientSocket.getOutputStream());
 
@@ -53,37 +76,25 @@ public class ThreadedConnectionHandler extends Thread {
             System.out.println("XX. There was a problem with the Input/Output Communication:");
             e.printStackTrace();
         } finally {
-            closeSocket();
+            close();
         }
     }
 
+    // A command that fails is counted by the registry; only a broken
+    // stream ends the connection
     private boolean readCommand() {
         try {
             Object received = is.readObject();
             if (received instanceof String) {
-                String command = (String) received;
-                if (command.startsWith("SetDeviceName: ")) {
-                    // Extract device name from the command
-                    String newName = command.replace("SetDeviceName: ", "");
-                    setDeviceName(newName);
-                } else if (command.equals("GetDate")) {
-                    this.getDate();
-                }
+                server.getCommands().dispatch(this, (String) received);
             }
-        } catch (Exception e) {
-            closeSocket();
+        } catch (IOException | ClassNotFoundException e) {
+            close();
             return false;
         }
         return true;
     }
 
-    private void getDate() {
-        String theDateCommand = "GetDate";
-        String theDateAndTime = theDateService.getDateAndTime();
-
-        send(theDateAndTime);
-    }
-
     private void send(Object o) {
         try {
             os.writeObject(o);
@@ -114,7 +125,14 @@ public class ThreadedConnectionHandler extends Thread {
         return currentValue + noise;
     }
 
-    private void closeSocket() {
+    @Override
+    public synchronized void close() {
+        if (clientSocket.isClosed()) {
+            return;
+        }
+        if (device != null) {
+            server.disconnectDevice(device);
+        }
         try {
             if (os != null) os.close();
             if (is != null) is.close();
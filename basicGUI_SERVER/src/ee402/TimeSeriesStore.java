@@ -0,0 +1,134 @@
+package ee402;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Embedded append-only time-series store, keyed by device and channel. Points
+// go into memory-mapped StoreSegment files that roll over when full or open
+// for longer than segmentMillis; whole segments are deleted once they were
+// last written longer than the retention time ago or exceed the total size
+// budget. Both go by the server's clock, never the readings' own timestamps,
+// so a device with a wrong clock cannot expire or fragment the store. Each segment remembers its time
+// span, so a range query only decodes the segments (and, within them, the
+// series) it needs.
+class TimeSeriesStore implements Closeable, ReadingSink {
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".tsd";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final List<StoreSegment> segments = new ArrayList<>();
+    private StoreSegment active;
+
+    interface PointConsumer {
+        void accept(String device, long timestamp, double value);
+    }
+
+    TimeSeriesStore(Path dir, int segmentBytes, long segmentMillis,
+                    long retentionMillis, long retentionBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                segments.add(new StoreSegment(file, sequence, segmentBytes));
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        if (!segments.isEmpty()) {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    synchronized void appendReading(String device, long timestamp,
+                                    double methane, double co2, double temperature) throws IOException {
+        append(device, SensorChannel.METHANE, timestamp, methane);
+        append(device, SensorChannel.CO2, timestamp, co2);
+        append(device, SensorChannel.TEMPERATURE, timestamp, temperature);
+    }
+
+    @Override
+    public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+        try {
+            appendReading(deviceName, timestamp, methane, co2, temperature);
+        } catch (IOException e) {
+            System.out.println("XX. Failed to store reading: " + e);
+        }
+    }
+
+    synchronized void append(String device, SensorChannel channel, long timestamp, double value) throws IOException {
+        long now = System.currentTimeMillis();
+        if (active == null || now - active.openedMillis > segmentMillis
+                || !active.append(device, channel, timestamp, value)) {
+            roll(now);
+            active.append(device, channel, timestamp, value);
+        }
+        active.writtenMillis = now;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    synchronized void query(String device, SensorChannel channel, long from, long to, PointConsumer consumer) {
+        for (StoreSegment segment : segments) {
+            segment.scan(device, channel, from, to, consumer);
+        }
+    }
+
+    synchronized void flush() {
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (StoreSegment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    private void roll(long now) throws IOException {
+        long sequence = active == null ? 0 : active.sequence + 1;
+        if (active != null) {
+            active.force();
+        }
+        Path file = dir.resolve(String.format("%s%012d%s", PREFIX, sequence, SUFFIX));
+        active = new StoreSegment(file, sequence, segmentBytes);
+        segments.add(active);
+        enforceRetention(now);
+    }
+
+    private void enforceRetention(long now) throws IOException {
+        long totalBytes = 0;
+        for (StoreSegment segment : segments) {
+            totalBytes += segment.size();
+        }
+        while (segments.size() > 1) {
+            StoreSegment oldest = segments.get(0);
+            if (totalBytes <= retentionBytes && oldest.writtenMillis >= now - retentionMillis) {
+                break;
+            }
+            segments.remove(0);
+            totalBytes -= oldest.size();
+            oldest.close();
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ee402;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Sliding-window count/sum/mean/min/max over primitive doubles, safe for any
+// number of concurrent writers. The window is split into a fixed ring of
+// buckets, each stamped with the epoch it currently holds (reading sequence
+// divided by the bucket size for count windows, time divided by the bucket
+// width for time windows). add() touches one bucket and queries fold the ring,
+// so both are O(1) in the number of readings and neither boxes nor allocates.
+//
+// Writers coordinate with CAS only: the first writer to reach a bucket whose
+// epoch has left the window clears and re-stamps it. Results are exact for a
+// single writer; with several writers racing across a bucket boundary, one
+// that finds its slot already re-stamped for a later epoch drops its reading
+// (as it does a late time-stamped one), which the gauges tolerate.
+class WindowedStats {
+    private static final long EMPTY = -2;
+    private static final long RESETTING = -1;
+    private static final int TARGET_BUCKETS = 16;
+
+    private final boolean timeBased;
+    private final long bucketSpan;
+    private final int buckets;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray epochs;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray sums;
+    private final AtomicLongArray mins;
+    private final AtomicLongArray maxs;
+
+    private WindowedStats(boolean timeBased, long bucketSpan, int buckets) {
+        this.timeBased = timeBased;
+        this.bucketSpan = bucketSpan;
+        this.buckets = buckets;
+        this.epochs = new AtomicLongArray(buckets);
+        this.counts = new AtomicLongArray(buckets);
+        this.sums = new AtomicLongArray(buckets);
+        this.mins = new AtomicLongArray(buckets);
+        this.maxs = new AtomicLongArray(buckets);
+        for (int i = 0; i < buckets; i++) {
+            epochs.set(i, EMPTY);
+        }
+    }
+
+    // Window over the most recent readings; with more readings than buckets
+    // the window slides a bucket of span = ceil(readings / 16) at a time and
+    // the ring holds ceil(readings / span) of them, so it covers between
+    // (buckets - 1) * span + 1 and buckets * span values: exactly readings
+    // up to 16, within a bucket of it above
+    static WindowedStats ofCount(int readings) {
+        long span = (readings + TARGET_BUCKETS - 1) / TARGET_BUCKETS;
+        return new WindowedStats(false, span, (int) ((readings + span - 1) / span));
+    }
+
+    // Window over the last windowMillis of reading timestamps
+    static WindowedStats ofTime(long windowMillis, int buckets) {
+        return new WindowedStats(true, Math.max(1, windowMillis / buckets), buckets);
+    }
+
+    void add(double value) {
+        add(value, System.currentTimeMillis());
+    }
+
+    void add(double value, long timestampMillis) {
+        long epoch = timeBased ? timestampMillis / bucketSpan : sequence.getAndIncrement() / bucketSpan;
+        int i = (int) (epoch % buckets);
+        while (true) {
+            long current = epochs.get(i);
+            if (current == epoch) {
+                break;
+            }
+            if (current > epoch) {
+                // A late time-stamped reading whose bucket has already moved on
+                return;
+            }
+            if (current == RESETTING) {
+                Thread.onSpinWait();
+            } else if (epochs.compareAndSet(i, current, RESETTING)) {
+                counts.set(i, 0);
+                sums.set(i, Double.doubleToRawLongBits(0.0));
+                mins.set(i, Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+                maxs.set(i, Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+                epochs.set(i, epoch);
+                break;
+            }
+        }
+        counts.incrementAndGet(i);
+        long bits;
+        do {
+            bits = sums.get(i);
+        } while (!sums.compareAndSet(i, bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value)));
+        do {
+            bits = mins.get(i);
+        } while (value < Double.longBitsToDouble(bits)
+                && !mins.compareAndSet(i, bits, Double.doubleToRawLongBits(value)));
+        do {
+            bits = maxs.get(i);
+        } while (value > Double.longBitsToDouble(bits)
+                && !maxs.compareAndSet(i, bits, Double.doubleToRawLongBits(value)));
+    }
+
+    // Folds every bucket still inside the window into summary, which callers
+    // keep and reuse so that polling the window does not allocate either
+    Summary read(Summary summary) {
+        long newest = timeBased ? System.currentTimeMillis() / bucketSpan : (sequence.get() - 1) / bucketSpan;
+        long count = 0;
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < buckets; i++) {
+            long epoch = epochs.get(i);
+            if (epoch < 0 || epoch > newest || epoch <= newest - buckets) {
+                continue;
+            }
+            long bucketCount = counts.get(i);
+            double bucketSum = Double.longBitsToDouble(sums.get(i));
+            double bucketMin = Double.longBitsToDouble(mins.get(i));
+            double bucketMax = Double.longBitsToDouble(maxs.get(i));
+            if (epochs.get(i) != epoch || bucketCount == 0) {
+                continue; // recycled while we were reading it
+            }
+            count += bucketCount;
+            sum += bucketSum;
+            min = Math.min(min, bucketMin);
+            max = Math.max(max, bucketMax);
+        }
+        summary.count = count;
+        summary.sum = sum;
+        summary.min = count == 0 ? 0.0 : min;
+        summary.max = count == 0 ? 0.0 : max;
+        return summary;
+    }
+
+    long getCount() {
+        return read(new Summary()).count;
+    }
+
+    double getMean() {
+        return read(new Summary()).getMean();
+    }
+
+    double getMin() {
+        return read(new Summary()).min;
+    }
+
+    double getMax() {
+        return read(new Summary()).max;
+    }
+
+    static class Summary {
+        long count;
+        double sum;
+        double min;
+        double max;
+
+        double getMean() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+    }
+}
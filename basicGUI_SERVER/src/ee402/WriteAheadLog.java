@@ -0,0 +1,385 @@
+package ee402;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// Append-only log of every reading the server accepts, written before the
+// reading reaches the aggregation state, so that state can be rebuilt by
+// replaying the log after a crash. Records are
+//
+//   u32 payload length | u32 CRC32 of payload | i64 timestamp | f64 methane
+//   | f64 co2 | f64 temperature | u16 name length | name as UTF-16 chars
+//
+// and a record whose length or CRC does not check out marks a torn tail.
+//
+// Appends only copy into a buffer under a lock; the buffer reaches the file
+// in groups, so one write (and one fsync) covers every reading appended
+// since the last. The durability level decides when that happens:
+//
+//   none        a flusher thread writes every flushMillis, never fsyncs
+//   batch       the flusher writes and fsyncs every flushMillis
+//   per-reading commit() returns only once an fsync covers the caller's
+//               readings; callers arriving during an fsync share the next one
+//
+// The log rolls to a new segment file at segmentBytes and keeps the newest
+// keepSegments of them.
+//
+// A failed write or fsync fails the log for good: what reached the file may
+// end in a torn record, so nothing appended after it could be replayed.
+// From then on append() and commit() throw and the durable count stays
+// where it was, so no reading the log lost is ever acked.
+class WriteAheadLog implements Closeable {
+    static final int NONE = 0;
+    static final int BATCH = 1;
+    static final int PER_READING = 2;
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;
+    private static final int FIXED_PAYLOAD = 8 + 3 * 8 + 2;
+    private static final int MAX_NAME = 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    interface ReplayConsumer {
+        void accept(String device, long timestamp, double methane, double co2, double temperature);
+    }
+
+    private final Path dir;
+    private final int durability;
+    private final long segmentBytes;
+    private final int keepSegments;
+    private final long flushMillis;
+    private final List<Path> segments = new ArrayList<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final Object commitLock = new Object();
+    private FileChannel file;
+    private long fileBytes;
+    private long appended;         // readings appended, guarded by this
+    private volatile long durable; // readings known to be fsynced
+    private long sequence;
+    private Thread flusher;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    WriteAheadLog(Path dir, int durability, long segmentBytes, int keepSegments, long flushMillis) throws IOException {
+        this.dir = dir;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+        this.keepSegments = Math.max(1, keepSegments);
+        this.flushMillis = flushMillis;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path path : files) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        if (!segments.isEmpty()) {
+            sequence = sequenceOf(segments.get(segments.size() - 1)) + 1;
+        }
+    }
+
+    static int parseDurability(String level) {
+        switch (level.toLowerCase(Locale.ROOT)) {
+            case "none":
+                return NONE;
+            case "per-reading":
+                return PER_READING;
+            case "batch":
+                return BATCH;
+            default:
+                System.out.println("XX. Unknown WAL durability \"" + level + "\", using batch");
+                return BATCH;
+        }
+    }
+
+    // Feeds every intact record of the existing segments to consumer, oldest
+    // first, and cuts off a torn tail. Call before start().
+    long replay(ReplayConsumer consumer) throws IOException {
+        long count = 0;
+        for (Path path : segments) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer records = ByteBuffer.allocate((int) channel.size());
+                while (records.hasRemaining() && channel.read(records) >= 0) {
+                    // Segments are at most segmentBytes, read whole
+                }
+                records.flip();
+                count += replaySegment(records, consumer);
+                if (records.hasRemaining()) {
+                    System.out.println("XX. " + path.getFileName() + ": " + records.remaining()
+                            + " bytes after the last intact record, truncating");
+                    channel.truncate(records.position());
+                }
+            }
+        }
+        return count;
+    }
+
+    private static long replaySegment(ByteBuffer records, ReplayConsumer consumer) {
+        CRC32 check = new CRC32();
+        char[] name = new char[MAX_NAME];
+        long count = 0;
+        while (records.remaining() >= RECORD_HEADER) {
+            int start = records.position();
+            int length = records.getInt(start);
+            int expected = records.getInt(start + 4);
+            if (length < FIXED_PAYLOAD || length > FIXED_PAYLOAD + 2 * MAX_NAME
+                    || records.remaining() < RECORD_HEADER + length) {
+                break;
+            }
+            ByteBuffer payload = records.duplicate();
+            payload.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length);
+            check.reset();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != expected) {
+                break;
+            }
+            long timestamp = payload.getLong();
+            double methane = payload.getDouble();
+            double co2 = payload.getDouble();
+            double temperature = payload.getDouble();
+            int nameLength = payload.getShort() & 0xFFFF;
+            if (nameLength != (length - FIXED_PAYLOAD) / 2) {
+                break;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                name[i] = payload.getChar();
+            }
+            consumer.accept(new String(name, 0, nameLength), timestamp, methane, co2, temperature);
+            records.position(start + RECORD_HEADER + length);
+            count++;
+        }
+        return count;
+    }
+
+    // Carries on appending to the newest segment (or opens the first) and,
+    // for none and batch, starts the flusher
+    void start() throws IOException {
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            file = open(segments.get(segments.size() - 1), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileBytes = file.size();
+        }
+        if (durability != PER_READING) {
+            flusher = new Thread(this::flushLoop, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    synchronized void append(String device, long timestamp, double methane, double co2, double temperature)
+            throws IOException {
+        checkFailure();
+        int nameLength = Math.min(device.length(), MAX_NAME);
+        int length = FIXED_PAYLOAD + 2 * nameLength;
+        if (buffer.remaining() < RECORD_HEADER + length) {
+            drain();
+        }
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER);
+        buffer.putLong(timestamp);
+        buffer.putDouble(methane);
+        buffer.putDouble(co2);
+        buffer.putDouble(temperature);
+        buffer.putShort((short) nameLength);
+        for (int i = 0; i < nameLength; i++) {
+            buffer.putChar(device.charAt(i));
+        }
+        crc.reset();
+        crc.update(buffer.array(), start + RECORD_HEADER, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        appended++;
+    }
+
+    // For per-reading durability, waits until everything this thread has
+    // appended is fsynced; otherwise returns at once
+    void commit() throws IOException {
+        checkFailure();
+        if (durability != PER_READING) {
+            return;
+        }
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        if (durable >= target) {
+            return;
+        }
+        synchronized (commitLock) {
+            // Whoever held the lock before may have synced us already
+            checkFailure();
+            if (durable >= target) {
+                return;
+            }
+            long covered;
+            FileChannel synced;
+            synchronized (this) {
+                covered = appended;
+                drain();
+                synced = file;
+            }
+            force(synced);
+            durable = covered;
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushMillis);
+                flush(durability == BATCH);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("XX. Write-ahead log flush failed: " + e);
+            }
+        }
+    }
+
+    private void flush(boolean sync) throws IOException {
+        synchronized (commitLock) {
+            long covered;
+            FileChannel synced;
+            synchronized (this) {
+                if (file == null || failure != null) {
+                    return;
+                }
+                covered = appended;
+                drain();
+                synced = file;
+            }
+            if (sync) {
+                force(synced);
+                durable = covered;
+            }
+        }
+    }
+
+    long getAppendedCount() {
+        synchronized (this) {
+            return appended;
+        }
+    }
+
+    long getDurableCount() {
+        return durable;
+    }
+
+    // Writes the buffer out; rolls first if this would overfill the segment.
+    // Whatever happens the buffer is compacted, so it is never flipped twice
+    // and a failed write keeps its unwritten tail in place.
+    private void drain() throws IOException {
+        checkFailure();
+        if (file == null) {
+            throw new IOException("write-ahead log is closed");
+        }
+        buffer.flip();
+        try {
+            if (fileBytes > 0 && fileBytes + buffer.remaining() > segmentBytes) {
+                roll();
+            }
+            while (buffer.hasRemaining()) {
+                fileBytes += file.write(buffer);
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    private IOException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            System.out.println("XX. Write-ahead log failed, no further readings are accepted: " + e);
+        }
+        return e;
+    }
+
+    private void checkFailure() throws IOException {
+        IOException cause = failure;
+        if (cause != null) {
+            throw new IOException("write-ahead log failed earlier", cause);
+        }
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    // Opens a segment file; a seam for checks that need a failing channel
+    FileChannel open(Path path, OpenOption... options) throws IOException {
+        return FileChannel.open(path, options);
+    }
+
+    private void roll() throws IOException {
+        if (file != null) {
+            // Records of the old segment must not become durable after the new one's
+            file.force(false);
+            file.close();
+        }
+        Path path = dir.resolve(String.format("%s%012d%s", PREFIX, sequence++, SUFFIX));
+        file = open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+        segments.add(path);
+        while (segments.size() > keepSegments) {
+            Files.deleteIfExists(segments.remove(0));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (flusher != null) {
+            // Not interrupted: an interrupt inside write() or force() closes
+            // the channel and loses whatever is still buffered
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (commitLock) {
+            synchronized (this) {
+                if (file == null) {
+                    return;
+                }
+                try {
+                    drain();
+                    force(file);
+                    durable = appended;
+                } finally {
+                    file.close();
+                    file = null;
+                }
+            }
+        }
+    }
+
+    private static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,96 @@
+package ee402;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+// Runnable checks for DeviceRegistry: suffixes freed by a disconnect are
+// reused, an unregister racing a rename never leaves the device behind, and
+// devices renaming into each other's names keep every name unique while
+// members() keeps sorting them.
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -cp out ee402.DeviceRegistryCheck
+public class DeviceRegistryCheck {
+    private static final int ROUNDS = 20000;
+
+    public static void main(String[] args) throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry();
+        DeviceState first = registry.register("pump");
+        DeviceState second = registry.register("pump");
+        DeviceState third = registry.register("pump");
+        check(first.getName().equals("pump") && second.getName().equals("pump #2")
+                && third.getName().equals("pump #3"), "suffixes " + registry.members());
+        registry.unregister(second);
+        check(registry.register("pump").getName().equals("pump #2"), "freed suffix not reused");
+        registry.rename(third, "pump");
+        check(third.getName().equals("pump #3"), "rename onto a taken name moved " + third.getName());
+
+        // An unregister racing the device's rename between shards
+        for (int round = 0; round < ROUNDS; round++) {
+            DeviceRegistry races = new DeviceRegistry();
+            DeviceState device = races.register("d" + round);
+            CountDownLatch start = new CountDownLatch(1);
+            Thread renamer = new Thread(() -> {
+                await(start);
+                for (int i = 0; i < 8; i++) {
+                    races.rename(device, "r" + i);
+                }
+            });
+            renamer.start();
+            start.countDown();
+            races.unregister(device);
+            renamer.join();
+            check(races.size() == 0 && races.members().isEmpty(),
+                    "round " + round + " left " + races.members().size() + " ghost(s)");
+        }
+
+        // Devices renaming into each other's names
+        DeviceRegistry shared = new DeviceRegistry();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            DeviceState device = shared.register("probe");
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < ROUNDS; i++) {
+                    shared.rename(device, "probe" + (i % 3));
+                }
+            });
+            threads[t].start();
+        }
+        // Sorting members while they are renamed must not trip TimSort
+        boolean renaming = true;
+        while (renaming) {
+            shared.members();
+            renaming = false;
+            for (Thread thread : threads) {
+                renaming |= thread.isAlive();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<DeviceState> members = shared.members();
+        Set<String> names = new HashSet<>();
+        for (DeviceState device : members) {
+            check(names.add(device.getName()), "duplicate name " + device.getName());
+            check(shared.get(device.getName()) == device, "lookup misses " + device.getName());
+        }
+        check(members.size() == threads.length && shared.size() == threads.length, "lost devices " + names);
+        System.out.println("**. DeviceRegistry checks passed");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
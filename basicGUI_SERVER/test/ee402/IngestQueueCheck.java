@@ -0,0 +1,127 @@
+package ee402;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Runnable checks for the ingest ring: a small ring wrapped many times by
+// several producers delivers every entry whole and in each device's order;
+// drop-oldest accounts for every reading and never drops a device event;
+// signal reports congestion behind a slow sink and clears once drained.
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -cp out ee402.IngestQueueCheck
+public class IngestQueueCheck {
+    private static final int PRODUCERS = 4;
+    private static final int EVENT_EVERY = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        check(new IngestQueue(new Target(0), 1000, IngestQueue.BLOCK).getCapacity() == 1024, "capacity rounding");
+        check(new IngestQueue(new Target(0), 16, IngestQueue.BLOCK).getCapacity() == 16, "power of two kept");
+        check(IngestQueue.parseOverflow("Drop-Oldest") == IngestQueue.DROP_OLDEST, "policy names");
+
+        // 16 slots, 800000 readings: the ring wraps 50000 times
+        Result wrap = run(IngestQueue.BLOCK, 16, 0, 200000);
+        check(wrap.target.readings == wrap.produced && wrap.queue.getDroppedCount() == 0,
+                "block delivered " + wrap.target.readings + " of " + wrap.produced);
+
+        Result drop = run(IngestQueue.DROP_OLDEST, 64, 20000, 20000);
+        check(drop.target.readings + drop.queue.getDroppedCount() == drop.produced,
+                "drop-oldest delivered " + drop.target.readings + " and dropped " + drop.queue.getDroppedCount()
+                        + " of " + drop.produced);
+        check(drop.queue.getDroppedCount() > 0, "drop-oldest never dropped behind a slow sink");
+
+        Result signal = run(IngestQueue.SIGNAL, 64, 20000, 2000);
+        check(signal.target.readings == signal.produced, "signal lost readings");
+        check(signal.queue.getCongestionCount() > 0, "signal never congested behind a slow sink");
+        check(!signal.queue.isCongested(), "signal still congested once drained");
+
+        Target renames = new Target(0);
+        IngestQueue queue = new IngestQueue(renames, 16, IngestQueue.BLOCK);
+        queue.onDeviceRenamed("old", "new");
+        check(queue.stop(10000) && "old>new".equals(renames.renamed), "rename delivered as " + renames.renamed);
+        System.out.println("**. IngestQueue checks passed");
+    }
+
+    // PRODUCERS devices each send readings numbered from 1, and a connect
+    // event every EVENT_EVERY of them, through a ring of capacity slots
+    private static Result run(int policy, int capacity, long sinkNanos, int readings) throws InterruptedException {
+        Target target = new Target(sinkNanos);
+        IngestQueue queue = new IngestQueue(target, capacity, policy);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            String name = "device" + p;
+            producers[p] = new Thread(() -> {
+                for (int i = 1; i <= readings; i++) {
+                    queue.onReading(name, i, i, -i, 2 * i);
+                    if (i % EVENT_EVERY == 0) {
+                        queue.onDeviceConnected(name);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        target.sinkNanos = 0;
+        check(queue.stop(10000), "writer did not drain");
+        check(queue.getDepth() == 0, "depth " + queue.getDepth() + " after draining");
+        check(target.events == (long) PRODUCERS * (readings / EVENT_EVERY), "device events lost: " + target.events);
+        return new Result(queue, target, (long) PRODUCERS * readings);
+    }
+
+    private static final class Result {
+        final IngestQueue queue;
+        final Target target;
+        final long produced;
+
+        Result(IngestQueue queue, Target target, long produced) {
+            this.queue = queue;
+            this.target = target;
+            this.produced = produced;
+        }
+    }
+
+    // Checks every entry as the writer delivers it; runs on the writer only
+    private static final class Target implements ReadingSink {
+        private final Map<String, Long> last = new HashMap<>();
+        volatile long sinkNanos;
+        long readings;
+        long events;
+        String renamed;
+
+        Target(long sinkNanos) {
+            this.sinkNanos = sinkNanos;
+        }
+
+        @Override
+        public void onReading(String deviceName, long timestamp, double methane, double co2, double temperature) {
+            // A slot read while being rewritten would mix two readings
+            check(methane == timestamp && co2 == -timestamp && temperature == 2 * timestamp,
+                    "torn entry " + deviceName + " " + timestamp);
+            Long previous = last.put(deviceName, timestamp);
+            check(previous == null || previous < timestamp, deviceName + " out of order at " + timestamp);
+            readings++;
+            long until = System.nanoTime() + sinkNanos;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(String deviceName) {
+            events++;
+        }
+
+        @Override
+        public void onDeviceRenamed(String oldName, String newName) {
+            renamed = oldName + ">" + newName;
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ee402;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runnable checks for the incremental decoder the NIO loops use: a stream
+// written by a real ObjectOutputStream must decode to the same records
+// however the socket happens to split it. The tree has no test framework,
+// so, like the benchmarks, this is a plain main that fails by throwing:
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -ea -cp out ee402.ObjectStreamCodecCheck
+public class ObjectStreamCodecCheck {
+    public static void main(String[] args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        List<String> expected = new ArrayList<>();
+        String repeated = "Sensor Update: Methane - 1.5, CO2 - 2.5, Temperature - 21.0";
+        for (String s : new String[] {"SetDeviceName: bench", repeated, repeated, "Temp\u00e9rature \u00b0C \u0000", ""}) {
+            out.writeObject(s); // the second copy of repeated goes out as a back reference
+            expected.add("S:" + s);
+        }
+        byte[] frame = new byte[SensorFrame.READING_SIZE];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) i;
+        }
+        out.write(frame);
+        out.flush(); // ends the block data record
+        expected.add("B:" + frame.length);
+        out.reset();
+        out.writeObject(repeated); // a fresh handle after the reset
+        expected.add("S:" + repeated);
+        out.close();
+        byte[] stream = bytes.toByteArray();
+
+        check(decode(stream, stream.length).equals(expected), "whole stream");
+        for (int split = 1; split < stream.length; split++) {
+            List<String> decoded = decode(stream, split, stream.length - split);
+            check(decoded.equals(expected), "stream split at byte " + split + ": " + decoded);
+        }
+        check(decode(stream, 1).equals(expected), "one byte at a time");
+        check(decode(stream, 7).equals(expected), "seven bytes at a time");
+
+        try {
+            decode(new byte[] {0x12, 0x34, 0, 5}, 4);
+            throw new AssertionError("bad header accepted");
+        } catch (IOException expectedFailure) {
+            // StreamCorruptedException
+        }
+        System.out.println("**. ObjectStreamCodec: " + stream.length + "-byte stream decoded at every split");
+    }
+
+    // Feeds the stream in reads of the given sizes (the last repeated), the
+    // way IoLoop does: decode what is complete, compact, read more
+    private static List<String> decode(byte[] stream, int... reads) throws IOException {
+        ObjectStreamCodec codec = new ObjectStreamCodec();
+        ByteBuffer in = ByteBuffer.allocate(stream.length);
+        ByteBuffer blockData = ByteBuffer.allocate(SensorFrame.MAX_FRAME_SIZE + 1024);
+        List<String> records = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; offset < stream.length; i = Math.min(i + 1, reads.length - 1)) {
+            int length = Math.min(reads[i], stream.length - offset);
+            in.put(stream, offset, length);
+            offset += length;
+            in.flip();
+            int record;
+            while ((record = codec.next(in, blockData)) != ObjectStreamCodec.NEED_MORE) {
+                if (record == ObjectStreamCodec.STRING) {
+                    records.add("S:" + codec.getString());
+                } else {
+                    records.add("B:" + blockData.position());
+                    blockData.clear();
+                }
+            }
+            in.compact();
+        }
+        return records;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ee402;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Runnable checks for TimeSeriesStore: a reading stamped a month ahead
+// neither expires the other devices' points nor opens a segment, devices
+// whose clocks disagree share one segment, and the ingest clamp pulls a
+// future timestamp back to server time.
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -cp out ee402.TimeSeriesStoreCheck
+public class TimeSeriesStoreCheck {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("tss-check");
+        try {
+            long now = System.currentTimeMillis();
+            try (TimeSeriesStore store = new TimeSeriesStore(dir, 1024 * 1024, HOUR, 30 * DAY, Long.MAX_VALUE)) {
+                for (int i = 0; i < 100; i++) {
+                    store.appendReading("honest", now - 1000 + i, i, i, i);
+                }
+                store.appendReading("future", now + 31 * DAY, 1, 1, 1);
+                // Clocks a day apart, alternating
+                for (int i = 0; i < 100; i++) {
+                    store.appendReading("behind", now - DAY + i, i, i, i);
+                    store.appendReading("ahead", now + DAY + i, i, i, i);
+                }
+                check(count(store, "honest") == 100, "honest device kept " + count(store, "honest") + " points");
+                check(store.segmentCount() == 1, "skewed clocks opened " + store.segmentCount() + " segments");
+            }
+            try (TimeSeriesStore reopened = new TimeSeriesStore(dir, 1024 * 1024, HOUR, 30 * DAY, Long.MAX_VALUE)) {
+                check(count(reopened, "honest") == 100, "reopened store lost points");
+            }
+
+            check(ServerConfig.clampToServerTime(now + 31 * DAY, now) == now, "future timestamp not clamped");
+            check(ServerConfig.clampToServerTime(now - DAY, now) == now - DAY, "past timestamp moved");
+            check(ServerConfig.clampToServerTime(now + 1000, now) == now + 1000, "small skew clamped");
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.out.println("**. TimeSeriesStore checks passed");
+    }
+
+    private static int count(TimeSeriesStore store, String device) {
+        int[] points = new int[1];
+        store.query(device, SensorChannel.METHANE, Long.MIN_VALUE, Long.MAX_VALUE,
+                (name, timestamp, value) -> points[0]++);
+        return points[0];
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
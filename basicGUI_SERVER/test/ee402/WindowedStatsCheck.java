@@ -0,0 +1,78 @@
+package ee402;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Runnable checks for the CAS bucket ring behind the gauges: exact results
+// for one writer against a brute-force window, and no lost updates when
+// several writers share a bucket.
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -cp out ee402.WindowedStatsCheck
+public class WindowedStatsCheck {
+    private static final int WRITERS = 4;
+    private static final int ADDS = 250000;
+
+    public static void main(String[] args) throws InterruptedException {
+        Random random = new Random(7);
+        for (int window : new int[] {SensorServer.ANALYSIS_WINDOW, 100}) {
+            WindowedStats stats = WindowedStats.ofCount(window);
+            WindowedStats.Summary summary = new WindowedStats.Summary();
+            List<Double> values = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                double value = random.nextGaussian() * 100;
+                stats.add(value);
+                values.add(value);
+                stats.read(summary);
+                // The newest count readings, within a bucket of window
+                int span = (window + 15) / 16;
+                int buckets = (window + span - 1) / span;
+                int count = (int) summary.count;
+                check(count <= Math.min(buckets * span, values.size())
+                        && count >= Math.min(values.size(), (buckets - 1) * span + 1),
+                        "window " + window + " holds " + count);
+                check(window > 16 || count == Math.min(window, values.size()), "window " + window + " not exact");
+                List<Double> newest = values.subList(values.size() - count, values.size());
+                double sum = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (double v : newest) {
+                    sum += v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                check(Math.abs(summary.sum - sum) < 1e-6 && summary.min == min && summary.max == max,
+                        "window " + window + " after " + values.size() + " readings");
+            }
+        }
+
+        // Every writer in the same time bucket: nothing may be lost
+        WindowedStats shared = WindowedStats.ofTime(60000, 4);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int value = w + 1;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < ADDS; i++) {
+                    shared.add(value, System.currentTimeMillis() / 60000 * 60000);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        WindowedStats.Summary total = shared.read(new WindowedStats.Summary());
+        check(total.count == (long) WRITERS * ADDS, "concurrent count " + total.count);
+        check(total.sum == (double) ADDS * WRITERS * (WRITERS + 1) / 2, "concurrent sum " + total.sum);
+        check(total.min == 1 && total.max == WRITERS, "concurrent min/max");
+        System.out.println("**. WindowedStats: count windows match brute force, " + WRITERS + " writers lost nothing");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
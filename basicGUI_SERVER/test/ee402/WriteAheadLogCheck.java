@@ -0,0 +1,215 @@
+package ee402;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Runnable checks for WriteAheadLog: a write that fails part way fails the
+// log, so later appends and commits throw and the durable count never
+// covers the lost readings; replay then stops at the torn record, cuts it
+// off, and a reopened log appends after it.
+//
+//   javac -d out src/ee402/*.java test/ee402/*.java
+//   java -cp out ee402.WriteAheadLogCheck
+public class WriteAheadLogCheck {
+    private static final int FLUSH_MILLIS = 10;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("wal-check");
+        try {
+            FailingLog log = new FailingLog(dir);
+            log.start();
+            for (int i = 0; i < 10; i++) {
+                log.append("pump", i, i, i, i);
+            }
+            log.commit();
+            check(log.getDurableCount() == 10, "durable " + log.getDurableCount() + " after the first commit");
+
+            // The next write gets 30 bytes, part of one record, onto disk
+            log.channel.budget = 30;
+            for (int i = 10; i < 20; i++) {
+                log.append("pump", i, i, i, i);
+            }
+            check(throwsOnCommit(log), "commit after a failed write did not throw");
+            // Even once the disk has room again, the lost readings stay lost
+            log.channel.budget = Long.MAX_VALUE;
+            check(throwsOnCommit(log), "second commit after a failed write did not throw");
+            check(log.getDurableCount() == 10, "durable moved to " + log.getDurableCount() + " past lost readings");
+            check(log.isFailed(), "log not marked failed");
+            boolean appendThrew = false;
+            try {
+                log.append("pump", 20, 0, 0, 0);
+            } catch (IOException e) {
+                appendThrew = true;
+            }
+            check(appendThrew, "append after a failed write did not throw");
+            try {
+                log.close();
+            } catch (IOException e) {
+                // Expected: the log has failed
+            }
+
+            // Replay keeps the ten intact readings and cuts the torn tail
+            WriteAheadLog reopened = new WriteAheadLog(dir, WriteAheadLog.PER_READING, 1 << 20, 4, FLUSH_MILLIS);
+            long[] last = {-1};
+            long replayed = reopened.replay((device, timestamp, methane, co2, temperature) -> last[0] = timestamp);
+            check(replayed == 10 && last[0] == 9, "replayed " + replayed + " readings, last " + last[0]);
+            reopened.start();
+            reopened.append("pump", 100, 1, 1, 1);
+            reopened.commit();
+            reopened.close();
+            WriteAheadLog again = new WriteAheadLog(dir, WriteAheadLog.PER_READING, 1 << 20, 4, FLUSH_MILLIS);
+            replayed = again.replay((device, timestamp, methane, co2, temperature) -> last[0] = timestamp);
+            check(replayed == 11 && last[0] == 100, "after the torn tail: replayed " + replayed + ", last " + last[0]);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.out.println("**. WriteAheadLog checks passed");
+    }
+
+    private static boolean throwsOnCommit(WriteAheadLog log) {
+        try {
+            log.commit();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static final class FailingLog extends WriteAheadLog {
+        BudgetChannel channel;
+
+        FailingLog(Path dir) throws IOException {
+            super(dir, WriteAheadLog.PER_READING, 1 << 20, 4, FLUSH_MILLIS);
+        }
+
+        @Override
+        FileChannel open(Path path, OpenOption... options) throws IOException {
+            channel = new BudgetChannel(FileChannel.open(path, options));
+            return channel;
+        }
+    }
+
+    // Writes through to a real channel until budget bytes have gone out,
+    // then fails the write, as a full disk would
+    private static final class BudgetChannel extends FileChannel {
+        private final FileChannel file;
+        long budget = Long.MAX_VALUE;
+
+        BudgetChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (budget <= 0) {
+                throw new IOException("no space left on device");
+            }
+            ByteBuffer part = src.duplicate();
+            part.limit((int) Math.min(src.limit(), src.position() + budget));
+            int written = file.write(part);
+            src.position(src.position() + written);
+            budget -= written;
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}